@@ -0,0 +1,63 @@
+package me.ohughes.composite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.config.environment.Environment;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uncached {@link DeclarativeCompositeEnvironmentRepository#findOne(String, String, String)} over in memory backends,
+ * covering the fan-out, merge and copy handed to the caller but none of the backend I/O
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeLookupBenchmark {
+
+	@Param({"100", "1000", "10000", "100000"})
+	private int keys;
+
+	@Param({"1", "3", "10"})
+	private int backends;
+
+	@Param({"false", "true"})
+	private boolean fanOut;
+
+	private ExecutorService fanOutExecutor;
+	private DeclarativeCompositeEnvironmentRepository repository;
+
+	@Setup
+	public void setUp() {
+		fanOutExecutor = Executors.newFixedThreadPool(backends);
+		repository = fanOut
+			? new DeclarativeCompositeEnvironmentRepository(StubBackends.holders(backends, keys), fanOutExecutor)
+			: new DeclarativeCompositeEnvironmentRepository(StubBackends.holders(backends, keys));
+		repository.setLookupMetrics(new CompositeLookupMetrics(1024));
+	}
+
+	@TearDown
+	public void tearDown() {
+		fanOutExecutor.shutdown();
+	}
+
+	@Benchmark
+	public Environment findOne() {
+		return repository.findOne("application", "default", "master");
+	}
+}
@@ -0,0 +1,75 @@
+package me.ohughes.composite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.config.server.environment.EnvironmentWatch;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.VaultEnvironmentRepository;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning composite entry properties into environment repositories with {@link CompositeRepositoryConverter}.
+ * Nothing is cloned, as cloning on start is carried out separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+	@Param({"0", "10", "40"})
+	private int patternRepos;
+
+	private final CompositeRepositoryConverter converter = new CompositeRepositoryConverter();
+	private final StandardEnvironment environment = new StandardEnvironment();
+	private final RestTemplate restTemplate = new RestTemplate();
+	private CompositeProperties.DeclarativeCompositeProperties gitProperties;
+	private CompositeProperties.DeclarativeCompositeProperties vaultProperties;
+
+	@Setup
+	public void setUp() {
+		gitProperties = new CompositeProperties.DeclarativeCompositeProperties();
+		gitProperties.setType("git");
+		gitProperties.setUri("https://git.example.com/config/default.git");
+		gitProperties.setBasedir("/tmp/config-repo");
+		for (int repo = 0; repo < patternRepos; repo++) {
+			CompositeProperties.PatternMatchingRepoProperties repoProperties = new CompositeProperties.PatternMatchingRepoProperties();
+			repoProperties.setUri("https://git.example.com/config/team-" + repo + ".git");
+			repoProperties.setPattern(new String[]{"team-" + repo + "-*"});
+			repoProperties.setBasedir("/tmp/config-repo-" + repo);
+			gitProperties.getRepos().put("team-" + repo, repoProperties);
+		}
+
+		vaultProperties = new CompositeProperties.DeclarativeCompositeProperties();
+		vaultProperties.setType("vault");
+		vaultProperties.setHost("vault.example.com");
+		vaultProperties.setPort(8200);
+		vaultProperties.setScheme("https");
+		vaultProperties.setBackend("secret");
+	}
+
+	@Benchmark
+	public MultipleJGitEnvironmentRepository convertGit() {
+		return converter.convertPropertiesToGitEnvironment(environment, gitProperties);
+	}
+
+	@Benchmark
+	public VaultEnvironmentRepository convertVault() {
+		return converter.convertPropertiesToVaultEnvironment(vaultProperties,
+			new VaultEnvironmentRepository(null, new EnvironmentWatch.Default(), restTemplate));
+	}
+}
@@ -0,0 +1,96 @@
+package me.ohughes.composite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares merging composite backends by copying every surviving entry, as the composite used to, against the
+ * {@link ShadowingMerge} views. Run with {@code gradle jmh}; the gc profiler reports the allocation per merge as
+ * {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+
+	/**
+	 * Keys held by each backend, half of which are shadowed by the backend before it
+	 */
+	@Param({"100", "1000", "10000", "100000"})
+	private int keys;
+
+	@Param({"1", "3", "10"})
+	private int backends;
+
+	private List<Environment> environments;
+
+	@Setup
+	public void setUp() {
+		environments = new ArrayList<>(backends);
+		for (int backend = 0; backend < backends; backend++) {
+			environments.add(StubBackends.environment(backend, keys));
+		}
+	}
+
+	@Benchmark
+	public Environment copyingMerge() {
+		Environment compositeEnvironment = new Environment("application", new String[]{"default"}, null, null, null);
+		Set<Object> foundKeys = new HashSet<>();
+		for (Environment environment : environments) {
+			for (PropertySource source : environment.getPropertySources()) {
+				Map<Object, Object> newSourceMap = new HashMap<>();
+				for (Map.Entry<?, ?> entry : source.getSource().entrySet()) {
+					if (!foundKeys.contains(entry.getKey())) {
+						newSourceMap.put(entry.getKey(), entry.getValue());
+						foundKeys.add(entry.getKey());
+					}
+				}
+				if (newSourceMap.size() > 0) {
+					compositeEnvironment.add(new PropertySource(source.getName(), newSourceMap));
+				}
+			}
+		}
+		return compositeEnvironment;
+	}
+
+	@Benchmark
+	public Environment shadowingMerge() {
+		return ShadowingMerge.merge(new Environment("application", new String[]{"default"}, null, null, null),
+			environments);
+	}
+
+	/**
+	 * Merging and then serving a private copy, which is what a request that misses the cache pays for
+	 */
+	@Benchmark
+	public Environment copyingMergeAndCopy() {
+		return Environments.copy(copyingMerge());
+	}
+
+	@Benchmark
+	public Environment shadowingMergeAndCopy() {
+		return Environments.copy(shadowingMerge());
+	}
+}
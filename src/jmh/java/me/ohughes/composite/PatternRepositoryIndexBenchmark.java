@@ -0,0 +1,66 @@
+package me.ohughes.composite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the pattern matching repositories of a Git entry for a lookup, by trying each repository's patterns in turn
+ * as {@code MultipleJGitEnvironmentRepository} does, against a {@link PatternRepositoryIndex}. The lookup matches one
+ * of the last repositories, which is the worst case for the linear search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternRepositoryIndexBenchmark {
+
+	@Param({"10", "100", "1000"})
+	private int patternRepos;
+
+	private final List<PatternMatchingJGitEnvironmentRepository> repositories = new ArrayList<>();
+	private PatternRepositoryIndex<PatternMatchingJGitEnvironmentRepository> index;
+	private String application;
+
+	@Setup
+	public void setUp() {
+		for (int repo = 0; repo < patternRepos; repo++) {
+			PatternMatchingJGitEnvironmentRepository repository = new PatternMatchingJGitEnvironmentRepository();
+			repository.setPattern(new String[]{"team-" + repo + "-*", "*-team-" + repo + "/prod*"});
+			repositories.add(repository);
+		}
+		index = new PatternRepositoryIndex<>(repositories, PatternMatchingJGitEnvironmentRepository::getPattern);
+		application = "team-" + (patternRepos - 1) + "-orders";
+	}
+
+	@Benchmark
+	public List<PatternMatchingJGitEnvironmentRepository> linear() {
+		List<PatternMatchingJGitEnvironmentRepository> matched = new ArrayList<>();
+		for (PatternMatchingJGitEnvironmentRepository repository : repositories) {
+			if (repository.matches(application, "dev,prod", null)) {
+				matched.add(repository);
+			}
+		}
+		return matched;
+	}
+
+	@Benchmark
+	public List<PatternMatchingJGitEnvironmentRepository> indexed() {
+		return index.resolve(application, "dev,prod");
+	}
+}
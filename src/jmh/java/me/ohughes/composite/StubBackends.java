@@ -0,0 +1,56 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory stand-ins for composite backends, shaped like the results of real Git and Vault repositories
+ */
+final class StubBackends {
+
+	private StubBackends() {
+	}
+
+	/**
+	 * Environment for the backend at {@code backend} holding {@code keys} keys, half of which are shadowed by the backend
+	 * before it. Each backend has an application specific source overriding part of its shared source.
+	 */
+	static Environment environment(int backend, int keys) {
+		Environment environment = new Environment("application", "default");
+		int firstKey = backend * keys / 2;
+		Map<Object, Object> specific = new LinkedHashMap<>();
+		Map<Object, Object> shared = new LinkedHashMap<>();
+		for (int key = firstKey; key < firstKey + keys; key++) {
+			(key % 4 == 0 ? specific : shared).put("app.property." + key, "value-" + backend + "-" + key);
+		}
+		for (int key = firstKey; key < firstKey + keys; key += 8) {
+			shared.put("app.property." + key, "shadowed-" + backend + "-" + key);
+		}
+		environment.add(new PropertySource("backend-" + backend + ":application-default", specific));
+		environment.add(new PropertySource("backend-" + backend + ":application", shared));
+		return environment;
+	}
+
+	/**
+	 * Holders for {@code backends} stub repositories, alternating between Git and Vault. Like a real repository each
+	 * returns a freshly built environment on every call.
+	 */
+	static List<DeclarativeCompositeHolder> holders(int backends, int keys) {
+		List<DeclarativeCompositeHolder> holders = new ArrayList<>(backends);
+		for (int backend = 0; backend < backends; backend++) {
+			Environment template = environment(backend, keys);
+			DeclarativeCompositeHolder holder = new DeclarativeCompositeHolder();
+			holder.setIndex(backend);
+			holder.setType(backend % 2 == 0 ? DeclarativeCompositeConfig.EnvironmentType.GIT
+				: DeclarativeCompositeConfig.EnvironmentType.VAULT);
+			holder.setEnvironmentRepository((application, profile, label) -> Environments.copy(template));
+			holders.add(holder);
+		}
+		return holders;
+	}
+}
@@ -0,0 +1,141 @@
+package me.ohughes.proxy;
+
+import com.sun.net.httpserver.HttpServer;
+import me.ohughes.proxy.properties.HttpPoolProperties;
+import me.ohughes.proxy.properties.HttpTimeoutProperties;
+import me.ohughes.proxy.properties.RequestBufferProperties;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.eclipse.jgit.transport.http.HttpConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JGit smart HTTP requests through {@link ProxyAwareHttpClientFactory} against an in-process HTTP server standing in
+ * for the Git host: a ref advertisement style GET and an upload-pack style POST, over a pooled client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JGitHttpBenchmark {
+
+	/**
+	 * Size in bytes of both the response and, for POST requests, the request body
+	 */
+	@Param({"1024", "65536", "1048576"})
+	private int bodySize;
+
+	@Param({"false", "true"})
+	private boolean streaming;
+
+	private HttpServer server;
+	private ProxyAwareHttpClientFactory connectionFactory;
+	private URL refsUrl;
+	private URL uploadPackUrl;
+	private byte[] body;
+	private final byte[] readBuffer = new byte[8192];
+
+	@Setup
+	public void setUp() throws IOException {
+		body = new byte[bodySize];
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.createContext("/", exchange -> {
+			try (InputStream requestBody = exchange.getRequestBody()) {
+				byte[] discard = new byte[8192];
+				while (requestBody.read(discard) >= 0) {
+					// drain the request before responding
+				}
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream responseBody = exchange.getResponseBody()) {
+				responseBody.write(body);
+			}
+		});
+		server.start();
+		String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/config.git";
+		refsUrl = new URL(baseUrl + "/info/refs?service=git-upload-pack");
+		uploadPackUrl = new URL(baseUrl + "/git-upload-pack");
+
+		RequestBufferProperties requestBuffer = new RequestBufferProperties();
+		requestBuffer.setStreaming(streaming);
+		connectionFactory = new ProxyAwareHttpClientFactory(new BaseProxyConfiguration().buildPooledClient(null,
+			new HttpPoolProperties(), new HttpTimeoutProperties(), HttpClientBuilder.create()), requestBuffer);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		connectionFactory.close();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdown();
+	}
+
+	@Benchmark
+	public long advertiseRefs() {
+		return connectionFactory.releasingConnections(() -> {
+			try {
+				HttpConnection connection = connectionFactory.create(refsUrl, null);
+				connection.setRequestMethod("GET");
+				connection.getResponseCode();
+				return drain(connection);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	/**
+	 * JGit announces a fixed length when it buffered the body itself and switches to chunked mode for larger bodies,
+	 * the case in which streaming applies
+	 */
+	@Benchmark
+	public long uploadPack() {
+		return connectionFactory.releasingConnections(() -> {
+			try {
+				HttpConnection connection = connectionFactory.create(uploadPackUrl, null);
+				connection.setRequestMethod("POST");
+				connection.setDoOutput(true);
+				connection.setChunkedStreamingMode(0);
+				try (OutputStream requestBody = connection.getOutputStream()) {
+					requestBody.write(body);
+				}
+				connection.getResponseCode();
+				return drain(connection);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	private long drain(HttpConnection connection) throws IOException {
+		long total = 0;
+		try (InputStream responseBody = connection.getInputStream()) {
+			int read;
+			while ((read = responseBody.read(readBuffer)) >= 0) {
+				total += read;
+			}
+		}
+		return total;
+	}
+}
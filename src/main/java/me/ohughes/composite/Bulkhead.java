@@ -0,0 +1,41 @@
+package me.ohughes.composite;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads of their own for the lookups of a single backend, so that a backend that slows down ties up its own threads
+ * rather than those every other backend is queried on. At most {@code maxConcurrency} lookups run at a time and up to
+ * {@code queueCapacity} more wait for a thread; beyond that lookups are rejected straight away instead of queueing
+ * behind a backend that is not keeping up.
+ */
+class Bulkhead implements Executor {
+
+	private final ThreadPoolExecutor executor;
+
+	Bulkhead(int index, CompositeProperties.BulkheadProperties properties) {
+		this.executor = new ThreadPoolExecutor(properties.getMaxConcurrency(), properties.getMaxConcurrency(), 60L,
+			TimeUnit.SECONDS, properties.getQueueCapacity() > 0 ? new ArrayBlockingQueue<>(properties.getQueueCapacity())
+			: new SynchronousQueue<>(), new CustomizableThreadFactory("composite-bulkhead-" + index + "-"),
+			new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @throws RejectedExecutionException if every thread is busy and the queue is full
+	 */
+	@Override
+	public void execute(Runnable command) {
+		executor.execute(command);
+	}
+
+	void shutdown() {
+		executor.shutdown();
+	}
+}
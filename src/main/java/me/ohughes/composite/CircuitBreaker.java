@@ -0,0 +1,60 @@
+package me.ohughes.composite;
+
+/**
+ * Fails fast for a backend that keeps failing. After {@code failureThreshold} consecutive failures the circuit opens
+ * and lookups are rejected without calling the backend. Once {@code openDuration} milliseconds have passed a single
+ * trial lookup is let through: if it succeeds the circuit closes again, otherwise it stays open for another period.
+ */
+class CircuitBreaker {
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openDuration;
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openUntil;
+
+	CircuitBreaker(int failureThreshold, long openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * @return whether the backend may be called now
+	 */
+	synchronized boolean allowRequest() {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (System.currentTimeMillis() >= openUntil) {
+					state = State.HALF_OPEN;
+					return true;
+				}
+				return false;
+			default:
+				// A trial lookup is already under way
+				return false;
+		}
+	}
+
+	synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+	}
+
+	synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis() + openDuration;
+		}
+	}
+
+	synchronized boolean isOpen() {
+		return state != State.CLOSED;
+	}
+}
@@ -0,0 +1,48 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * Actuator endpoint reporting {@link CompositeEnvironmentCache} statistics and allowing targeted eviction, e.g.
+ * {@code POST /composite-cache/evict?application=foo} or {@code POST /composite-cache/evict?backend=1}. Evicting
+ * with no parameters clears the whole cache.
+ */
+public class CompositeCacheMvcEndpoint extends AbstractNamedMvcEndpoint {
+
+	private final CompositeEnvironmentCache cache;
+
+	public CompositeCacheMvcEndpoint(CompositeEnvironmentCache cache) {
+		super("compositecache", "/composite-cache", true);
+		this.cache = cache;
+	}
+
+	@GetMapping
+	@ResponseBody
+	public CompositeEnvironmentCache.Statistics statistics() {
+		return cache.getStatistics();
+	}
+
+	@PostMapping("/evict")
+	@ResponseBody
+	public CompositeEnvironmentCache.Statistics evict(@RequestParam(required = false) String application,
+													  @RequestParam(required = false) String profile,
+													  @RequestParam(required = false) String label,
+													  @RequestParam(required = false) Integer backend) {
+		if (backend != null) {
+			cache.evictBackend(backend);
+		} else if (hasText(application) && hasText(profile)) {
+			cache.evict(application, profile, label);
+		} else if (hasText(application)) {
+			cache.evict(application);
+		} else {
+			cache.evictAll();
+		}
+		return cache.getStatistics();
+	}
+}
@@ -0,0 +1,36 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publish {@link CompositeEnvironmentCache} counters through the actuator {@code /metrics} endpoint
+ */
+public class CompositeCachePublicMetrics implements PublicMetrics {
+
+	private static final String PREFIX = "composite.cache.";
+
+	private final CompositeEnvironmentCache cache;
+
+	public CompositeCachePublicMetrics(CompositeEnvironmentCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		CompositeEnvironmentCache.Statistics statistics = cache.getStatistics();
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>(PREFIX + "hits", statistics.getHits()));
+		metrics.add(new Metric<>(PREFIX + "misses", statistics.getMisses()));
+		metrics.add(new Metric<>(PREFIX + "evictions", statistics.getEvictions()));
+		metrics.add(new Metric<>(PREFIX + "expirations", statistics.getExpirations()));
+		metrics.add(new Metric<>(PREFIX + "invalidations", statistics.getInvalidations()));
+		metrics.add(new Metric<>(PREFIX + "size", statistics.getSize()));
+		metrics.add(new Metric<>(PREFIX + "bytes", statistics.getBytes()));
+		return metrics;
+	}
+}
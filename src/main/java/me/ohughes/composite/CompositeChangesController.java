@@ -0,0 +1,99 @@
+package me.ohughes.composite;
+
+import lombok.Value;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the keys of a composite environment that changed since a version the client already holds, e.g.
+ * {@code GET /changes/myapp/dev/master?since=3fa4...}. Each added or changed key is returned with its value and the
+ * property source it now comes from, and removed keys by name alone.
+ * <p>
+ * When {@code since} is not one of the versions held by {@link CompositeSnapshots}, every key is returned as added
+ * with {@code reset} set, telling the client to replace rather than patch its configuration.
+ * <p>
+ * Results are read through the same decrypting repository, with the same overrides, as the environment endpoints use.
+ * The snapshots hold the values as stored, so which keys changed is worked out from those, leaving
+ * {@code {cipher}} values encrypted in memory, while the values sent are the decrypted ones.
+ */
+@RestController
+public class CompositeChangesController {
+
+	private final EnvironmentRepository repository;
+	private final CompositeSnapshots snapshots;
+
+	/**
+	 * @param repository the composite repository wrapped as for the environment endpoints, decrypting its results and
+	 *                   applying the server's overrides
+	 */
+	public CompositeChangesController(EnvironmentRepository repository, CompositeSnapshots snapshots) {
+		this.repository = repository;
+		this.snapshots = snapshots;
+	}
+
+	@GetMapping("/changes/{name}/{profiles}")
+	public Changes changes(@PathVariable String name, @PathVariable String profiles, @RequestParam String since) {
+		return changes(name, profiles, null, since);
+	}
+
+	@GetMapping("/changes/{name}/{profiles}/{label}")
+	public Changes changes(@PathVariable String name, @PathVariable String profiles, @PathVariable String label,
+						   @RequestParam String since) {
+		// Labels containing a slash are passed as "(_)" just as for the environment endpoints
+		String resolvedLabel = label == null ? null : label.replace("(_)", "/");
+		Environment current = repository.findOne(name, profiles, resolvedLabel);
+		Changes changes = new Changes(name, profiles, resolvedLabel, since, current.getVersion(), false);
+		if (since.equals(current.getVersion())) {
+			return changes;
+		}
+
+		Map<String, CompositeSnapshots.Winner> currentWinners = CompositeSnapshots.flatten(current);
+		LookupKey key = LookupKey.composite(name, profiles, resolvedLabel);
+		Map<String, CompositeSnapshots.Winner> previousStored = snapshots.get(key, since);
+		// The composite repository records the version it returns, unless it has already been dropped again
+		Map<String, CompositeSnapshots.Winner> currentStored = previousStored == null ? null : snapshots.get(key, current.getVersion());
+		if (currentStored == null) {
+			changes = new Changes(name, profiles, resolvedLabel, since, current.getVersion(), true);
+			changes.getAdded().putAll(currentWinners);
+			return changes;
+		}
+		for (Map.Entry<String, CompositeSnapshots.Winner> winner : currentStored.entrySet()) {
+			CompositeSnapshots.Winner previous = previousStored.get(winner.getKey());
+			CompositeSnapshots.Winner served = currentWinners.get(winner.getKey());
+			if (previous == null) {
+				changes.getAdded().put(winner.getKey(), served);
+			} else if (!previous.equals(winner.getValue())) {
+				changes.getChanged().put(winner.getKey(), served);
+			}
+		}
+		for (String removed : previousStored.keySet()) {
+			// A key may still be served from the overrides
+			if (!currentStored.containsKey(removed) && !currentWinners.containsKey(removed)) {
+				changes.getRemoved().add(removed);
+			}
+		}
+		return changes;
+	}
+
+	@Value
+	public static class Changes {
+		String name;
+		String profiles;
+		String label;
+		String since;
+		String version;
+		boolean reset;
+		Map<String, CompositeSnapshots.Winner> added = new LinkedHashMap<>();
+		Map<String, CompositeSnapshots.Winner> changed = new LinkedHashMap<>();
+		List<String> removed = new ArrayList<>();
+	}
+}
@@ -0,0 +1,363 @@
+package me.ohughes.composite;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.StringUtils;
+
+import javax.xml.bind.DatatypeConverter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps the latest result of each Git entry for each lookup in a file on local disk, so that after a restart lookups
+ * can be answered straight away from the previous run's results while the repositories are cloned in the background.
+ * <p>
+ * The file holds a header, identifying the format and its version, then each result along with its lookup and the
+ * entry it came from, then a CRC32 of everything before it. It is written to a temporary file that is moved into place,
+ * so a crash while writing leaves the previous snapshot intact, and is read back through a memory mapping. Each result
+ * is written with a digest of the properties of its entry that decide what a lookup finds, and results from an entry
+ * whose digest has changed since they were written are ignored, as are files that fail the check.
+ * <p>
+ * Vault results are never written, as they hold secrets and depend on the client's token. Git results can still hold
+ * sensitive values, so the file is readable by its owner alone where the file system supports POSIX permissions, and
+ * must be given an explicit path rather than defaulting to a shared temporary directory.
+ */
+@Slf4j
+public class CompositeDiskSnapshot {
+
+	private static final int MAGIC = 0x43435350;
+	private static final int FORMAT_VERSION = 2;
+	private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+	private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+	private static final int HEADER_LENGTH = 20;
+	private static final int CHECKSUM_LENGTH = 8;
+
+	private final Path path;
+	private final long startupWait;
+	private final List<String> backendIdentities = new ArrayList<>();
+	private final Map<LookupKey, Result> results;
+	private volatile Map<LookupKey, byte[]> bootResults = Collections.emptyMap();
+	private volatile boolean dirty;
+	private final ScheduledExecutorService writer;
+
+	public CompositeDiskSnapshot(CompositeProperties.DiskSnapshotProperties properties,
+								 List<CompositeProperties.DeclarativeCompositeProperties> composite) {
+		if (!StringUtils.hasText(properties.getPath())) {
+			throw new IllegalArgumentException("spring.cloud.config.server.disk-snapshot.path must be set when the disk snapshot is enabled");
+		}
+		this.path = Paths.get(properties.getPath());
+		this.startupWait = properties.getStartupWait();
+		backendIdentities.addAll(identities(composite));
+		this.results = new LinkedHashMap<LookupKey, Result>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<LookupKey, Result> eldest) {
+				return size() > properties.getMaxEntries();
+			}
+		};
+		this.writer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("composite-disk-snapshot-"));
+		writer.scheduleWithFixedDelay(this::writeIfChanged, properties.getInterval(), properties.getInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Read the snapshot left by the previous run, if there is a usable one
+	 *
+	 * @return the number of results loaded
+	 */
+	public int load() {
+		if (!Files.isRegularFile(path)) {
+			log.info("No composite snapshot found at {}", path);
+			return 0;
+		}
+		long start = System.nanoTime();
+		Map<LookupKey, byte[]> loaded = new HashMap<>();
+		long writtenAt;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_LENGTH + CHECKSUM_LENGTH || size > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("unexpected size of " + size + " bytes");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer checked = buffer.duplicate();
+			checked.limit((int) size - CHECKSUM_LENGTH);
+			CRC32 checksum = new CRC32();
+			checksum.update(checked);
+			if (checksum.getValue() != buffer.getLong((int) size - CHECKSUM_LENGTH)) {
+				throw new IllegalArgumentException("checksum does not match");
+			}
+			if (buffer.getInt() != MAGIC) {
+				throw new IllegalArgumentException("not a composite snapshot");
+			}
+			int formatVersion = buffer.getInt();
+			if (formatVersion != FORMAT_VERSION) {
+				throw new IllegalArgumentException("written in format " + formatVersion + " rather than " + FORMAT_VERSION);
+			}
+			writtenAt = buffer.getLong();
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				int backend = buffer.getInt();
+				String identity = EnvironmentCodec.readString(buffer);
+				LookupKey key = new LookupKey(backend, EnvironmentCodec.readString(buffer), EnvironmentCodec.readString(buffer),
+					EnvironmentCodec.readString(buffer), null);
+				byte[] encoded = new byte[buffer.getInt()];
+				buffer.get(encoded);
+				if (backend >= 0 && backend < backendIdentities.size() && backendIdentities.get(backend).equals(identity)) {
+					loaded.put(key, encoded);
+				}
+			}
+		} catch (IOException | IllegalArgumentException | BufferUnderflowException | NegativeArraySizeException e) {
+			log.warn("Ignoring composite snapshot at {}: {}", path, e.getMessage());
+			return 0;
+		}
+
+		synchronized (results) {
+			for (Map.Entry<LookupKey, byte[]> bootResult : loaded.entrySet()) {
+				results.putIfAbsent(bootResult.getKey(), new Result(null, bootResult.getValue()));
+			}
+		}
+		bootResults = Collections.unmodifiableMap(loaded);
+		log.info("Loaded {} results from composite snapshot written at {} in {} ms", loaded.size(),
+			new Date(writtenAt), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return loaded.size();
+	}
+
+	boolean hasBootResults() {
+		return !bootResults.isEmpty();
+	}
+
+	/**
+	 * @return how long, in milliseconds, a lookup with no result in the snapshot waits for the background clones
+	 */
+	long getStartupWait() {
+		return startupWait;
+	}
+
+	/**
+	 * @return a private copy of the result the previous run held for {@code key}, or {@code null} if there is none
+	 */
+	Environment getBootResult(LookupKey key) {
+		byte[] encoded = bootResults.get(key);
+		return encoded == null ? null : EnvironmentCodec.decode(encoded);
+	}
+
+	/**
+	 * Keep {@code environment} as the latest result for {@code key}, to be written with the next snapshot
+	 */
+	void record(LookupKey key, Environment environment) {
+		if (key.getTokenHash() != null) {
+			return;
+		}
+		String version = environment.getVersion();
+		synchronized (results) {
+			Result held = results.get(key);
+			if (held != null && version != null && version.equals(held.getVersion())) {
+				return;
+			}
+		}
+		// Encoding walks every key, so is done outside the lock
+		Result result = new Result(version, EnvironmentCodec.encode(environment));
+		synchronized (results) {
+			results.put(key, result);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Drop the results of every entry whose identifying properties are no longer the same at its index, after the
+	 * composite has been reloaded
+	 */
+	synchronized void updateBackends(List<CompositeProperties.DeclarativeCompositeProperties> composite) {
+		List<String> identities = identities(composite);
+		Map<LookupKey, byte[]> kept = new HashMap<>(bootResults);
+		kept.keySet().removeIf(key -> !sameBackend(key.getBackend(), identities));
+		bootResults = Collections.unmodifiableMap(kept);
+		synchronized (results) {
+			results.keySet().removeIf(key -> !sameBackend(key.getBackend(), identities));
+			dirty = true;
+		}
+		backendIdentities.clear();
+		backendIdentities.addAll(identities);
+	}
+
+	private boolean sameBackend(int backend, List<String> identities) {
+		return backend < identities.size() && backend < backendIdentities.size()
+			&& identities.get(backend).equals(backendIdentities.get(backend));
+	}
+
+	private static List<String> identities(List<CompositeProperties.DeclarativeCompositeProperties> composite) {
+		List<String> identities = new ArrayList<>(composite.size());
+		for (CompositeProperties.DeclarativeCompositeProperties entry : composite) {
+			identities.add(identity(entry));
+		}
+		return identities;
+	}
+
+	/**
+	 * Digest of the entry's type and of where each of its repositories is read from: the URI, search paths and local
+	 * directory of its own repository and, for each pattern matching repository, its name and patterns as well.
+	 * Credentials are left out, as they do not change what a successful lookup finds.
+	 */
+	static String identity(CompositeProperties.DeclarativeCompositeProperties entry) {
+		StringBuilder identity = new StringBuilder();
+		append(identity, entry.getType());
+		appendRepo(identity, entry);
+		if (entry.getRepos() != null) {
+			for (Map.Entry<String, CompositeProperties.PatternMatchingRepoProperties> repo : entry.getRepos().entrySet()) {
+				append(identity, repo.getKey());
+				append(identity, repo.getValue().getName());
+				append(identity, repo.getValue().getPattern());
+				appendRepo(identity, repo.getValue());
+			}
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.toString().getBytes(UTF_8));
+			return DatatypeConverter.printHexBinary(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static void appendRepo(StringBuilder identity, CompositeProperties.GitRepoProperties repo) {
+		append(identity, repo.getUri());
+		append(identity, repo.getSearchPaths());
+		append(identity, repo.getBasedir());
+	}
+
+	private static void append(StringBuilder identity, String[] values) {
+		identity.append(values == null ? -1 : values.length).append(';');
+		if (values != null) {
+			for (String value : values) {
+				append(identity, value);
+			}
+		}
+	}
+
+	/**
+	 * Values are written with their length, so that no two sequences of values are written alike
+	 */
+	private static void append(StringBuilder identity, String value) {
+		identity.append(value == null ? -1 : value.length()).append(':');
+		if (value != null) {
+			identity.append(value);
+		}
+	}
+
+	private void writeIfChanged() {
+		if (!dirty) {
+			return;
+		}
+		try {
+			write();
+		} catch (IOException | RuntimeException e) {
+			dirty = true;
+			log.warn("Unable to write composite snapshot to {}: {}", path, e.getMessage());
+		}
+	}
+
+	/**
+	 * Write every result held to the snapshot file, replacing the previous snapshot
+	 */
+	synchronized void write() throws IOException {
+		List<Map.Entry<LookupKey, Result>> entries;
+		synchronized (results) {
+			dirty = false;
+			entries = new ArrayList<>(results.size());
+			for (Map.Entry<LookupKey, Result> entry : results.entrySet()) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+			}
+		}
+
+		long start = System.nanoTime();
+		boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null && !Files.isDirectory(parent)) {
+			Files.createDirectories(parent, posix ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY)}
+				: new FileAttribute<?>[0]);
+		}
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		// Created afresh so that no one else can open it between its creation and its permissions being set
+		Files.deleteIfExists(temporary);
+		if (posix) {
+			Files.createFile(temporary, PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+		} else {
+			Files.createFile(temporary);
+		}
+		CRC32 checksum = new CRC32();
+		try (BufferedOutputStream file = new BufferedOutputStream(Files.newOutputStream(temporary,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), 64 * 1024)) {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(file, checksum));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(entries.size());
+			for (Map.Entry<LookupKey, Result> entry : entries) {
+				LookupKey key = entry.getKey();
+				out.writeInt(key.getBackend());
+				EnvironmentCodec.writeString(out, key.getBackend() < backendIdentities.size()
+					? backendIdentities.get(key.getBackend()) : null);
+				EnvironmentCodec.writeString(out, key.getApplication());
+				EnvironmentCodec.writeString(out, key.getProfile());
+				EnvironmentCodec.writeString(out, key.getLabel());
+				byte[] encoded = entry.getValue().getEncoded();
+				out.writeInt(encoded.length);
+				out.write(encoded);
+			}
+			out.flush();
+			// The checksum covers everything before it, so is written around the checked stream
+			new DataOutputStream(file).writeLong(checksum.getValue());
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.debug("Wrote {} results to composite snapshot {} in {} ms", entries.size(), path,
+			TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Stop the periodic writes, writing the results one last time if they changed since the last snapshot
+	 */
+	public void shutdown() {
+		writer.shutdownNow();
+		writeIfChanged();
+	}
+
+	@Value
+	private static class Result {
+		/**
+		 * Unknown for results carried over from the previous run, so that they are replaced by the first lookup
+		 */
+		String version;
+		byte[] encoded;
+	}
+}
@@ -0,0 +1,173 @@
+package me.ohughes.composite;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.config.environment.Environment;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Cache of {@link Environment} results sitting in front of the {@link DeclarativeCompositeEnvironmentRepository}.
+ * <p>
+ * Two kinds of entry are held in the same bounded store: the result of each individual backend, which expires
+ * according to the TTL configured for that backend type, and the merged composite result, which expires as soon as
+ * the earliest of the backend results it was built from. A merged miss therefore only goes back to the backends whose
+ * own entries have expired. The store is bounded by entry count and by an estimate of retained bytes, evicting the
+ * least recently used entries first.
+ * <p>
+ * Entries are keyed by {@link LookupKey}, so Vault and merged results are never shared between clients presenting
+ * different tokens.
+ */
+@Slf4j
+public class CompositeEnvironmentCache {
+
+	private final CompositeProperties.CacheProperties properties;
+	private final LinkedHashMap<LookupKey, CachedEnvironment> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public CompositeEnvironmentCache(CompositeProperties.CacheProperties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * @return a private copy of the cached environment, or {@code null} when absent or expired
+	 */
+	Environment get(LookupKey key) {
+		CachedEnvironment cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+			if (cached != null && cached.isExpired(System.currentTimeMillis())) {
+				remove(key);
+				expirations.increment();
+				cached = null;
+			}
+		}
+		if (cached == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return Environments.copy(cached.getEnvironment());
+	}
+
+	/**
+	 * @return the time at which the entry for {@code key} expires, or {@code 0} when there is no entry
+	 */
+	long expiresAt(LookupKey key) {
+		synchronized (entries) {
+			CachedEnvironment cached = entries.get(key);
+			return cached == null ? 0 : cached.getExpiresAt();
+		}
+	}
+
+	void put(LookupKey key, Environment environment, long expiresAt) {
+		Environment copy = Environments.copy(environment);
+		CachedEnvironment cached = new CachedEnvironment(copy, expiresAt, Environments.estimateSize(copy));
+		if (cached.getBytes() > properties.getMaxBytes()) {
+			log.debug("Not caching {} as its estimated size {} exceeds the cache limit", key, cached.getBytes());
+			return;
+		}
+		synchronized (entries) {
+			remove(key);
+			entries.put(key, cached);
+			totalBytes += cached.getBytes();
+			Iterator<Map.Entry<LookupKey, CachedEnvironment>> eldest = entries.entrySet().iterator();
+			while (entries.size() > properties.getMaxEntries() || totalBytes > properties.getMaxBytes()) {
+				Map.Entry<LookupKey, CachedEnvironment> evicted = eldest.next();
+				totalBytes -= evicted.getValue().getBytes();
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Time to live, in milliseconds, for results produced by backends of the supplied type
+	 */
+	long ttlFor(DeclarativeCompositeConfig.EnvironmentType type) {
+		Long ttl = properties.getTtl().get(type.getType());
+		return ttl == null ? properties.getDefaultTtl() : ttl;
+	}
+
+	public void evictAll() {
+		evictIf(key -> true);
+	}
+
+	public void evict(String application) {
+		evictIf(key -> Objects.equals(key.getApplication(), application));
+	}
+
+	public void evict(String application, String profile, String label) {
+		evictIf(key -> Objects.equals(key.getApplication(), application) && Objects.equals(key.getProfile(), profile)
+			&& Objects.equals(key.getLabel(), label));
+	}
+
+	/**
+	 * Evict every result produced by the backend at {@code index} in the composite, along with all merged results as
+	 * those may contain values from that backend
+	 */
+	public void evictBackend(int index) {
+		evictIf(key -> key.getBackend() == index || key.isComposite());
+	}
+
+	private void evictIf(Predicate<LookupKey> predicate) {
+		synchronized (entries) {
+			Iterator<Map.Entry<LookupKey, CachedEnvironment>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<LookupKey, CachedEnvironment> entry = iterator.next();
+				if (predicate.test(entry.getKey())) {
+					totalBytes -= entry.getValue().getBytes();
+					iterator.remove();
+					invalidations.increment();
+				}
+			}
+		}
+	}
+
+	private void remove(LookupKey key) {
+		CachedEnvironment removed = entries.remove(key);
+		if (removed != null) {
+			totalBytes -= removed.getBytes();
+		}
+	}
+
+	public Statistics getStatistics() {
+		synchronized (entries) {
+			return new Statistics(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), invalidations.sum(),
+				entries.size(), totalBytes);
+		}
+	}
+
+	@Value
+	private static class CachedEnvironment {
+		Environment environment;
+		long expiresAt;
+		long bytes;
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	@Value
+	public static class Statistics {
+		long hits;
+		long misses;
+		long evictions;
+		long expirations;
+		long invalidations;
+		int size;
+		long bytes;
+	}
+}
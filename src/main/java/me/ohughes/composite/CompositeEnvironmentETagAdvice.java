@@ -0,0 +1,62 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.EnvironmentController;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * Uses the version of each {@link Environment} served by the config server as its ETag, answering a request whose
+ * {@code If-None-Match} header already holds that version with {@code 304 Not Modified} and no body. The composite
+ * sets the version from the Git commits and Vault content it was built from, so a client refreshing unchanged
+ * configuration is spared the serialization and download of the whole environment.
+ */
+@ControllerAdvice(assignableTypes = EnvironmentController.class)
+public class CompositeEnvironmentETagAdvice implements ResponseBodyAdvice<Object> {
+
+	@Override
+	public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+		return Environment.class.isAssignableFrom(returnType.getParameterType());
+	}
+
+	@Override
+	public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+								  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+								  ServerHttpRequest request, ServerHttpResponse response) {
+		if (!(body instanceof Environment) || !hasText(((Environment) body).getVersion())
+			|| (request.getMethod() != HttpMethod.GET && request.getMethod() != HttpMethod.HEAD)) {
+			return body;
+		}
+		String eTag = '"' + ((Environment) body).getVersion() + '"';
+		response.getHeaders().setETag(eTag);
+		if (matches(request.getHeaders(), eTag)) {
+			response.setStatusCode(HttpStatus.NOT_MODIFIED);
+			return null;
+		}
+		return body;
+	}
+
+	private static boolean matches(HttpHeaders requestHeaders, String eTag) {
+		for (String candidate : requestHeaders.getIfNoneMatch()) {
+			String trimmed = candidate.trim();
+			// Weak comparison, as required for If-None-Match
+			if (trimmed.startsWith("W/")) {
+				trimmed = trimmed.substring(2);
+			}
+			if ("*".equals(trimmed) || eTag.equals(trimmed)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,34 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publish the outcome of the background fetch of each Git repository through the actuator {@code /metrics} endpoint,
+ * e.g. {@code composite.0.git.default.fetch.timestamp}
+ */
+public class CompositeGitFetchPublicMetrics implements PublicMetrics {
+
+	private final GitFetchScheduler fetchScheduler;
+
+	public CompositeGitFetchPublicMetrics(GitFetchScheduler fetchScheduler) {
+		this.fetchScheduler = fetchScheduler;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		for (GitFetchStatus status : fetchScheduler.getStatuses()) {
+			String prefix = status.getName() + ".fetch.";
+			metrics.add(new Metric<>(prefix + "timestamp", status.getLastFetch()));
+			metrics.add(new Metric<>(prefix + "duration", status.getLastFetchDuration()));
+			metrics.add(new Metric<>(prefix + "failures", status.getFailures().sum()));
+			metrics.add(new Metric<>(prefix + "fresh", status.isFresh() ? 1 : 0));
+		}
+		return metrics;
+	}
+}
@@ -0,0 +1,162 @@
+package me.ohughes.composite;
+
+import lombok.Getter;
+import lombok.Value;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long each backend of the composite takes to answer, how often it fails or is served stale, and how many
+ * keys it contributes to the merged result or has shadowed by an earlier backend, along with the time spent on whole
+ * composite lookups.
+ * Latencies are summarised over a sliding window of the most recent samples so that percentiles follow current
+ * behaviour rather than the whole lifetime of the server.
+ */
+public class CompositeLookupMetrics {
+
+	private final int windowSize;
+	private final Map<Integer, BackendStatistics> backends = new ConcurrentSkipListMap<>();
+	@Getter
+	private final LatencyWindow lookupLatency;
+	@Getter
+	private final LatencyWindow mergeLatency;
+
+	public CompositeLookupMetrics(int windowSize) {
+		this.windowSize = windowSize;
+		this.lookupLatency = new LatencyWindow(windowSize);
+		this.mergeLatency = new LatencyWindow(windowSize);
+	}
+
+	void recordBackend(DeclarativeCompositeHolder holder, long nanos, boolean failed) {
+		BackendStatistics statistics = statisticsFor(holder);
+		statistics.getLatency().update(nanos);
+		statistics.getRequests().increment();
+		if (failed) {
+			statistics.getErrors().increment();
+		}
+	}
+
+	/**
+	 * A lookup was refused by the backend's open circuit without calling the backend
+	 */
+	void recordRejected(DeclarativeCompositeHolder holder) {
+		statisticsFor(holder).getRejected().increment();
+	}
+
+	/**
+	 * A lookup was refused because the backend's bulkhead had no thread or queue space left
+	 */
+	void recordBulkheadRejected(DeclarativeCompositeHolder holder) {
+		statisticsFor(holder).getBulkheadRejected().increment();
+	}
+
+	/**
+	 * A failed lookup was answered with the backend's last good result
+	 */
+	void recordStale(DeclarativeCompositeHolder holder) {
+		statisticsFor(holder).getStale().increment();
+	}
+
+	void recordKeys(DeclarativeCompositeHolder holder, int contributed, int shadowed) {
+		BackendStatistics statistics = statisticsFor(holder);
+		statistics.getKeysContributed().add(contributed);
+		statistics.getKeysShadowed().add(shadowed);
+	}
+
+	/**
+	 * @param lookupNanos time taken to query every backend and merge the results
+	 * @param mergeNanos  time taken by the merge alone
+	 */
+	void recordLookup(long lookupNanos, long mergeNanos) {
+		lookupLatency.update(lookupNanos);
+		mergeLatency.update(mergeNanos);
+	}
+
+	public Collection<BackendStatistics> getBackends() {
+		return Collections.unmodifiableCollection(backends.values());
+	}
+
+	private BackendStatistics statisticsFor(DeclarativeCompositeHolder holder) {
+		return backends.computeIfAbsent(holder.getIndex(),
+			index -> new BackendStatistics(index, holder.getType().getType(), new LatencyWindow(windowSize)));
+	}
+
+	@Value
+	public static class BackendStatistics {
+		int index;
+		String type;
+		LatencyWindow latency;
+		LongAdder requests = new LongAdder();
+		LongAdder errors = new LongAdder();
+		LongAdder rejected = new LongAdder();
+		LongAdder bulkheadRejected = new LongAdder();
+		LongAdder stale = new LongAdder();
+		LongAdder keysContributed = new LongAdder();
+		LongAdder keysShadowed = new LongAdder();
+	}
+
+	/**
+	 * Ring buffer holding the most recent latency samples
+	 */
+	public static class LatencyWindow {
+
+		private final long[] samples;
+		private long count;
+
+		LatencyWindow(int size) {
+			this.samples = new long[size];
+		}
+
+		synchronized void update(long nanos) {
+			samples[(int) (count++ % samples.length)] = nanos;
+		}
+
+		public Snapshot snapshot() {
+			long[] sorted;
+			long total;
+			synchronized (this) {
+				sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+				total = count;
+			}
+			Arrays.sort(sorted);
+			return new Snapshot(total, sorted);
+		}
+	}
+
+	/**
+	 * Latency percentiles, in milliseconds, over the samples in a {@link LatencyWindow}
+	 */
+	public static class Snapshot {
+
+		@Getter
+		private final long count;
+		private final long[] sorted;
+
+		Snapshot(long count, long[] sorted) {
+			this.count = count;
+			this.sorted = sorted;
+		}
+
+		public double percentile(double quantile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(quantile * sorted.length) - 1;
+			return toMillis(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+		}
+
+		public double max() {
+			return sorted.length == 0 ? 0 : toMillis(sorted[sorted.length - 1]);
+		}
+
+		private static double toMillis(long nanos) {
+			return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publish {@link CompositeLookupMetrics} through the actuator {@code /metrics} endpoint. Backend metrics are named by
+ * composite index and type, e.g. {@code composite.backend.1.vault.latency.p99}; latencies are in milliseconds.
+ */
+public class CompositeLookupPublicMetrics implements PublicMetrics {
+
+	private final CompositeLookupMetrics lookupMetrics;
+
+	public CompositeLookupPublicMetrics(CompositeLookupMetrics lookupMetrics) {
+		this.lookupMetrics = lookupMetrics;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		for (CompositeLookupMetrics.BackendStatistics backend : lookupMetrics.getBackends()) {
+			String prefix = "composite.backend." + backend.getIndex() + "." + backend.getType() + ".";
+			metrics.add(new Metric<>(prefix + "requests", backend.getRequests().sum()));
+			metrics.add(new Metric<>(prefix + "errors", backend.getErrors().sum()));
+			metrics.add(new Metric<>(prefix + "rejected", backend.getRejected().sum()));
+			metrics.add(new Metric<>(prefix + "bulkhead.rejected", backend.getBulkheadRejected().sum()));
+			metrics.add(new Metric<>(prefix + "stale", backend.getStale().sum()));
+			metrics.add(new Metric<>(prefix + "keys.contributed", backend.getKeysContributed().sum()));
+			metrics.add(new Metric<>(prefix + "keys.shadowed", backend.getKeysShadowed().sum()));
+			addLatency(metrics, prefix + "latency.", backend.getLatency().snapshot());
+		}
+		addLatency(metrics, "composite.lookup.", lookupMetrics.getLookupLatency().snapshot());
+		addLatency(metrics, "composite.merge.", lookupMetrics.getMergeLatency().snapshot());
+		return metrics;
+	}
+
+	private static void addLatency(List<Metric<?>> metrics, String prefix, CompositeLookupMetrics.Snapshot snapshot) {
+		metrics.add(new Metric<>(prefix + "count", snapshot.getCount()));
+		metrics.add(new Metric<>(prefix + "p50", snapshot.percentile(0.5)));
+		metrics.add(new Metric<>(prefix + "p95", snapshot.percentile(0.95)));
+		metrics.add(new Metric<>(prefix + "p99", snapshot.percentile(0.99)));
+		metrics.add(new Metric<>(prefix + "max", snapshot.max()));
+	}
+}
@@ -4,7 +4,12 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import me.ohughes.proxy.properties.BaseProxyProperties;
+import me.ohughes.proxy.properties.HttpPoolProperties;
+import me.ohughes.proxy.properties.HttpTimeoutProperties;
+import me.ohughes.proxy.properties.RequestBufferProperties;
+import org.springframework.boot.bind.PropertiesConfigurationFactory;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.validation.annotation.Validated;
 
 import javax.validation.constraints.Pattern;
@@ -21,6 +26,36 @@ import java.util.Map;
 public class CompositeProperties {
 
 	private List<DeclarativeCompositeProperties> composite = new ArrayList<>();
+	private FanOutProperties fanOut = new FanOutProperties();
+	private VaultReadProperties vaultRead = new VaultReadProperties();
+	private CacheProperties cache = new CacheProperties();
+	private StartupCloneProperties startupClone = new StartupCloneProperties();
+	/**
+	 * Threads shared by the background fetches of every Git entry
+	 */
+	private int fetchThreads = 2;
+	private MetricsProperties metrics = new MetricsProperties();
+	private WarmUpProperties warmUp = new WarmUpProperties();
+	private ChangesProperties changes = new ChangesProperties();
+	private DiskSnapshotProperties diskSnapshot = new DiskSnapshotProperties();
+	private LazyInitProperties lazyInit = new LazyInitProperties();
+	private ReloadProperties reload = new ReloadProperties();
+
+	/**
+	 * Bind a copy of the properties from {@code environment}, apart from the configuration properties bean, which is
+	 * rebound in place on refresh. Backends are built from such a copy so that what they were built from stays put.
+	 */
+	static CompositeProperties bind(ConfigurableEnvironment environment) {
+		PropertiesConfigurationFactory<CompositeProperties> factory = new PropertiesConfigurationFactory<>(CompositeProperties.class);
+		factory.setPropertySources(environment.getPropertySources());
+		factory.setTargetName("spring.cloud.config.server");
+		try {
+			factory.bindPropertiesToTarget();
+			return factory.getObject();
+		} catch (Exception e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
 
 	@Data
 	@Validated
@@ -35,10 +70,232 @@ public class CompositeProperties {
 		private String backend;
 		private String profileSeparator;
 		private String defaultKey;
+		/**
+		 * Version of the KV secrets engine mounted at {@code backend}, only used by Vault entries
+		 */
+		private int kvVersion = 1;
+		/**
+		 * Read Git entries, and their pattern matching repositories, straight from the commit each label resolves to
+		 * instead of checking the label out, so that requests for different labels do not queue behind each other
+		 */
+		private boolean readWithoutCheckout;
+		private WorktreeProperties worktrees = new WorktreeProperties();
 		private BaseProxyProperties proxy;
+		private HttpPoolProperties pool = new HttpPoolProperties();
+		private HttpTimeoutProperties timeout = new HttpTimeoutProperties();
+		private ResilienceProperties resilience = new ResilienceProperties();
+		private BulkheadProperties bulkhead = new BulkheadProperties();
+		private RequestBufferProperties requestBuffer = new RequestBufferProperties();
+		private FetchProperties fetch = new FetchProperties();
+		private VaultCacheProperties secretCache = new VaultCacheProperties();
+		private VaultAsyncProperties async = new VaultAsyncProperties();
 		private Map<String, PatternMatchingRepoProperties> repos = new LinkedHashMap<>();
 	}
 
+	/**
+	 * Controls how the composite queries its backends. When enabled, every backend is queried at the same time on a
+	 * bounded pool so that a request costs roughly the slowest backend rather than the sum of all of them.
+	 */
+	@Data
+	public static class FanOutProperties {
+		private boolean enabled;
+		private int threads = 8;
+		private int queueCapacity = 100;
+	}
+
+	/**
+	 * Pool shared by every Vault entry for reading the secret paths of a lookup concurrently
+	 */
+	@Data
+	public static class VaultReadProperties {
+		private int threads = 16;
+		private int queueCapacity = 200;
+	}
+
+	/**
+	 * Bounds and expiry for the cache of composite results. Time to live values are in milliseconds and can be set per
+	 * backend type, e.g. {@code ttl.vault=10000}, falling back to {@code default-ttl}.
+	 */
+	@Data
+	public static class CacheProperties {
+		private boolean enabled;
+		private int maxEntries = 1000;
+		private long maxBytes = 64L * 1024 * 1024;
+		private long defaultTtl = 30000;
+		private Map<String, Long> ttl = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Cache of the secrets read by a Vault entry. A secret is used for the shorter of its lease and {@code ttl}
+	 * milliseconds before Vault is asked again. With {@code revalidate} set, an expired KV version 2 secret whose version
+	 * has not changed keeps being used, until {@code max-staleness} milliseconds after it was last read in full.
+	 */
+	@Data
+	public static class VaultCacheProperties {
+		private boolean enabled;
+		private int maxEntries = 10000;
+		private long ttl = 60000;
+		private boolean revalidate;
+		private long maxStaleness = 600000;
+	}
+
+	/**
+	 * Non-blocking reads for a Vault entry. Every secret path of a lookup is read at once through an asynchronous client
+	 * whose {@code io-threads} threads carry all of the entry's reads, instead of each read holding a thread of the
+	 * shared read pool while it waits on Vault. The entry's {@code proxy}, {@code pool} and {@code timeout} settings
+	 * apply as they do to the blocking client.
+	 */
+	@Data
+	public static class VaultAsyncProperties {
+		private boolean enabled;
+		private int ioThreads = 2;
+	}
+
+	/**
+	 * Composite lookup metrics. Latency percentiles are computed over the most recent {@code window} samples of each
+	 * backend.
+	 */
+	@Data
+	public static class MetricsProperties {
+		private boolean enabled = true;
+		private int window = 1024;
+	}
+
+	/**
+	 * Retained versions of merged results, from which the {@code /changes} endpoint works out which keys changed since
+	 * the version a client holds
+	 */
+	@Data
+	public static class ChangesProperties {
+		private boolean enabled;
+		private int versionsPerLookup = 3;
+		private int maxLookups = 500;
+	}
+
+	/**
+	 * Copy of the latest result of each Git entry for up to {@code max-entries} lookups, kept in the file at {@code path}
+	 * and rewritten every {@code interval} milliseconds while results change, and on shutdown. When the file holds
+	 * results on start, repositories with {@code clone-on-start} are cloned in the background rather than holding up
+	 * startup, and their lookups are answered from the file until they are ready. Lookups the file holds no result for
+	 * wait up to {@code startup-wait} milliseconds for the clones before failing. The {@code path} has no default, as
+	 * the file holds configuration that should not be left in a shared directory.
+	 */
+	@Data
+	public static class DiskSnapshotProperties {
+		private boolean enabled;
+		private String path;
+		private long interval = 60000;
+		private int maxEntries = 10000;
+		private long startupWait = 30000;
+	}
+
+	/**
+	 * Building of each entry's repository and HTTP client when it is first used rather than on start, so that startup
+	 * does not wait for entries that may never be queried. Repositories with {@code clone-on-start} are cloned when
+	 * they are built. With {@code background} set, every entry is built one after another in the background once the
+	 * composite has been created.
+	 */
+	@Data
+	public static class LazyInitProperties {
+		private boolean enabled;
+		private boolean background = true;
+	}
+
+	/**
+	 * Rebuilding of the composite when its entries change in the environment, as after a refresh, without a restart.
+	 * Entries that are unchanged keep their repository, clones and HTTP clients. Entries that are removed or changed are
+	 * shut down {@code grace-period} milliseconds after the new list is in use, leaving lookups already under way against
+	 * them time to finish.
+	 */
+	@Data
+	public static class ReloadProperties {
+		private boolean enabled;
+		private long gracePeriod = 30000;
+	}
+
+	/**
+	 * Background warm-up of the results of every entry other than Vault, whose results depend on the client's token,
+	 * after startup and whenever a background fetch brings in new commits. Targets are listed as
+	 * {@code application/profile[/label]}, and with {@code learn} set the most recent {@code learned-targets} distinct
+	 * lookups are warmed as well. Health is reported as out of service until {@code ready-percentage} of the listed
+	 * targets have been warmed. A target that fails is tried again after {@code retry-backoff} milliseconds, doubling
+	 * with each attempt up to {@code retry-max-backoff}.
+	 */
+	@Data
+	public static class WarmUpProperties {
+		private boolean enabled;
+		private List<String> targets = new ArrayList<>();
+		private boolean learn;
+		private int learnedTargets = 100;
+		private int threads = 2;
+		private int readyPercentage = 100;
+		private long retryBackoff = 1000;
+		private long retryMaxBackoff = 60000;
+	}
+
+	/**
+	 * Controls the clone of Git repositories with {@code clone-on-start} set. Up to {@code parallelism} repositories
+	 * are cloned at a time, and startup fails if they have not all been cloned within {@code deadline} milliseconds.
+	 */
+	@Data
+	public static class StartupCloneProperties {
+		private int parallelism = 4;
+		private long deadline = 300000;
+	}
+
+	/**
+	 * Working copies kept by a Git entry, and by each of its pattern matching repositories, one per label so that
+	 * requests for different labels are read concurrently. Up to {@code max-worktrees} copies holding at most
+	 * {@code max-bytes} of files are kept per repository, the least recently used being removed first. Not used when the
+	 * entry reads without checkout.
+	 */
+	@Data
+	public static class WorktreeProperties {
+		private boolean enabled;
+		private int maxWorktrees = 8;
+		private long maxBytes = 256L * 1024 * 1024;
+	}
+
+	/**
+	 * Background fetch of a Git entry's repositories. Each repository is fetched every {@code interval} plus up to
+	 * {@code jitter} milliseconds. Requests are served from the local clone while the last successful fetch is at most
+	 * {@code max-staleness} milliseconds old, and pull as usual after that.
+	 */
+	@Data
+	public static class FetchProperties {
+		private boolean enabled;
+		private long interval = 30000;
+		private long jitter = 5000;
+		private long maxStaleness = 120000;
+	}
+
+	/**
+	 * How the composite copes with a failing entry. A lookup that takes longer than {@code deadline} milliseconds, zero
+	 * meaning no limit, counts as a failure. After {@code failure-threshold} consecutive failures, zero meaning never,
+	 * the entry is not called for {@code open-duration} milliseconds. With {@code serve-stale} set, a failed lookup is
+	 * answered with the entry's last good result for it, keeping up to {@code stale-entries} of them.
+	 */
+	@Data
+	public static class ResilienceProperties {
+		private long deadline;
+		private int failureThreshold = 5;
+		private long openDuration = 30000;
+		private boolean serveStale;
+		private int staleEntries = 1000;
+	}
+
+	/**
+	 * Threads dedicated to an entry's lookups when the composite fans out, so that a slow entry cannot take the threads
+	 * other entries need. Up to {@code max-concurrency} lookups run at once and {@code queue-capacity} more wait; any
+	 * further lookup is rejected and answered as a failure of the entry.
+	 */
+	@Data
+	public static class BulkheadProperties {
+		private boolean enabled;
+		private int maxConcurrency = 8;
+		private int queueCapacity = 16;
+	}
+
 	@Data
 	public static class GitRepoProperties {
 		private boolean cloneOnStart;
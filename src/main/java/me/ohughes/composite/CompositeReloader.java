@@ -0,0 +1,230 @@
+package me.ohughes.composite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rebuilds the composite when its entries change in the environment, and swaps the new list of backends in while the
+ * old one carries on serving the lookups already under way against it.
+ * <p>
+ * The new list is built on a background thread from the entries bound afresh from the environment. An entry that is
+ * unchanged keeps its backend, with its clones, connection pools and caches, even when it has moved to another index;
+ * only entries that are new or have changed are built, and cloned, from scratch. Changes arriving while a reload is
+ * under way are picked up by one further reload. Backends that are no longer listed stop being fetched straight away
+ * and are shut down once the grace period has passed.
+ */
+@Slf4j
+public class CompositeReloader implements ApplicationListener<EnvironmentChangeEvent> {
+
+	private static final String COMPOSITE_PREFIX = "spring.cloud.config.server.composite";
+
+	private final DeclarativeCompositeEnvironmentRepository repository;
+	private final DeclarativeCompositeHolderFactory holderFactory;
+	private final ConfigurableEnvironment environment;
+	private final CompositeProperties.ReloadProperties properties;
+	private final GitFetchScheduler fetchScheduler;
+	private final VaultSecretCaches vaultSecretCaches;
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean pending = new AtomicBoolean();
+	private CompositeWarmUp warmUp;
+	private CompositeDiskSnapshot diskSnapshot;
+
+	public CompositeReloader(DeclarativeCompositeEnvironmentRepository repository, DeclarativeCompositeHolderFactory holderFactory,
+							 ConfigurableEnvironment environment, CompositeProperties.ReloadProperties properties,
+							 GitFetchScheduler fetchScheduler, VaultSecretCaches vaultSecretCaches) {
+		this.repository = repository;
+		this.holderFactory = holderFactory;
+		this.environment = environment;
+		this.properties = properties;
+		this.fetchScheduler = fetchScheduler;
+		this.vaultSecretCaches = vaultSecretCaches;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("composite-reload-"));
+	}
+
+	void setWarmUp(CompositeWarmUp warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	void setDiskSnapshot(CompositeDiskSnapshot diskSnapshot) {
+		this.diskSnapshot = diskSnapshot;
+	}
+
+	@Override
+	public void onApplicationEvent(EnvironmentChangeEvent event) {
+		if (event.getKeys().stream().noneMatch(key -> key.startsWith(COMPOSITE_PREFIX))) {
+			return;
+		}
+		if (pending.compareAndSet(false, true)) {
+			try {
+				executor.execute(this::reload);
+			} catch (RejectedExecutionException e) {
+				log.debug("Not reloading the composite as it is shutting down");
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the composite from the entries now in the environment, if they have changed
+	 */
+	void reload() {
+		// Cleared first, so that a change made while this reload runs is reloaded in turn
+		pending.set(false);
+		CompositeProperties properties;
+		try {
+			properties = CompositeProperties.bind(environment);
+		} catch (RuntimeException e) {
+			log.warn("Not reloading the composite as its entries could not be bound: {}", e.getMessage());
+			return;
+		}
+		// The entries the current backends were built from
+		List<CompositeProperties.DeclarativeCompositeProperties> current = repository.getProperties().getComposite();
+		List<CompositeProperties.DeclarativeCompositeProperties> composite = properties.getComposite();
+		if (composite.equals(current)) {
+			log.debug("Composite entries are unchanged, so not reloading");
+			return;
+		}
+
+		long start = System.nanoTime();
+		List<DeclarativeCompositeHolder> previous = repository.getEnvironmentRepositories();
+		int[] reused = reusedIndexes(composite, current, previous);
+		Map<Integer, VaultSecretCache> previousCaches = new HashMap<>(vaultSecretCaches.getCaches());
+		Map<Integer, VaultSecretCache> caches = new HashMap<>();
+		List<DeclarativeCompositeHolder> holders = new ArrayList<>(composite.size());
+		List<DeclarativeCompositeHolder> created = new ArrayList<>();
+		int moved = 0;
+		try {
+			for (int index = 0; index < composite.size(); index++) {
+				DeclarativeCompositeHolder environmentHolder;
+				if (reused[index] == index) {
+					environmentHolder = previous.get(index);
+				} else if (reused[index] >= 0) {
+					environmentHolder = DeclarativeCompositeHolderFactory.move(previous.get(reused[index]), index);
+					moved++;
+				} else {
+					environmentHolder = holderFactory.create(properties, index, null);
+					created.add(environmentHolder);
+				}
+				holders.add(environmentHolder);
+				VaultSecretCache cache = reused[index] >= 0 ? previousCaches.get(reused[index]) : vaultSecretCaches.get(index);
+				// A new entry without a cache leaves the cache of whatever was at its index before in place
+				if (cache != null && (reused[index] >= 0 || cache != previousCaches.get(index))) {
+					caches.put(index, cache);
+				}
+			}
+		} catch (RuntimeException e) {
+			log.warn("Unable to reload the composite, carrying on with the current back ends: {}", e.getMessage(), e);
+			created.forEach(this::retire);
+			vaultSecretCaches.replaceAll(previousCaches);
+			return;
+		}
+
+		for (int index = 0; index < composite.size(); index++) {
+			if (reused[index] >= 0 && reused[index] != index) {
+				// Fetches report, and evict the cache, by index, so are started again under the new one
+				fetchScheduler.unschedule(previous.get(reused[index]));
+				CompositeProperties.FetchProperties fetch = composite.get(index).getFetch();
+				if (holders.get(index).getType() == DeclarativeCompositeConfig.EnvironmentType.GIT && fetch.isEnabled()) {
+					fetchScheduler.schedule(holders.get(index), fetch);
+				}
+			}
+		}
+		repository.replaceBackends(holders, properties);
+		vaultSecretCaches.replaceAll(caches);
+		if (diskSnapshot != null) {
+			diskSnapshot.updateBackends(composite);
+		}
+
+		Set<DeclarativeCompositeHolder> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int index : reused) {
+			if (index >= 0) {
+				kept.add(previous.get(index));
+			}
+		}
+		int retired = 0;
+		for (DeclarativeCompositeHolder environmentHolder : previous) {
+			if (environmentHolder != null && !kept.contains(environmentHolder)) {
+				retire(environmentHolder);
+				retired++;
+			}
+		}
+		log.info("Reloaded the composite in {} ms: {} back ends kept, {} moved, {} built and {} retired",
+			TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), composite.size() - moved - created.size(), moved,
+			created.size(), retired);
+		if (warmUp != null) {
+			warmUp.warmAll();
+		}
+	}
+
+	/**
+	 * For each new entry, the index of the current backend that can serve it, or -1 if it must be built. A backend is
+	 * kept at its own index where it can be, and otherwise only moved once it has been built.
+	 */
+	private int[] reusedIndexes(List<CompositeProperties.DeclarativeCompositeProperties> composite,
+								List<CompositeProperties.DeclarativeCompositeProperties> current,
+								List<DeclarativeCompositeHolder> previous) {
+		int[] reused = new int[composite.size()];
+		boolean[] claimed = new boolean[previous.size()];
+		for (int index = 0; index < composite.size(); index++) {
+			reused[index] = -1;
+			if (reusable(composite.get(index), index, current, previous)) {
+				reused[index] = index;
+				claimed[index] = true;
+			}
+		}
+		for (int index = 0; index < composite.size(); index++) {
+			for (int candidate = 0; candidate < previous.size() && reused[index] < 0; candidate++) {
+				if (!claimed[candidate] && reusable(composite.get(index), candidate, current, previous)
+					&& previous.get(candidate).isInitialized()) {
+					reused[index] = candidate;
+					claimed[candidate] = true;
+				}
+			}
+		}
+		return reused;
+	}
+
+	private static boolean reusable(CompositeProperties.DeclarativeCompositeProperties entry, int index,
+									List<CompositeProperties.DeclarativeCompositeProperties> current,
+									List<DeclarativeCompositeHolder> previous) {
+		return index < previous.size() && index < current.size() && previous.get(index) != null
+			&& entry.equals(current.get(index));
+	}
+
+	/**
+	 * Stop fetching a backend that is no longer listed, and shut it down once lookups under way have had time to finish
+	 */
+	private void retire(DeclarativeCompositeHolder environmentHolder) {
+		if (environmentHolder == null) {
+			return;
+		}
+		fetchScheduler.unschedule(environmentHolder);
+		executor.schedule(() -> {
+			// A backend built lazily may have been built, and scheduled its own fetches, since it was retired
+			fetchScheduler.unschedule(environmentHolder);
+			repository.close(environmentHolder);
+		}, properties.getGracePeriod(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop reloading and shut down every retired backend straight away
+	 */
+	public void shutdown() {
+		executor.shutdownNow().forEach(Runnable::run);
+	}
+}
@@ -1,21 +1,18 @@
 package me.ohughes.composite;
 
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.BeanUtils;
-import org.springframework.beans.BeanWrapper;
-import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
 import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
 import org.springframework.cloud.config.server.environment.VaultEnvironmentRepository;
 import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.stereotype.Component;
 
-import java.beans.FeatureDescriptor;
 import java.io.File;
 import java.util.*;
-import java.util.stream.Stream;
 
 /**
- * Convert POJOs derived from composite @ConfigurationProperties into appropriate (Git or Vault) EnvironmentRepository
+ * Convert POJOs derived from composite @ConfigurationProperties into appropriate (Git or Vault) EnvironmentRepository.
+ * Properties are copied by a {@link PropertyCopier}, so each pair of classes is introspected only once.
  */
 @Slf4j
 @Component
@@ -23,9 +20,9 @@ public class CompositeRepositoryConverter {
 
 
 	MultipleJGitEnvironmentRepository convertPropertiesToGitEnvironment(ConfigurableEnvironment environment, CompositeProperties.DeclarativeCompositeProperties configProperties) {
-		MultipleJGitEnvironmentRepository multiGitEnv = new MultipleJGitEnvironmentRepository(environment);
+		MultipleJGitEnvironmentRepository multiGitEnv = new FetchAwareJGitEnvironmentRepository(environment);
 		Map<String, MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository> convertedRepoMap = new LinkedHashMap<>();
-		BeanUtils.copyProperties(configProperties, multiGitEnv, "repos");
+		PropertyCopier.of(configProperties.getClass(), multiGitEnv.getClass(), "repos").copy(configProperties, multiGitEnv);
 
 		// Important to explicitly set basedir as property types do not match
 		setGitBasedirIfAvailable(configProperties, multiGitEnv);
@@ -38,30 +35,37 @@ public class CompositeRepositoryConverter {
 
 		//Map properties for each set of nested git repositories individually
 		for (Map.Entry<String, CompositeProperties.PatternMatchingRepoProperties> patternRepoEntry : extraRepoProperties){
-			MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository patternMatchingRepo = new MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository();
+			FetchAwareJGitEnvironmentRepository.FetchAwarePatternMatchingJGitEnvironmentRepository patternMatchingRepo = new FetchAwareJGitEnvironmentRepository.FetchAwarePatternMatchingJGitEnvironmentRepository();
 
 			// Important that the patternMatchingrepo has its environment set as well as its name. Failure to set
 			// the environment will cause property searches to fail.
 			patternMatchingRepo.setName(patternRepoEntry.getKey());
 			patternMatchingRepo.setEnvironment(multiGitEnv.getEnvironment());
 
-			BeanUtils.copyProperties(patternRepoEntry.getValue(), patternMatchingRepo, getNullPropertyNames(patternRepoEntry.getValue()));
+			PropertyCopier.of(patternRepoEntry.getValue().getClass(), patternMatchingRepo.getClass())
+				.copyNonNull(patternRepoEntry.getValue(), patternMatchingRepo);
 
 			// Important to explicitly set basedir as property types do not match
 			setGitBasedirIfAvailable(patternRepoEntry, patternMatchingRepo);
+			patternMatchingRepo.setReadWithoutCheckout(configProperties.isReadWithoutCheckout());
+			patternMatchingRepo.setWorktrees(configProperties.getWorktrees());
 
 			convertedRepoMap.put(patternMatchingRepo.getName(), patternMatchingRepo);
 		}
 
+		// Cloning on start is left to the GitStartupCloner so that every repository in the composite clones concurrently
 		multiGitEnv.setRepos(convertedRepoMap);
-		requestGitCloneOnStart(multiGitEnv);
 
 		return multiGitEnv;
 	}
 
-	public VaultEnvironmentRepository convertPropertiesToVaultEnvironment(Object configProperties, VaultEnvironmentRepository vaultEnv) {
+	/**
+	 * Copy the Vault settings of {@code configProperties} onto {@code vaultEnv}, which may be a
+	 * {@link VaultEnvironmentRepository} or any repository exposing the same properties
+	 */
+	public <T extends EnvironmentRepository> T convertPropertiesToVaultEnvironment(Object configProperties, T vaultEnv) {
 
-		BeanUtils.copyProperties(configProperties, vaultEnv, getNullPropertyNames(configProperties));
+		PropertyCopier.of(configProperties.getClass(), vaultEnv.getClass()).copyNonNull(configProperties, vaultEnv);
 		return vaultEnv;
 	}
 
@@ -78,34 +82,4 @@ public class CompositeRepositoryConverter {
 			patternMatchingRepo.setBasedir(new File(patternRepoEntry.getValue().getBasedir()));
 		}
 	}
-
-	/**
-	 * Requests the supplied {@code multipleJGitEnvironmentRepository} to carry out a "start up" clone of its git repositories to
-	 * local storage by invoking its {@link MultipleJGitEnvironmentRepository#afterPropertiesSet()} method.<br/>
-	 * Note 1: that this call will also trigger a git clone action on any sub-repositories that are contained by
-	 * {@code multipleJGitEnvironmentRepository}.
-	 * Note 2: any "cloneOnStart" value for this repository (and its sub-repositories) will be respected when
-	 * determining whether or not to carry out the clone action. Only those repositories that have a "cloneOnStart"
-	 * property with a value of {@code true} will be cloned. The remaining repositories will exhibit "clone on demand"
-	 * behaviour and only clone from their remote git repository when a subsequent configuration request demands it.
-	 *
-	 * @param multipleJGitEnvironmentRepository a git environment repository
-	 */
-	private void requestGitCloneOnStart(MultipleJGitEnvironmentRepository multipleJGitEnvironmentRepository) {
-		try {
-			multipleJGitEnvironmentRepository.afterPropertiesSet();
-		} catch (Exception e) {
-			log.info("Error occurred attempting to clone git repo on start: {} ", e.getMessage());
-			throw new IllegalStateException(String.format("Error occurred attempting to clone git repo on start: %s",
-				e.getMessage()), e);
-		}
-	}
-
-	private static String[] getNullPropertyNames (Object source) {
-		final BeanWrapper wrappedSource = new BeanWrapperImpl(source);
-		return Stream.of(wrappedSource.getPropertyDescriptors())
-			.map(FeatureDescriptor::getName)
-			.filter(propertyName -> wrappedSource.getPropertyValue(propertyName) == null)
-			.toArray(String[]::new);
-	}
 }
@@ -0,0 +1,100 @@
+package me.ohughes.composite;
+
+import lombok.Value;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recent versions of each merged composite result, flattened to the value that wins for each key and the property
+ * source it comes from, so that a client can be sent just the keys that changed since the version it holds.
+ * <p>
+ * Up to {@code versionsPerLookup} versions are kept for each lookup, and versions are kept for at most
+ * {@code maxLookups} lookups, dropping the least recently used. Lookups are identified by {@link LookupKey}, so a
+ * client is only ever compared against versions built with its own Vault token.
+ */
+public class CompositeSnapshots {
+
+	private final int versionsPerLookup;
+	private final Map<LookupKey, Deque<Snapshot>> snapshots;
+
+	public CompositeSnapshots(CompositeProperties.ChangesProperties properties) {
+		this.versionsPerLookup = properties.getVersionsPerLookup();
+		this.snapshots = new LinkedHashMap<LookupKey, Deque<Snapshot>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<LookupKey, Deque<Snapshot>> eldest) {
+				return size() > properties.getMaxLookups();
+			}
+		};
+	}
+
+	/**
+	 * Keep {@code environment} as the latest version of {@code key}, unless that version is already held
+	 */
+	void record(LookupKey key, Environment environment) {
+		String version = environment.getVersion();
+		if (version == null || get(key, version) != null) {
+			return;
+		}
+		// Flattening walks every key, so is done outside the lock
+		Snapshot snapshot = new Snapshot(version, flatten(environment));
+		synchronized (snapshots) {
+			Deque<Snapshot> versions = snapshots.computeIfAbsent(key, k -> new ArrayDeque<>(versionsPerLookup + 1));
+			versions.removeIf(held -> held.getVersion().equals(version));
+			versions.addLast(snapshot);
+			while (versions.size() > versionsPerLookup) {
+				versions.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * @return the winning values of {@code version} of {@code key}, or {@code null} if that version is not held
+	 */
+	Map<String, Winner> get(LookupKey key, String version) {
+		synchronized (snapshots) {
+			Deque<Snapshot> versions = snapshots.get(key);
+			if (versions != null) {
+				for (Snapshot snapshot : versions) {
+					if (snapshot.getVersion().equals(version)) {
+						return snapshot.getWinners();
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value that wins for each key of {@code environment} along with the source it comes from
+	 */
+	static Map<String, Winner> flatten(Environment environment) {
+		Map<String, Winner> winners = new LinkedHashMap<>();
+		for (PropertySource source : environment.getPropertySources()) {
+			if (source.getSource() == null) {
+				continue;
+			}
+			for (Map.Entry<?, ?> entry : source.getSource().entrySet()) {
+				winners.putIfAbsent(String.valueOf(entry.getKey()), new Winner(entry.getValue(), source.getName()));
+			}
+		}
+		return Collections.unmodifiableMap(winners);
+	}
+
+	@Value
+	private static class Snapshot {
+		String version;
+		Map<String, Winner> winners;
+	}
+
+	@Value
+	public static class Winner {
+		Object value;
+		String source;
+	}
+}
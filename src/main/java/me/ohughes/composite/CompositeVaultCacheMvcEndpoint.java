@@ -0,0 +1,62 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * Actuator endpoint reporting the statistics of each {@link VaultSecretCache} and allowing secrets to be invalidated
+ * once changed in Vault, e.g. {@code POST /composite-vault-cache/evict?backend=1&path=myapp}. An application's path
+ * invalidates the paths of its profiles too, such as {@code myapp,dev}. Omitting {@code path} invalidates every
+ * secret of the entry, and omitting {@code backend} as well invalidates every cache. Merged results held by the
+ * {@link CompositeEnvironmentCache} are evicted along with the secrets they may contain.
+ */
+public class CompositeVaultCacheMvcEndpoint extends AbstractNamedMvcEndpoint {
+
+	private final VaultSecretCaches secretCaches;
+	private final CompositeEnvironmentCache environmentCache;
+
+	/**
+	 * @param environmentCache may be {@code null} when composite results are not cached
+	 */
+	public CompositeVaultCacheMvcEndpoint(VaultSecretCaches secretCaches, CompositeEnvironmentCache environmentCache) {
+		super("compositevaultcache", "/composite-vault-cache", true);
+		this.secretCaches = secretCaches;
+		this.environmentCache = environmentCache;
+	}
+
+	@GetMapping
+	@ResponseBody
+	public Map<Integer, VaultSecretCache.Statistics> statistics() {
+		Map<Integer, VaultSecretCache.Statistics> statistics = new LinkedHashMap<>();
+		secretCaches.getCaches().forEach((index, cache) -> statistics.put(index, cache.getStatistics()));
+		return statistics;
+	}
+
+	@PostMapping("/evict")
+	@ResponseBody
+	public Map<Integer, VaultSecretCache.Statistics> evict(@RequestParam(required = false) Integer backend,
+														   @RequestParam(required = false) String path) {
+		for (Map.Entry<Integer, VaultSecretCache> cache : secretCaches.getCaches().entrySet()) {
+			if (backend != null && backend.intValue() != cache.getKey()) {
+				continue;
+			}
+			if (hasText(path)) {
+				cache.getValue().invalidate(path);
+			} else {
+				cache.getValue().invalidateAll();
+			}
+			if (environmentCache != null) {
+				environmentCache.evictBackend(cache.getKey());
+			}
+		}
+		return statistics();
+	}
+}
@@ -0,0 +1,38 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publish the counters of each {@link VaultSecretCache} through the actuator {@code /metrics} endpoint, named by
+ * composite index, e.g. {@code composite.1.vault.cache.hits}
+ */
+public class CompositeVaultCachePublicMetrics implements PublicMetrics {
+
+	private final VaultSecretCaches secretCaches;
+
+	public CompositeVaultCachePublicMetrics(VaultSecretCaches secretCaches) {
+		this.secretCaches = secretCaches;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		for (Map.Entry<Integer, VaultSecretCache> cache : secretCaches.getCaches().entrySet()) {
+			String prefix = "composite." + cache.getKey() + ".vault.cache.";
+			VaultSecretCache.Statistics statistics = cache.getValue().getStatistics();
+			metrics.add(new Metric<>(prefix + "hits", statistics.getHits()));
+			metrics.add(new Metric<>(prefix + "misses", statistics.getMisses()));
+			metrics.add(new Metric<>(prefix + "revalidations", statistics.getRevalidations()));
+			metrics.add(new Metric<>(prefix + "evictions", statistics.getEvictions()));
+			metrics.add(new Metric<>(prefix + "invalidations", statistics.getInvalidations()));
+			metrics.add(new Metric<>(prefix + "size", statistics.getSize()));
+		}
+		return metrics;
+	}
+}
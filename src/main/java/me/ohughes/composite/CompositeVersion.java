@@ -0,0 +1,78 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * Computes the version of a merged composite result, which changes whenever the result could have changed.
+ * <p>
+ * Git entries report the commit id they were read from, which identifies their content, so only that id is hashed.
+ * Entries without a version, such as Vault, contribute a hash of their content instead. Property sources are hashed
+ * in order but the entries within a source are sorted first, as secrets read from Vault have no stable order.
+ */
+class CompositeVersion {
+
+	private static final byte SEPARATOR = 0;
+
+	private CompositeVersion() {
+	}
+
+	/**
+	 * @param environments the result of each backend, in composite order
+	 */
+	static String of(List<Environment> environments) {
+		MessageDigest digest = sha256();
+		for (Environment environment : environments) {
+			if (hasText(environment.getVersion())) {
+				update(digest, "version");
+				update(digest, environment.getVersion());
+			} else {
+				update(digest, "content");
+				for (PropertySource source : environment.getPropertySources()) {
+					update(digest, source.getName());
+					updateSorted(digest, source.getSource());
+				}
+			}
+			update(digest, "end");
+		}
+		// Half of the digest is ample to tell versions of the same resource apart and keeps the ETag short
+		byte[] hash = digest.digest();
+		return DatatypeConverter.printHexBinary(Arrays.copyOf(hash, hash.length / 2)).toLowerCase();
+	}
+
+	private static void updateSorted(MessageDigest digest, Map<?, ?> source) {
+		if (source == null) {
+			return;
+		}
+		List<Map.Entry<?, ?>> entries = new ArrayList<>(source.entrySet());
+		entries.sort((left, right) -> String.valueOf(left.getKey()).compareTo(String.valueOf(right.getKey())));
+		for (Map.Entry<?, ?> entry : entries) {
+			update(digest, String.valueOf(entry.getKey()));
+			update(digest, String.valueOf(entry.getValue()));
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update(SEPARATOR);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package me.ohughes.composite;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cloud.config.server.environment.NoSuchLabelException;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Looks up known application, profile and label combinations in the background, once the application is ready and
+ * again whenever a backend changes, so that deploys do not all pay for the first, cold, lookup of their configuration.
+ * <p>
+ * Targets are the combinations listed in the configuration together with, optionally, those most recently requested.
+ * Only the listed targets count towards readiness, which is reached once the configured percentage of them has been
+ * warmed and is not lost when a backend later changes. A target that fails, or whose Git results are still being
+ * served from the disk snapshot while repositories are cloned, is tried again with exponential backoff until it is
+ * warmed. A target naming a label or repository that does not exist is not retried, and counts towards readiness as
+ * though warmed since no retry could warm it.
+ */
+@Slf4j
+public class CompositeWarmUp implements ApplicationListener<ApplicationReadyEvent> {
+
+	private final CompositeProperties.WarmUpProperties properties;
+	private final Set<WarmUpTarget> configuredTargets = new LinkedHashSet<>();
+	private final Map<WarmUpTarget, Boolean> learnedTargets;
+	private final Set<WarmUpTarget> warmedTargets = ConcurrentHashMap.newKeySet();
+	private final Set<WarmUpTarget> unavailableTargets = ConcurrentHashMap.newKeySet();
+	private final Map<WarmUpTarget, Integer> attempts = new ConcurrentHashMap<>();
+	private final Set<WarmUpTarget> pendingRetries = ConcurrentHashMap.newKeySet();
+	private final LongAdder failures = new LongAdder();
+	private final ScheduledThreadPoolExecutor executor;
+	private DeclarativeCompositeEnvironmentRepository repository;
+	private volatile boolean ready;
+
+	public CompositeWarmUp(CompositeProperties.WarmUpProperties properties) {
+		this.properties = properties;
+		for (String target : properties.getTargets()) {
+			configuredTargets.add(WarmUpTarget.parse(target));
+		}
+		this.learnedTargets = new LinkedHashMap<WarmUpTarget, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<WarmUpTarget, Boolean> eldest) {
+				return size() > properties.getLearnedTargets();
+			}
+		};
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(properties.getThreads(),
+			new CustomizableThreadFactory("composite-warm-up-"));
+		executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+	}
+
+	void setRepository(DeclarativeCompositeEnvironmentRepository repository) {
+		this.repository = repository;
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		log.info("Warming up {} configured and {} learned composite targets", configuredTargets.size(), learnedTargetCount());
+		warmAll();
+	}
+
+	/**
+	 * Warm every target in the background. Targets already being warmed share the work in flight.
+	 */
+	public void warmAll() {
+		if (repository == null) {
+			return;
+		}
+		for (WarmUpTarget target : targets()) {
+			try {
+				executor.execute(() -> warm(target));
+			} catch (RejectedExecutionException e) {
+				log.debug("Not warming {} as warm-up has shut down", target);
+				return;
+			}
+		}
+	}
+
+	private void warm(WarmUpTarget target) {
+		try {
+			if (!repository.warm(target.getApplication(), target.getProfile(), target.getLabel())) {
+				log.debug("Not yet able to warm up {} as git repos are still being cloned", target);
+				retry(target);
+				return;
+			}
+			warmedTargets.add(target);
+			unavailableTargets.remove(target);
+			attempts.remove(target);
+		} catch (RuntimeException e) {
+			failures.increment();
+			if (isUnavailable(e)) {
+				log.warn("Not warming up {} as it does not exist: {}", target, e.getMessage());
+				unavailableTargets.add(target);
+				attempts.remove(target);
+			} else {
+				log.warn("Unable to warm up {}: {}", target, e.getMessage());
+				retry(target);
+			}
+		}
+	}
+
+	/**
+	 * Warm {@code target} again after a backoff that doubles with each consecutive attempt, unless a retry is already
+	 * pending or the target has since been dropped
+	 */
+	private void retry(WarmUpTarget target) {
+		if (!configuredTargets.contains(target) && !isLearned(target)) {
+			attempts.remove(target);
+			return;
+		}
+		if (!pendingRetries.add(target)) {
+			return;
+		}
+		int attempt = attempts.merge(target, 1, Integer::sum);
+		long backoff = Math.min(properties.getRetryMaxBackoff(),
+			properties.getRetryBackoff() << Math.min(attempt - 1, 30));
+		try {
+			executor.schedule(() -> {
+				pendingRetries.remove(target);
+				warm(target);
+			}, backoff, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pendingRetries.remove(target);
+			log.debug("Not retrying {} as warm-up has shut down", target);
+		}
+	}
+
+	/**
+	 * @return whether the lookup failed because its label or repository does not exist, which no retry will change
+	 */
+	private static boolean isUnavailable(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof NoSuchLabelException || cause instanceof InvalidRemoteException
+				|| cause instanceof NoRemoteRepositoryException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remember a requested combination, if targets are learned from traffic
+	 */
+	void record(String application, String profile, String label) {
+		if (!properties.isLearn()) {
+			return;
+		}
+		WarmUpTarget target = new WarmUpTarget(application, profile, label);
+		synchronized (learnedTargets) {
+			learnedTargets.put(target, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * @return whether enough of the configured targets have been warmed, or found not to exist, for the server to take
+	 * traffic
+	 */
+	public boolean isReady() {
+		if (!ready) {
+			long attempted = configuredTargets.stream()
+				.filter(target -> warmedTargets.contains(target) || unavailableTargets.contains(target))
+				.count();
+			ready = attempted * 100 >= (long) properties.getReadyPercentage() * configuredTargets.size();
+		}
+		return ready;
+	}
+
+	public Progress getProgress() {
+		long warmed = configuredTargets.stream().filter(warmedTargets::contains).count();
+		long unavailable = configuredTargets.stream().filter(unavailableTargets::contains).count();
+		return new Progress(configuredTargets.size(), (int) warmed, (int) unavailable, learnedTargetCount(),
+			failures.sum());
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private List<WarmUpTarget> targets() {
+		Set<WarmUpTarget> targets = new LinkedHashSet<>(configuredTargets);
+		synchronized (learnedTargets) {
+			targets.addAll(learnedTargets.keySet());
+		}
+		return new ArrayList<>(targets);
+	}
+
+	private boolean isLearned(WarmUpTarget target) {
+		synchronized (learnedTargets) {
+			return learnedTargets.containsKey(target);
+		}
+	}
+
+	private int learnedTargetCount() {
+		synchronized (learnedTargets) {
+			return learnedTargets.size();
+		}
+	}
+
+	@Value
+	static class WarmUpTarget {
+		String application;
+		String profile;
+		String label;
+
+		/**
+		 * @param target in the form {@code application/profile[/label]}
+		 */
+		static WarmUpTarget parse(String target) {
+			String[] parts = target.trim().split("/", 3);
+			if (parts.length < 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+				throw new IllegalArgumentException(String.format("Warm-up target '%s' is not of the form application/profile[/label]", target));
+			}
+			return new WarmUpTarget(parts[0], parts[1], parts.length == 3 && !parts[2].isEmpty() ? parts[2] : null);
+		}
+
+		@Override
+		public String toString() {
+			return application + "/" + profile + (label == null ? "" : "/" + label);
+		}
+	}
+
+	@Value
+	public static class Progress {
+		int targets;
+		int warmed;
+		/**
+		 * Configured targets whose label or repository does not exist
+		 */
+		int unavailable;
+		int learned;
+		long failures;
+	}
+}
@@ -0,0 +1,29 @@
+package me.ohughes.composite;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+/**
+ * Reports the server as out of service, and so not ready for traffic, until {@link CompositeWarmUp} has warmed enough
+ * of its configured targets, counting those that do not exist as done
+ */
+public class CompositeWarmUpHealthIndicator extends AbstractHealthIndicator {
+
+	private final CompositeWarmUp warmUp;
+
+	public CompositeWarmUpHealthIndicator(CompositeWarmUp warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	@Override
+	protected void doHealthCheck(Health.Builder builder) {
+		CompositeWarmUp.Progress progress = warmUp.getProgress();
+		builder.status(warmUp.isReady() ? Status.UP : Status.OUT_OF_SERVICE)
+			.withDetail("targets", progress.getTargets())
+			.withDetail("warmed", progress.getWarmed())
+			.withDetail("unavailable", progress.getUnavailable())
+			.withDetail("learned", progress.getLearned())
+			.withDetail("failures", progress.getFailures());
+	}
+}
@@ -2,29 +2,33 @@ package me.ohughes.composite;
 
 import lombok.extern.slf4j.Slf4j;
 import me.ohughes.proxy.BaseProxyConfiguration;
-import me.ohughes.proxy.ProxyAwareHttpClientFactory;
-import org.apache.http.client.HttpClient;
+import me.ohughes.proxy.RoutingHttpConnectionFactory;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.eclipse.jgit.transport.HttpTransport;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.config.server.EnableConfigServer;
-import org.springframework.cloud.config.server.environment.EnvironmentRepository;
-import org.springframework.cloud.config.server.environment.EnvironmentWatch;
-import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
-import org.springframework.cloud.config.server.environment.VaultEnvironmentRepository;
+import org.springframework.cloud.config.server.config.ConfigServerProperties;
+import org.springframework.cloud.config.server.encryption.EnvironmentEncryptor;
+import org.springframework.cloud.config.server.environment.EnvironmentEncryptorEnvironmentRepository;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.ConfigurableEnvironment;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Setup appropriate environment repositories based on what is listed in the composite config key
@@ -39,49 +43,274 @@ public class DeclarativeCompositeConfig {
 	private final CompositeProperties compositeProperties;
 	private CompositeRepositoryConverter propertiesConverter;
 	private BaseProxyConfiguration baseProxyConfiguration;
-	private HttpClientBuilder httpClientBuilder;
+	private ObjectFactory<HttpClientBuilder> httpClientBuilders;
+	private final RoutingHttpConnectionFactory connectionRouter = RoutingHttpConnectionFactory.install();
 
 
 	@Autowired
 	public DeclarativeCompositeConfig(CompositeProperties compositeProperties, CompositeRepositoryConverter propertiesConverter,
-									  BaseProxyConfiguration baseProxyConfiguration, HttpClientBuilder httpClientBuilder) {
+									  BaseProxyConfiguration baseProxyConfiguration, ObjectFactory<HttpClientBuilder> httpClientBuilders) {
 
 		this.compositeProperties = compositeProperties;
 		this.propertiesConverter = propertiesConverter;
 		this.baseProxyConfiguration = baseProxyConfiguration;
-		this.httpClientBuilder = httpClientBuilder;
+		this.httpClientBuilders = httpClientBuilders;
 	}
 
 	@Bean
 	@ConditionalOnProperty("spring.cloud.config.server.composite[0].type")
-	public EnvironmentRepository declarativeCompositeRepository(ConfigurableEnvironment environment, HttpServletRequest request) {
+	public DeclarativeCompositeEnvironmentRepository declarativeCompositeRepository(DeclarativeCompositeHolderFactory compositeHolderFactory,
+																ConfigurableEnvironment environment,
+																ExecutorService compositeFanOutExecutor,
+																GitFetchScheduler compositeGitFetchScheduler,
+																ObjectProvider<CompositeEnvironmentCache> compositeEnvironmentCache,
+																ObjectProvider<CompositeLookupMetrics> compositeLookupMetrics,
+																ObjectProvider<CompositeWarmUp> compositeWarmUp,
+																ObjectProvider<CompositeSnapshots> compositeSnapshots,
+																ObjectProvider<CompositeDiskSnapshot> compositeDiskSnapshot) {
+		// Bound apart from the configuration properties bean, which is rebound in place on refresh
+		CompositeProperties properties = CompositeProperties.bind(environment);
+		GitStartupCloner startupCloner = new GitStartupCloner(properties.getStartupClone());
+		boolean lazy = properties.getLazyInit().isEnabled();
 		List<DeclarativeCompositeHolder> environments = new ArrayList<>();
-		environments.addAll(compositeProperties.getComposite()
-			.stream()
-			.map(configProperties -> {
+		environments.addAll(IntStream.range(0, properties.getComposite().size())
+			.mapToObj(index -> compositeHolderFactory.create(properties, index, startupCloner))
+			.collect(Collectors.toList()));
+		// With results from the previous run to serve, startup need not wait for the clones
+		CompositeDiskSnapshot diskSnapshot = compositeDiskSnapshot.getIfAvailable();
+		CompletableFuture<Void> gitStartup = null;
+		if (diskSnapshot != null && diskSnapshot.hasBootResults()) {
+			gitStartup = startupCloner.cloneAllInBackground();
+		} else {
+			startupCloner.cloneAll();
+		}
 
-				if (configProperties.getType().equals(EnvironmentType.GIT.getType())) {
-					DeclarativeCompositeHolder environmentHolder = new DeclarativeCompositeHolder();
-					HttpTransport.setConnectionFactory(new ProxyAwareHttpClientFactory(baseProxyConfiguration.buildClient(configProperties.getProxy(), httpClientBuilder)));
-					MultipleJGitEnvironmentRepository gitEnvironmentRepository = propertiesConverter.convertPropertiesToGitEnvironment(environment, configProperties);
-					environmentHolder.setEnvironmentRepository(gitEnvironmentRepository);
+		compositeGitFetchScheduler.setCache(compositeEnvironmentCache.getIfAvailable());
+		if (gitStartup == null) {
+			scheduleFetches(environments, properties, compositeGitFetchScheduler);
+		}
 
-					return environmentHolder;
+		DeclarativeCompositeEnvironmentRepository compositeRepository = new DeclarativeCompositeEnvironmentRepository(
+			environments, properties, properties.getFanOut().isEnabled() ? compositeFanOutExecutor : null);
+		compositeRepository.setCache(compositeEnvironmentCache.getIfAvailable());
+		compositeRepository.setConnectionRouter(connectionRouter);
+		compositeRepository.setLookupMetrics(compositeLookupMetrics.getIfAvailable());
+		compositeRepository.setSnapshots(compositeSnapshots.getIfAvailable());
+		compositeRepository.setDiskSnapshot(diskSnapshot);
+		compositeRepository.setGitStartup(gitStartup);
+
+		CompositeWarmUp warmUp = compositeWarmUp.getIfAvailable();
+		if (warmUp != null) {
+			warmUp.setRepository(compositeRepository);
+			compositeRepository.setWarmUp(warmUp);
+			compositeGitFetchScheduler.addChangeListener(index -> warmUp.warmAll());
+		}
+		if (gitStartup != null) {
+			// Fetching alongside the startup clone would race it for the same working directory
+			gitStartup.thenRun(() -> {
+				scheduleFetches(environments, properties, compositeGitFetchScheduler);
+				if (warmUp != null) {
+					warmUp.warmAll();
 				}
-				if (configProperties.getType().equals(EnvironmentType.VAULT.getType())) {
-					DeclarativeCompositeHolder environmentHolder = new DeclarativeCompositeHolder();
-					HttpClient proxyAwareClient = baseProxyConfiguration.buildClient(configProperties.getProxy(), httpClientBuilder);
-					RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(proxyAwareClient));
-					environmentHolder.setEnvironmentRepository(propertiesConverter.convertPropertiesToVaultEnvironment(
-						configProperties, new VaultEnvironmentRepository(request, new EnvironmentWatch.Default(), restTemplate)));
-					return environmentHolder;
+			});
+		}
+		if (lazy && compositeProperties.getLazyInit().isBackground()) {
+			initializeInBackground(environments);
+		}
+		return compositeRepository;
+	}
+
+	/**
+	 * Build every lazily created entry, in order, on a background thread. Failures are left for the entry's first
+	 * lookup to run into again.
+	 */
+	private static void initializeInBackground(List<DeclarativeCompositeHolder> environments) {
+		Thread thread = new CustomizableThreadFactory("composite-lazy-init-").newThread(() -> {
+			long start = System.nanoTime();
+			for (DeclarativeCompositeHolder environmentHolder : environments) {
+				if (environmentHolder == null) {
+					continue;
 				}
-				return null;
+				try {
+					environmentHolder.initialize();
+				} catch (RuntimeException e) {
+					log.warn("Background initialization of composite back end {} failed: {}", environmentHolder.getIndex(),
+						e.getMessage());
+				}
+			}
+			log.info("Initialized composite back ends in the background in {} ms",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
 
-			})
-			.collect(Collectors.toList()));
+	private static void scheduleFetches(List<DeclarativeCompositeHolder> environments, CompositeProperties properties,
+										GitFetchScheduler compositeGitFetchScheduler) {
+		for (DeclarativeCompositeHolder environmentHolder : environments) {
+			// Entries built lazily schedule their own fetches once built
+			if (environmentHolder == null || environmentHolder.getType() != EnvironmentType.GIT || !environmentHolder.isInitialized()) {
+				continue;
+			}
+			CompositeProperties.FetchProperties fetch = properties.getComposite().get(environmentHolder.getIndex()).getFetch();
+			if (fetch.isEnabled()) {
+				compositeGitFetchScheduler.schedule(environmentHolder, fetch);
+			}
+		}
+	}
+
+	@Bean
+	public DeclarativeCompositeHolderFactory compositeHolderFactory(ConfigurableEnvironment environment, HttpServletRequest request,
+																	ExecutorService compositeVaultReadExecutor,
+																	VaultSecretCaches compositeVaultSecretCaches,
+																	GitFetchScheduler compositeGitFetchScheduler) {
+		return new DeclarativeCompositeHolderFactory(propertiesConverter, baseProxyConfiguration,
+			httpClientBuilders, connectionRouter, environment, request, compositeVaultReadExecutor, compositeVaultSecretCaches,
+			compositeGitFetchScheduler);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty("spring.cloud.config.server.reload.enabled")
+	public CompositeReloader compositeReloader(DeclarativeCompositeEnvironmentRepository declarativeCompositeRepository,
+											   DeclarativeCompositeHolderFactory compositeHolderFactory,
+											   ConfigurableEnvironment environment, GitFetchScheduler compositeGitFetchScheduler,
+											   VaultSecretCaches compositeVaultSecretCaches,
+											   ObjectProvider<CompositeWarmUp> compositeWarmUp,
+											   ObjectProvider<CompositeDiskSnapshot> compositeDiskSnapshot) {
+		CompositeReloader reloader = new CompositeReloader(declarativeCompositeRepository, compositeHolderFactory, environment,
+			compositeProperties.getReload(), compositeGitFetchScheduler, compositeVaultSecretCaches);
+		reloader.setWarmUp(compositeWarmUp.getIfAvailable());
+		reloader.setDiskSnapshot(compositeDiskSnapshot.getIfAvailable());
+		return reloader;
+	}
+
+	/**
+	 * Bounded pool used to query composite backends concurrently. When the queue is full the calling thread runs the
+	 * lookup itself, so an overloaded pool degrades to the sequential behaviour rather than rejecting requests.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService compositeFanOutExecutor() {
+		CompositeProperties.FanOutProperties fanOut = compositeProperties.getFanOut();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(fanOut.getThreads(), fanOut.getThreads(), 60L, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(fanOut.getQueueCapacity()), new CustomizableThreadFactory("composite-fan-out-"),
+			new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Pool on which Vault entries read secret paths. It is separate from the fan-out pool because fan-out threads wait
+	 * on these reads, and sharing one bounded pool could leave every thread waiting on work queued behind it.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService compositeVaultReadExecutor() {
+		CompositeProperties.VaultReadProperties vaultRead = compositeProperties.getVaultRead();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(vaultRead.getThreads(), vaultRead.getThreads(), 60L, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(vaultRead.getQueueCapacity()), new CustomizableThreadFactory("composite-vault-read-"),
+			new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "spring.cloud.config.server.metrics.enabled", matchIfMissing = true)
+	public CompositeLookupMetrics compositeLookupMetrics() {
+		return new CompositeLookupMetrics(compositeProperties.getMetrics().getWindow());
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "spring.cloud.config.server.metrics.enabled", matchIfMissing = true)
+	public CompositeLookupPublicMetrics compositeLookupPublicMetrics(CompositeLookupMetrics compositeLookupMetrics) {
+		return new CompositeLookupPublicMetrics(compositeLookupMetrics);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public GitFetchScheduler compositeGitFetchScheduler() {
+		return new GitFetchScheduler(compositeProperties.getFetchThreads(), connectionRouter);
+	}
+
+	@Bean
+	public CompositeGitFetchPublicMetrics compositeGitFetchPublicMetrics(GitFetchScheduler compositeGitFetchScheduler) {
+		return new CompositeGitFetchPublicMetrics(compositeGitFetchScheduler);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty("spring.cloud.config.server.warm-up.enabled")
+	public CompositeWarmUp compositeWarmUp() {
+		return new CompositeWarmUp(compositeProperties.getWarmUp());
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.config.server.warm-up.enabled")
+	public CompositeWarmUpHealthIndicator compositeWarmUpHealthIndicator(CompositeWarmUp compositeWarmUp) {
+		return new CompositeWarmUpHealthIndicator(compositeWarmUp);
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.config.server.changes.enabled")
+	public CompositeSnapshots compositeSnapshots() {
+		return new CompositeSnapshots(compositeProperties.getChanges());
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.config.server.changes.enabled")
+	public CompositeChangesController compositeChangesController(DeclarativeCompositeEnvironmentRepository declarativeCompositeRepository,
+																 CompositeSnapshots compositeSnapshots,
+																 ObjectProvider<EnvironmentEncryptor> environmentEncryptor,
+																 ConfigServerProperties configServerProperties) {
+		// Wrapped as ConfigServerMvcConfiguration wraps the repository of the environment endpoints
+		EnvironmentEncryptorEnvironmentRepository encrypted = new EnvironmentEncryptorEnvironmentRepository(
+			declarativeCompositeRepository, environmentEncryptor.getIfAvailable());
+		encrypted.setOverrides(configServerProperties.getOverrides());
+		return new CompositeChangesController(encrypted, compositeSnapshots);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty("spring.cloud.config.server.disk-snapshot.enabled")
+	public CompositeDiskSnapshot compositeDiskSnapshot() {
+		CompositeDiskSnapshot diskSnapshot = new CompositeDiskSnapshot(compositeProperties.getDiskSnapshot(),
+			compositeProperties.getComposite());
+		diskSnapshot.load();
+		return diskSnapshot;
+	}
+
+	@Bean
+	public CompositeEnvironmentETagAdvice compositeEnvironmentETagAdvice() {
+		return new CompositeEnvironmentETagAdvice();
+	}
 
-		return new DeclarativeCompositeEnvironmentRepository(environments);
+	@Bean
+	public VaultSecretCaches compositeVaultSecretCaches() {
+		return new VaultSecretCaches();
+	}
+
+	@Bean
+	public CompositeVaultCachePublicMetrics compositeVaultCachePublicMetrics(VaultSecretCaches compositeVaultSecretCaches) {
+		return new CompositeVaultCachePublicMetrics(compositeVaultSecretCaches);
+	}
+
+	@Bean
+	public CompositeVaultCacheMvcEndpoint compositeVaultCacheMvcEndpoint(VaultSecretCaches compositeVaultSecretCaches,
+																		 ObjectProvider<CompositeEnvironmentCache> compositeEnvironmentCache) {
+		return new CompositeVaultCacheMvcEndpoint(compositeVaultSecretCaches, compositeEnvironmentCache.getIfAvailable());
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.config.server.cache.enabled")
+	public CompositeEnvironmentCache compositeEnvironmentCache() {
+		return new CompositeEnvironmentCache(compositeProperties.getCache());
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.config.server.cache.enabled")
+	public CompositeCachePublicMetrics compositeCachePublicMetrics(CompositeEnvironmentCache compositeEnvironmentCache) {
+		return new CompositeCachePublicMetrics(compositeEnvironmentCache);
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.config.server.cache.enabled")
+	public CompositeCacheMvcEndpoint compositeCacheMvcEndpoint(CompositeEnvironmentCache compositeEnvironmentCache) {
+		return new CompositeCacheMvcEndpoint(compositeEnvironmentCache);
 	}
 
 	@PostConstruct
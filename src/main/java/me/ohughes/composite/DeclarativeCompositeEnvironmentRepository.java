@@ -1,18 +1,33 @@
 package me.ohughes.composite;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import me.ohughes.proxy.ProxyAwareHttpClientFactory;
-import org.apache.http.client.HttpClient;
-import org.eclipse.jgit.transport.HttpTransport;
+import me.ohughes.proxy.RoutingHttpConnectionFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.cloud.config.environment.Environment;
-import org.springframework.cloud.config.environment.PropertySource;
 import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.cloud.config.server.environment.NoSuchLabelException;
 import org.springframework.core.Ordered;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * Master environment repository that searches for a config value
@@ -23,71 +38,503 @@ import java.util.Map.Entry;
  * a scenario where a composite collection contains a stale property. In SCS, properties are populated when an application
  * is bound to a config server service instance or when a refresh is manually triggered.
  * See research task: https://www.pivotaltracker.com/story/show/143023479
+ * <p>
+ * The list of backends can be replaced while the repository is in use. A lookup works against the list in place when
+ * it starts, and lookups under way when the list is replaced finish against the previous list, without sharing their
+ * results with lookups against the new one or caching them. Each list carries the properties it was built from.
  */
 @Slf4j
 @Data
-@AllArgsConstructor
-public class DeclarativeCompositeEnvironmentRepository implements EnvironmentRepository, Ordered {
+public class DeclarativeCompositeEnvironmentRepository implements EnvironmentRepository, Ordered, DisposableBean {
+
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private volatile Backends backends;
+	/**
+	 * Held while the backends are replaced, and while caching a result, so that nothing looked up against the previous
+	 * backends is cached once the swap has emptied the cache
+	 */
+	@Getter(AccessLevel.NONE)
+	private final Object swapLock = new Object();
+	private Executor fanOutExecutor;
+	private CompositeEnvironmentCache cache;
+	private RoutingHttpConnectionFactory connectionRouter;
+	private CompositeLookupMetrics lookupMetrics;
+	private CompositeWarmUp warmUp;
+	private CompositeSnapshots snapshots;
+	private CompositeDiskSnapshot diskSnapshot;
+	/**
+	 * Completes once the Git repositories cloned on start are ready, when that happens in the background
+	 */
+	private CompletableFuture<Void> gitStartup;
+
+	public DeclarativeCompositeEnvironmentRepository(List<DeclarativeCompositeHolder> environmentRepositories) {
+		this(environmentRepositories, null);
+	}
+
+	public DeclarativeCompositeEnvironmentRepository(List<DeclarativeCompositeHolder> environmentRepositories, Executor fanOutExecutor) {
+		this(environmentRepositories, null, fanOutExecutor);
+	}
+
+	/**
+	 * @param properties the properties {@code environmentRepositories} were built from
+	 */
+	public DeclarativeCompositeEnvironmentRepository(List<DeclarativeCompositeHolder> environmentRepositories,
+													 CompositeProperties properties, Executor fanOutExecutor) {
+		this.backends = new Backends(environmentRepositories, properties);
+		this.fanOutExecutor = fanOutExecutor;
+	}
 
-	private List<DeclarativeCompositeHolder> environmentRepositories;
+	public List<DeclarativeCompositeHolder> getEnvironmentRepositories() {
+		return backends.getHolders();
+	}
+
+	/**
+	 * The properties the current backends were built from, or {@code null} if they were not built from properties
+	 */
+	CompositeProperties getProperties() {
+		return backends.getProperties();
+	}
+
+	/**
+	 * Start using {@code environmentRepositories}, built from {@code properties}, in place of the current backends,
+	 * without waiting for the lookups under way against them. Cached results are dropped, as the composite indexes they
+	 * are held under may now belong to other backends.
+	 */
+	void replaceBackends(List<DeclarativeCompositeHolder> environmentRepositories, CompositeProperties properties) {
+		synchronized (swapLock) {
+			backends = new Backends(environmentRepositories, properties);
+			if (cache != null) {
+				cache.evictAll();
+			}
+		}
+	}
 
 	@Override
 	public Environment findOne(String application, String profile, String label) {
+		if (warmUp != null) {
+			warmUp.record(application, profile, label);
+		}
+		LookupKey compositeKey = LookupKey.composite(application, profile, label);
+		if (cache != null) {
+			Environment cachedEnvironment = cache.get(compositeKey);
+			if (cachedEnvironment != null) {
+				return cachedEnvironment;
+			}
+		}
+		Backends current = backends;
+		// Every caller gets a copy, including the one that did the work, as callers are free to modify the result
+		return Environments.copy(current.getCompositeFlights().execute(compositeKey, () -> {
+			Environment compositeEnvironment = merge(current, application, profile, label);
+			if (snapshots != null) {
+				snapshots.record(compositeKey, compositeEnvironment);
+			}
+			// A result built from the disk snapshot must not outlive the startup it stands in for
+			if (cache != null && !isStarting()) {
+				putIfCurrent(current, compositeKey, compositeEnvironment, earliestBackendExpiry(current, application, profile, label));
+			}
+			return compositeEnvironment;
+		}));
+	}
+
+	private Environment merge(Backends current, String application, String profile, String label) {
 		Environment compositeEnvironment = new Environment(application, new String[]{profile}, label, null, null);
 
 		try {
-			Set<Object> foundKeys = new HashSet<>();
-			for (DeclarativeCompositeHolder environmentHolder : environmentRepositories) {
-				EnvironmentRepository environmentRepository = environmentHolder.getEnvironmentRepository();
-//				if (environmentRepository instanceof JGitEnvironmentRepository) {
-//					setupGitProxy(environmentHolder.getHttpClient());
-//				}
-				Environment env = environmentRepository.findOne(application, profile, label);
-				ProxyAwareHttpClientFactory jgitTransport = (ProxyAwareHttpClientFactory) HttpTransport.getConnectionFactory();
-				jgitTransport.getHttpClientConnection().close();
-				//Each environment repository has a set of key/value properties. Deduplicate the property values
-				//so only the first found is returned to the client.
-				for (PropertySource source : env.getPropertySources()) {
-					Map<Object, Object> newSourceMap = deduplicatePropertySource(foundKeys, source);
-
-					// Only add a new PropertySource to the returned environment if the de-duped source map contains
-					// at least one item
-					if (null != newSourceMap && newSourceMap.size() > 0) {
-						compositeEnvironment.add(new PropertySource(source.getName(), newSourceMap));
-					}
-				}
+			//Each environment repository has a set of key/value properties. Deduplicate the property values
+			//so only the first found is returned to the client. The backend results are private to this lookup, so
+			//the merged sources can be views over them rather than copies.
+			long lookupStart = System.nanoTime();
+			List<Environment> environments = findAll(current, application, profile, label);
+			compositeEnvironment.setVersion(CompositeVersion.of(environments));
+			long mergeStart = System.nanoTime();
+			if (lookupMetrics == null) {
+				ShadowingMerge.merge(compositeEnvironment, environments);
+			} else {
+				ShadowingMerge.merge(compositeEnvironment, environments, (index, contributed, shadowed) ->
+					lookupMetrics.recordKeys(current.getHolders().get(index), contributed, shadowed));
+				long end = System.nanoTime();
+				lookupMetrics.recordLookup(end - lookupStart, end - mergeStart);
 			}
 		} catch (Exception e) {
-			log.error(String.format("Error while searching composite back ends: %s", e.getMessage()), e);
-			throw new RuntimeException(e);
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			log.error(String.format("Error while searching composite back ends: %s", cause.getMessage()), cause);
+			throw new RuntimeException(cause);
 		}
 
 		return compositeEnvironment;
 	}
 
-	@Override
-	public int getOrder() {
-		return Ordered.LOWEST_PRECEDENCE - 1;
+	/**
+	 * Query every backend in the composite. Without a fan-out executor the backends are searched one after another,
+	 * otherwise they are all searched at the same time. Either way the results are returned in declaration order so
+	 * that the precedence applied by {@link ShadowingMerge} does not depend on which
+	 * backend answered first. A backend with a bulkhead is always queried on the bulkhead's threads.
+	 */
+	private List<Environment> findAll(Backends current, String application, String profile, String label) {
+		List<DeclarativeCompositeHolder> environmentRepositories = current.getHolders();
+		List<Environment> environments = new ArrayList<>(environmentRepositories.size());
+		// Backends such as Vault read headers from the current request, so the request must be visible to pool threads
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		if (fanOutExecutor == null || environmentRepositories.size() < 2) {
+			for (DeclarativeCompositeHolder environmentHolder : environmentRepositories) {
+				environments.add(environmentHolder.getBulkhead() == null
+					? findOne(current, environmentHolder, application, profile, label, true)
+					: await(findOneAsync(current, environmentHolder, environmentHolder.getBulkhead(), requestAttributes,
+						application, profile, label), environmentHolder, System.nanoTime(), application, profile, label));
+			}
+			return environments;
+		}
+
+		List<CompletableFuture<Environment>> pendingEnvironments = new ArrayList<>(environmentRepositories.size());
+		for (DeclarativeCompositeHolder environmentHolder : environmentRepositories) {
+			Executor executor = environmentHolder.getBulkhead() != null ? environmentHolder.getBulkhead() : fanOutExecutor;
+			pendingEnvironments.add(findOneAsync(current, environmentHolder, executor, requestAttributes, application, profile, label));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < pendingEnvironments.size(); i++) {
+			environments.add(await(pendingEnvironments.get(i), environmentRepositories.get(i), start, application, profile, label));
+		}
+		return environments;
 	}
 
-	Map<Object, Object> deduplicatePropertySource(Set<Object> foundKeys, PropertySource source) {
-		//Guard against null value for repos map
-		Set<? extends Entry<?, ?>> sourceValueCollection = Optional
-			.ofNullable(source.getSource())
-			.map(Map::entrySet)
-			.orElse(Collections.emptySet());
+	/**
+	 * Query a backend on {@code executor}. A lookup refused by the backend's bulkhead fails as the backend would, so
+	 * counts against its circuit breaker and is answered with the last good result where there is one.
+	 */
+	private CompletableFuture<Environment> findOneAsync(Backends current, DeclarativeCompositeHolder environmentHolder,
+														Executor executor, RequestAttributes requestAttributes,
+														String application, String profile, String label) {
+		try {
+			return CompletableFuture.supplyAsync(() -> withRequestAttributes(requestAttributes,
+				() -> findOne(current, environmentHolder, application, profile, label, true)), executor);
+		} catch (RejectedExecutionException e) {
+			if (lookupMetrics != null) {
+				lookupMetrics.recordBulkheadRejected(environmentHolder);
+			}
+			CircuitBreaker circuitBreaker = environmentHolder.getCircuitBreaker();
+			// Once open the circuit rejects lookups itself, and is left to its own trial lookup
+			if (circuitBreaker != null && !circuitBreaker.isOpen()) {
+				circuitBreaker.recordFailure();
+			}
+			CompletableFuture<Environment> rejected = new CompletableFuture<>();
+			try {
+				rejected.complete(lastKnownGoodOrThrow(environmentHolder,
+					LookupKey.backend(environmentHolder, application, profile, label), new IllegalStateException(
+						String.format("Bulkhead full for composite back end %d", environmentHolder.getIndex()))));
+			} catch (RuntimeException failure) {
+				rejected.completeExceptionally(failure);
+			}
+			return rejected;
+		}
+	}
 
-		Map<Object, Object> newSourceMap = new HashMap<>();
-		for (Entry<?, ?> sourceValueEntry : sourceValueCollection) {
-			if (!foundKeys.contains(sourceValueEntry.getKey())) {
-				newSourceMap.put(sourceValueEntry.getKey(), sourceValueEntry.getValue());
-				foundKeys.add(sourceValueEntry.getKey());
+	/**
+	 * Wait for a backend queried by the fan-out, giving up once its deadline has passed since the fan-out started. The
+	 * lookup itself carries on in the background and counts against the backend's circuit breaker when it overruns.
+	 */
+	private Environment await(CompletableFuture<Environment> pendingEnvironment, DeclarativeCompositeHolder environmentHolder,
+							  long start, String application, String profile, String label) {
+		long deadline = environmentHolder.getDeadline();
+		if (deadline <= 0) {
+			return pendingEnvironment.join();
+		}
+		long remaining = deadline - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		try {
+			return pendingEnvironment.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			return lastKnownGoodOrThrow(environmentHolder, LookupKey.backend(environmentHolder, application, profile, label),
+				new IllegalStateException(String.format("Composite back end %d did not answer within %d ms",
+					environmentHolder.getIndex(), deadline)));
+		} catch (ExecutionException e) {
+			throw new CompletionException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching composite back ends", e);
+		}
+	}
+
+	/**
+	 * @param serveStale whether a failed lookup may be answered with the backend's last good result
+	 */
+	private Environment findOne(Backends current, DeclarativeCompositeHolder environmentHolder, String application, String profile,
+								String label, boolean serveStale) {
+		LookupKey backendKey = LookupKey.backend(environmentHolder, application, profile, label);
+		if (cache != null) {
+			Environment cachedEnvironment = cache.get(backendKey);
+			if (cachedEnvironment != null) {
+				return cachedEnvironment;
 			}
 		}
-		return newSourceMap;
+		if (isStarting() && environmentHolder.getType() == DeclarativeCompositeConfig.EnvironmentType.GIT) {
+			Environment bootEnvironment = diskSnapshot.getBootResult(backendKey);
+			if (bootEnvironment != null) {
+				return bootEnvironment;
+			}
+			// Looking up before the startup clone finishes would clone the repository a second time
+			awaitGitStartup();
+		}
+		// Backend results are only read while merging, so the caller that did the work can use the shared result as is
+		try {
+			return current.getBackendFlights().execute(backendKey, () -> {
+				Environment env = findOneGuarded(environmentHolder, application, profile, label);
+				// Once the backends have been replaced this index may belong to another backend
+				boolean replaced = !putIfCurrent(current, backendKey, env,
+					cache == null ? 0 : System.currentTimeMillis() + cache.ttlFor(environmentHolder.getType()));
+				if (environmentHolder.getLastKnownGood() != null) {
+					environmentHolder.getLastKnownGood().put(backendKey, env);
+				}
+				if (diskSnapshot != null && !replaced && environmentHolder.getType() == DeclarativeCompositeConfig.EnvironmentType.GIT) {
+					diskSnapshot.record(backendKey, env);
+				}
+				return env;
+			});
+		} catch (RuntimeException e) {
+			if (!serveStale) {
+				throw e;
+			}
+			return lastKnownGoodOrThrow(environmentHolder, backendKey, e);
+		}
+	}
+
+	/**
+	 * Query the backend unless its circuit is open. Errors caused by the request itself, such as an unknown label or
+	 * a missing token, show the backend is answering and so do not count as failures, whereas a lookup that succeeds
+	 * but overruns the backend's deadline does.
+	 */
+	private Environment findOneGuarded(DeclarativeCompositeHolder environmentHolder, String application, String profile, String label) {
+		CircuitBreaker circuitBreaker = environmentHolder.getCircuitBreaker();
+		if (circuitBreaker == null) {
+			return findOneUncached(environmentHolder, application, profile, label);
+		}
+		if (!circuitBreaker.allowRequest()) {
+			if (lookupMetrics != null) {
+				lookupMetrics.recordRejected(environmentHolder);
+			}
+			throw new IllegalStateException(String.format("Circuit open for composite back end %d", environmentHolder.getIndex()));
+		}
+
+		long start = System.nanoTime();
+		Environment environment;
+		try {
+			environment = findOneUncached(environmentHolder, application, profile, label);
+		} catch (RuntimeException | Error e) {
+			if (isRequestError(e)) {
+				circuitBreaker.recordSuccess();
+			} else {
+				circuitBreaker.recordFailure();
+			}
+			throw e;
+		}
+		long deadline = environmentHolder.getDeadline();
+		if (deadline > 0 && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) > deadline) {
+			circuitBreaker.recordFailure();
+		} else {
+			circuitBreaker.recordSuccess();
+		}
+		return environment;
+	}
+
+	/**
+	 * Answer a failed lookup with the backend's last good result for it, when the backend keeps one, falling back to
+	 * the result held by the disk snapshot from before the restart
+	 *
+	 * @throws RuntimeException {@code failure} if there is no result to serve, or the failure was caused by the request
+	 */
+	private Environment lastKnownGoodOrThrow(DeclarativeCompositeHolder environmentHolder, LookupKey backendKey, RuntimeException failure) {
+		LastKnownGood lastKnownGood = environmentHolder.getLastKnownGood();
+		Environment staleEnvironment = null;
+		if (lastKnownGood != null && !isRequestError(failure)) {
+			staleEnvironment = lastKnownGood.get(backendKey);
+			if (staleEnvironment == null && diskSnapshot != null) {
+				staleEnvironment = diskSnapshot.getBootResult(backendKey);
+			}
+		}
+		if (staleEnvironment == null) {
+			throw failure;
+		}
+		log.warn("Serving last known good result from composite back end {}: {}", environmentHolder.getIndex(), failure.getMessage());
+		if (lookupMetrics != null) {
+			lookupMetrics.recordStale(environmentHolder);
+		}
+		return staleEnvironment;
+	}
+
+	/**
+	 * Wait for the background clones, for no longer than the disk snapshot allows so that request threads are not held
+	 * for as long as a slow clone takes
+	 */
+	private void awaitGitStartup() {
+		try {
+			gitStartup.get(diskSnapshot.getStartupWait(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new IllegalStateException(String.format("Git repos are still being cloned after waiting %d ms",
+				diskSnapshot.getStartupWait()));
+		} catch (ExecutionException e) {
+			// The background clone only ever completes normally
+			throw new CompletionException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for git repos to be cloned", e);
+		}
+	}
+
+	/**
+	 * @return whether Git lookups are still being answered from the disk snapshot while repositories are cloned
+	 */
+	boolean isStarting() {
+		return gitStartup != null && !gitStartup.isDone() && diskSnapshot != null;
+	}
+
+	private static boolean isRequestError(Throwable e) {
+		return e instanceof NoSuchLabelException || e instanceof IllegalArgumentException || e instanceof HttpClientErrorException;
+	}
+
+	/**
+	 * Look up {@code application}, {@code profile} and {@code label} in every backend that does not need the client's
+	 * token, so that a later request finds those backends' results cached and their repositories ready. A backend that
+	 * fails is not answered with its last good result, as that would leave it just as cold.
+	 *
+	 * @return {@code false} without looking anything up while Git lookups are still answered from the disk snapshot,
+	 * which would not warm their repositories
+	 */
+	boolean warm(String application, String profile, String label) {
+		if (isStarting()) {
+			return false;
+		}
+		Backends current = backends;
+		for (DeclarativeCompositeHolder environmentHolder : current.getHolders()) {
+			if (environmentHolder != null && environmentHolder.getType() != DeclarativeCompositeConfig.EnvironmentType.VAULT) {
+				findOne(current, environmentHolder, application, profile, label, false);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A merged result must not outlive any of the backend results it was built from
+	 */
+	private long earliestBackendExpiry(Backends current, String application, String profile, String label) {
+		long now = System.currentTimeMillis();
+		long earliestExpiry = Long.MAX_VALUE;
+		for (DeclarativeCompositeHolder environmentHolder : current.getHolders()) {
+			long expiresAt = cache.expiresAt(LookupKey.backend(environmentHolder, application, profile, label));
+			earliestExpiry = Math.min(earliestExpiry, expiresAt == 0 ? now + cache.ttlFor(environmentHolder.getType()) : expiresAt);
+		}
+		return earliestExpiry;
+	}
+
+	/**
+	 * Cache {@code environment} unless the backends it was looked up against have been replaced since
+	 *
+	 * @return whether {@code current} are still the backends in use
+	 */
+	private boolean putIfCurrent(Backends current, LookupKey key, Environment environment, long expiresAt) {
+		synchronized (swapLock) {
+			if (current != backends) {
+				return false;
+			}
+			if (cache != null) {
+				cache.put(key, environment, expiresAt);
+			}
+			return true;
+		}
+	}
+
+	private Environment findOneUncached(DeclarativeCompositeHolder environmentHolder, String application, String profile, String label) {
+		if (lookupMetrics == null) {
+			return findOneFromBackend(environmentHolder, application, profile, label);
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Environment environment = findOneFromBackend(environmentHolder, application, profile, label);
+			failed = false;
+			return environment;
+		} finally {
+			lookupMetrics.recordBackend(environmentHolder, System.nanoTime() - start, failed);
+		}
+	}
+
+	private Environment findOneFromBackend(DeclarativeCompositeHolder environmentHolder, String application, String profile, String label) {
+		EnvironmentRepository environmentRepository = environmentHolder.getEnvironmentRepository();
+		if (connectionRouter == null || environmentHolder.getConnectionFactory() == null) {
+			return environmentRepository.findOne(application, profile, label);
+		}
+		return connectionRouter.route(environmentHolder.getConnectionFactory(),
+			() -> environmentRepository.findOne(application, profile, label));
+	}
+
+	/**
+	 * Run {@code lookup} with the supplied request attributes bound to the current thread. Any attributes already bound
+	 * are restored afterwards, which matters when the pool is saturated and the lookup runs on the request thread itself.
+	 */
+	private static <T> T withRequestAttributes(RequestAttributes requestAttributes, Supplier<T> lookup) {
+		RequestAttributes previousAttributes = RequestContextHolder.getRequestAttributes();
+		RequestContextHolder.setRequestAttributes(requestAttributes);
+		try {
+			return lookup.get();
+		} finally {
+			if (previousAttributes == null) {
+				RequestContextHolder.resetRequestAttributes();
+			} else {
+				RequestContextHolder.setRequestAttributes(previousAttributes);
+			}
+		}
+	}
+
+	/**
+	 * Shut down the connection pool owned by each backend
+	 */
+	@Override
+	public void destroy() {
+		for (DeclarativeCompositeHolder environmentHolder : backends.getHolders()) {
+			close(environmentHolder);
+		}
+	}
+
+	/**
+	 * Shut down the connection pool, and bulkhead, owned by a backend that is no longer used
+	 */
+	void close(DeclarativeCompositeHolder environmentHolder) {
+		if (environmentHolder != null && environmentHolder.getBulkhead() != null) {
+			environmentHolder.getBulkhead().shutdown();
+		}
+		if (environmentHolder == null || !environmentHolder.isInitialized()) {
+			// Built lazily and never used, so there is nothing to close
+			return;
+		}
+		if (connectionRouter != null && environmentHolder.getConnectionFactory() != null) {
+			connectionRouter.unregister(environmentHolder.getConnectionFactory());
+		}
+		// The Git connection factory owns its client along with any threads used to stream request bodies
+		Closeable resources = environmentHolder.getConnectionFactory() != null
+			? environmentHolder.getConnectionFactory()
+			: environmentHolder.getAsyncHttpClient() != null ? environmentHolder.getAsyncHttpClient()
+			: environmentHolder.getHttpClient() instanceof Closeable ? (Closeable) environmentHolder.getHttpClient() : null;
+		if (resources != null) {
+			try {
+				resources.close();
+			} catch (IOException e) {
+				log.warn("Error closing HTTP client for composite back end {}: {}", environmentHolder.getIndex(), e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public int getOrder() {
+		return Ordered.LOWEST_PRECEDENCE - 1;
 	}
 
-	private void setupGitProxy(HttpClient httpClient) {
-		HttpTransport.setConnectionFactory(new ProxyAwareHttpClientFactory(httpClient));
+	/**
+	 * A list of backends, and the properties it was built from, along with the lookups under way against it, replaced
+	 * as a whole
+	 */
+	@Value
+	private static class Backends {
+		List<DeclarativeCompositeHolder> holders;
+		CompositeProperties properties;
+		SingleFlight<LookupKey, Environment> compositeFlights = new SingleFlight<>(UnaryOperator.identity());
+		SingleFlight<LookupKey, Environment> backendFlights = new SingleFlight<>(Environments::copy);
 	}
 }
@@ -1,17 +1,114 @@
 package me.ohughes.composite;
 
-import lombok.Data;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import me.ohughes.proxy.ProxyAwareHttpClientFactory;
 import org.apache.http.client.HttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.springframework.cloud.config.server.environment.EnvironmentRepository;
 
+import java.util.function.Function;
+
 /**
  * Data class to hold an environment repository along with it's HttpClient.
  * This is used by the {@link DeclarativeCompositeEnvironmentRepository}
  * so that {@link org.apache.http.client.HttpClient} configuration can be customised differently for each item within the composite.
+ * <p>
+ * A holder created lazily is given an initializer rather than its repository and clients, which builds them the first
+ * time any of them is asked for. Threads asking while the initializer runs wait for it to finish. Slow work that can
+ * follow the build, such as cloning a Git repository, is returned by the initializer and run after the holder's lock is
+ * released, so that threads only wait on the repository itself for it. Holders are compared by identity, and have no
+ * generated {@code equals}, {@code hashCode} or {@code toString} that would build them as a side effect.
  */
-
-@Data
+@Getter
+@Setter
 class DeclarativeCompositeHolder {
-	private EnvironmentRepository environmentRepository;
-	private HttpClient httpClient;
+	private int index;
+	private DeclarativeCompositeConfig.EnvironmentType type;
+	@Getter(AccessLevel.NONE)
+	private volatile EnvironmentRepository environmentRepository;
+	@Getter(AccessLevel.NONE)
+	private volatile HttpClient httpClient;
+	/**
+	 * Non-blocking client of a Vault entry that reads asynchronously, in place of {@code httpClient}
+	 */
+	@Getter(AccessLevel.NONE)
+	private volatile CloseableHttpAsyncClient asyncHttpClient;
+	/**
+	 * JGit connection factory dedicated to this entry, only present for Git backends
+	 */
+	@Getter(AccessLevel.NONE)
+	private volatile ProxyAwareHttpClientFactory connectionFactory;
+	/**
+	 * Longest a lookup may take, in milliseconds, or zero for no limit
+	 */
+	private long deadline;
+	/**
+	 * Present unless the circuit breaker is disabled for this entry
+	 */
+	private CircuitBreaker circuitBreaker;
+	/**
+	 * Only present when this entry's lookups run on threads of their own
+	 */
+	private Bulkhead bulkhead;
+	/**
+	 * Only present when this entry serves its last good result on failure
+	 */
+	private LastKnownGood lastKnownGood;
+	/**
+	 * Builds the repository and clients of a holder created lazily, cleared once it has succeeded, returning any work to
+	 * run once the holder's lock is released or {@code null}
+	 */
+	@Getter(AccessLevel.NONE)
+	private volatile Function<DeclarativeCompositeHolder, Runnable> initializer;
+
+	public EnvironmentRepository getEnvironmentRepository() {
+		initialize();
+		return environmentRepository;
+	}
+
+	public HttpClient getHttpClient() {
+		initialize();
+		return httpClient;
+	}
+
+	public CloseableHttpAsyncClient getAsyncHttpClient() {
+		initialize();
+		return asyncHttpClient;
+	}
+
+	public ProxyAwareHttpClientFactory getConnectionFactory() {
+		initialize();
+		return connectionFactory;
+	}
+
+	/**
+	 * @return whether the repository and clients have been built, without building them
+	 */
+	boolean isInitialized() {
+		return initializer == null;
+	}
+
+	/**
+	 * Build the repository and clients if that has not been done yet. A failed initializer is run again next time; the
+	 * work it returns is run only once, by the thread that built the holder, and is not run again should it fail.
+	 */
+	void initialize() {
+		// The initializer itself reads back what it has set so far
+		if (initializer == null || Thread.holdsLock(this)) {
+			return;
+		}
+		Runnable afterBuild = null;
+		synchronized (this) {
+			Function<DeclarativeCompositeHolder, Runnable> pending = initializer;
+			if (pending != null) {
+				afterBuild = pending.apply(this);
+				initializer = null;
+			}
+		}
+		if (afterBuild != null) {
+			afterBuild.run();
+		}
+	}
 }
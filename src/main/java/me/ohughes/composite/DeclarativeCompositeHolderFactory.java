@@ -0,0 +1,199 @@
+package me.ohughes.composite;
+
+import me.ohughes.proxy.BaseProxyConfiguration;
+import me.ohughes.proxy.ProxyAwareHttpClientFactory;
+import me.ohughes.proxy.RoutingHttpConnectionFactory;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.cloud.config.server.environment.EnvironmentWatch;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Builds the {@link DeclarativeCompositeHolder} of each composite entry, both on start and when the composite is
+ * reloaded. With lazy initialization enabled the holders are given an initializer that builds them on first use.
+ */
+public class DeclarativeCompositeHolderFactory {
+
+	private final CompositeRepositoryConverter propertiesConverter;
+	private final BaseProxyConfiguration baseProxyConfiguration;
+	private final ObjectFactory<HttpClientBuilder> httpClientBuilders;
+	private final RoutingHttpConnectionFactory connectionRouter;
+	private final ConfigurableEnvironment environment;
+	private final HttpServletRequest request;
+	private final ExecutorService compositeVaultReadExecutor;
+	private final VaultSecretCaches compositeVaultSecretCaches;
+	private final GitFetchScheduler compositeGitFetchScheduler;
+
+	DeclarativeCompositeHolderFactory(CompositeRepositoryConverter propertiesConverter,
+									  BaseProxyConfiguration baseProxyConfiguration, ObjectFactory<HttpClientBuilder> httpClientBuilders,
+									  RoutingHttpConnectionFactory connectionRouter, ConfigurableEnvironment environment,
+									  HttpServletRequest request, ExecutorService compositeVaultReadExecutor,
+									  VaultSecretCaches compositeVaultSecretCaches, GitFetchScheduler compositeGitFetchScheduler) {
+		this.propertiesConverter = propertiesConverter;
+		this.baseProxyConfiguration = baseProxyConfiguration;
+		this.httpClientBuilders = httpClientBuilders;
+		this.connectionRouter = connectionRouter;
+		this.environment = environment;
+		this.request = request;
+		this.compositeVaultReadExecutor = compositeVaultReadExecutor;
+		this.compositeVaultSecretCaches = compositeVaultSecretCaches;
+		this.compositeGitFetchScheduler = compositeGitFetchScheduler;
+	}
+
+	/**
+	 * @param properties    the properties the composite is built from, which must not be rebound afterwards as lazily
+	 *                      created entries read them when they are built
+	 * @param startupCloner clones the Git repositories of the entries created on start, or {@code null} for an entry
+	 *                      created afterwards, which is then cloned and has its fetches scheduled when it is built
+	 * @return the holder for the entry, or {@code null} if its type is not supported
+	 */
+	DeclarativeCompositeHolder create(CompositeProperties properties, int index, GitStartupCloner startupCloner) {
+		CompositeProperties.DeclarativeCompositeProperties configProperties = properties.getComposite().get(index);
+		DeclarativeCompositeConfig.EnvironmentType type;
+		if (configProperties.getType().equals(DeclarativeCompositeConfig.EnvironmentType.GIT.getType())) {
+			type = DeclarativeCompositeConfig.EnvironmentType.GIT;
+		} else if (configProperties.getType().equals(DeclarativeCompositeConfig.EnvironmentType.VAULT.getType())) {
+			type = DeclarativeCompositeConfig.EnvironmentType.VAULT;
+		} else {
+			return null;
+		}
+		DeclarativeCompositeHolder environmentHolder = new DeclarativeCompositeHolder();
+		environmentHolder.setIndex(index);
+		environmentHolder.setType(type);
+		configureResilience(environmentHolder, configProperties.getResilience());
+		if (configProperties.getBulkhead().isEnabled()) {
+			environmentHolder.setBulkhead(new Bulkhead(index, configProperties.getBulkhead()));
+		}
+
+		if (type == DeclarativeCompositeConfig.EnvironmentType.VAULT) {
+			if (properties.getLazyInit().isEnabled()) {
+				environmentHolder.setInitializer(holder -> {
+					buildVault(holder, configProperties);
+					return null;
+				});
+			} else {
+				buildVault(environmentHolder, configProperties);
+			}
+		} else if (properties.getLazyInit().isEnabled()) {
+			environmentHolder.setInitializer(holder -> buildGitAfterStartup(holder, properties.getStartupClone(), configProperties));
+		} else if (startupCloner == null) {
+			buildGitAfterStartup(environmentHolder, properties.getStartupClone(), configProperties).run();
+		} else {
+			buildGit(environmentHolder, configProperties, startupCloner);
+		}
+		return environmentHolder;
+	}
+
+	/**
+	 * A copy of {@code environmentHolder}, which must have been built, at composite index {@code index}. The copy shares
+	 * the original's repository, clients and resilience state.
+	 */
+	static DeclarativeCompositeHolder move(DeclarativeCompositeHolder environmentHolder, int index) {
+		DeclarativeCompositeHolder moved = new DeclarativeCompositeHolder();
+		moved.setIndex(index);
+		moved.setType(environmentHolder.getType());
+		moved.setEnvironmentRepository(environmentHolder.getEnvironmentRepository());
+		moved.setHttpClient(environmentHolder.getHttpClient());
+		moved.setAsyncHttpClient(environmentHolder.getAsyncHttpClient());
+		moved.setConnectionFactory(environmentHolder.getConnectionFactory());
+		moved.setDeadline(environmentHolder.getDeadline());
+		moved.setCircuitBreaker(environmentHolder.getCircuitBreaker());
+		moved.setLastKnownGood(environmentHolder.getLastKnownGood());
+		moved.setBulkhead(environmentHolder.getBulkhead());
+		return moved;
+	}
+
+	private void buildGit(DeclarativeCompositeHolder environmentHolder, CompositeProperties.DeclarativeCompositeProperties configProperties,
+						  GitStartupCloner startupCloner) {
+		environmentHolder.setHttpClient(buildPooledClient(configProperties));
+		environmentHolder.setConnectionFactory(new ProxyAwareHttpClientFactory(environmentHolder.getHttpClient(),
+			configProperties.getRequestBuffer()));
+		registerGitRoutes(configProperties, environmentHolder.getConnectionFactory());
+		MultipleJGitEnvironmentRepository gitEnvironmentRepository = propertiesConverter.convertPropertiesToGitEnvironment(environment, configProperties);
+		environmentHolder.setEnvironmentRepository(gitEnvironmentRepository);
+		startupCloner.add("composite[" + environmentHolder.getIndex() + "]", gitEnvironmentRepository);
+	}
+
+	/**
+	 * Build a Git entry after startup, so cloned and fetched on its own rather than with the other entries
+	 *
+	 * @return clones the entry's repositories and schedules its fetches, to be run once the entry is built. Should the
+	 * clone fail, lookups clone the repositories themselves and the fetches are scheduled regardless.
+	 */
+	private Runnable buildGitAfterStartup(DeclarativeCompositeHolder environmentHolder,
+										  CompositeProperties.StartupCloneProperties startupClone,
+										  CompositeProperties.DeclarativeCompositeProperties configProperties) {
+		GitStartupCloner cloner = new GitStartupCloner(startupClone);
+		buildGit(environmentHolder, configProperties, cloner);
+		return () -> {
+			try {
+				cloner.cloneAll();
+			} finally {
+				if (configProperties.getFetch().isEnabled()) {
+					compositeGitFetchScheduler.schedule(environmentHolder, configProperties.getFetch());
+				}
+			}
+		};
+	}
+
+	private void buildVault(DeclarativeCompositeHolder environmentHolder, CompositeProperties.DeclarativeCompositeProperties configProperties) {
+		VaultSecretCache secretCache = configProperties.getSecretCache().isEnabled()
+			? compositeVaultSecretCaches.create(environmentHolder.getIndex(), configProperties.getSecretCache()) : null;
+		ParallelVaultEnvironmentRepository vaultEnvironmentRepository;
+		if (configProperties.getAsync().isEnabled()) {
+			environmentHolder.setAsyncHttpClient(baseProxyConfiguration.buildPooledAsyncClient(configProperties.getProxy(),
+				configProperties.getPool(), configProperties.getTimeout(), configProperties.getAsync().getIoThreads()));
+			AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate(
+				new HttpComponentsAsyncClientHttpRequestFactory(environmentHolder.getAsyncHttpClient()));
+			vaultEnvironmentRepository = new ParallelVaultEnvironmentRepository(request, new EnvironmentWatch.Default(),
+				asyncRestTemplate, secretCache);
+		} else {
+			environmentHolder.setHttpClient(buildPooledClient(configProperties));
+			RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(environmentHolder.getHttpClient()));
+			vaultEnvironmentRepository = new ParallelVaultEnvironmentRepository(request, new EnvironmentWatch.Default(),
+				restTemplate, compositeVaultReadExecutor, secretCache);
+		}
+		environmentHolder.setEnvironmentRepository(propertiesConverter.convertPropertiesToVaultEnvironment(
+			configProperties, vaultEnvironmentRepository));
+	}
+
+	/**
+	 * Route JGit connections for the entry's repository, and each of its pattern repositories, to the entry's own
+	 * client. This must happen before the repositories are created as they may clone on start.
+	 */
+	private void registerGitRoutes(CompositeProperties.DeclarativeCompositeProperties configProperties,
+								   ProxyAwareHttpClientFactory connectionFactory) {
+		connectionRouter.register(configProperties.getUri(), connectionFactory);
+		for (CompositeProperties.PatternMatchingRepoProperties patternRepoProperties : configProperties.getRepos().values()) {
+			connectionRouter.register(patternRepoProperties.getUri(), connectionFactory);
+		}
+	}
+
+	private static void configureResilience(DeclarativeCompositeHolder environmentHolder,
+											CompositeProperties.ResilienceProperties resilience) {
+		environmentHolder.setDeadline(resilience.getDeadline());
+		if (resilience.getFailureThreshold() > 0) {
+			environmentHolder.setCircuitBreaker(new CircuitBreaker(resilience.getFailureThreshold(), resilience.getOpenDuration()));
+		}
+		if (resilience.isServeStale()) {
+			environmentHolder.setLastKnownGood(new LastKnownGood(resilience.getStaleEntries()));
+		}
+	}
+
+	/**
+	 * Each composite entry gets its own long lived client, and so its own connection pool and proxy settings
+	 */
+	private HttpClient buildPooledClient(CompositeProperties.DeclarativeCompositeProperties configProperties) {
+		return baseProxyConfiguration.buildPooledClient(configProperties.getProxy(), configProperties.getPool(),
+			configProperties.getTimeout(), httpClientBuilders.getObject());
+	}
+}
@@ -0,0 +1,151 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of an {@link Environment}, used by {@link CompositeDiskSnapshot}.
+ * <p>
+ * Strings are written as their UTF-8 length, or -1 for {@code null}, followed by their bytes. Property values keep
+ * their type when they are strings, numbers or booleans, which is all that YAML and properties files produce; any
+ * other value is written as its string form.
+ */
+class EnvironmentCodec {
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BOOLEAN = 5;
+
+	private EnvironmentCodec() {
+	}
+
+	static byte[] encode(Environment environment) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeString(out, environment.getName());
+			String[] profiles = environment.getProfiles() == null ? new String[0] : environment.getProfiles();
+			out.writeInt(profiles.length);
+			for (String profile : profiles) {
+				writeString(out, profile);
+			}
+			writeString(out, environment.getLabel());
+			writeString(out, environment.getVersion());
+			writeString(out, environment.getState());
+			out.writeInt(environment.getPropertySources().size());
+			for (PropertySource source : environment.getPropertySources()) {
+				writeString(out, source.getName());
+				Map<?, ?> sourceMap = source.getSource() == null ? new LinkedHashMap<>() : source.getSource();
+				out.writeInt(sourceMap.size());
+				for (Map.Entry<?, ?> entry : sourceMap.entrySet()) {
+					writeString(out, String.valueOf(entry.getKey()));
+					writeValue(out, entry.getValue());
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if {@code encoded} is not an environment written by {@link #encode(Environment)}
+	 */
+	static Environment decode(byte[] encoded) {
+		ByteBuffer in = ByteBuffer.wrap(encoded);
+		try {
+			String name = readString(in);
+			String[] profiles = new String[in.getInt()];
+			for (int i = 0; i < profiles.length; i++) {
+				profiles[i] = readString(in);
+			}
+			Environment environment = new Environment(name, profiles, readString(in), readString(in), readString(in));
+			int sources = in.getInt();
+			for (int i = 0; i < sources; i++) {
+				String sourceName = readString(in);
+				int entries = in.getInt();
+				Map<String, Object> sourceMap = new LinkedHashMap<>(Math.max(16, entries * 4 / 3 + 1));
+				for (int j = 0; j < entries; j++) {
+					sourceMap.put(readString(in), readValue(in));
+				}
+				environment.add(new PropertySource(sourceName, sourceMap));
+			}
+			return environment;
+		} catch (BufferUnderflowException | NegativeArraySizeException e) {
+			throw new IllegalArgumentException("Truncated or corrupt environment", e);
+		}
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	private static Object readValue(ByteBuffer in) {
+		byte type = in.get();
+		switch (type) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case INTEGER:
+				return in.getInt();
+			case LONG:
+				return in.getLong();
+			case DOUBLE:
+				return in.getDouble();
+			case BOOLEAN:
+				return in.get() != 0;
+			default:
+				throw new IllegalArgumentException("Unknown value type " + type);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Static utilities for handling {@link Environment} instances shared between requests
+ */
+class Environments {
+
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int ENTRY_OVERHEAD = 48;
+
+	/**
+	 * Copy {@code environment} so that the caller can modify the result, or any of its property sources, without
+	 * affecting the original. Property values themselves are immutable in practice so are not copied.
+	 */
+	static Environment copy(Environment environment) {
+		Environment copy = new Environment(environment.getName(), environment.getProfiles(), environment.getLabel(),
+			environment.getVersion(), environment.getState());
+		for (PropertySource source : environment.getPropertySources()) {
+			Map<?, ?> sourceMap = source.getSource();
+			copy.add(new PropertySource(source.getName(),
+				sourceMap == null ? new LinkedHashMap<>() : new LinkedHashMap<>(sourceMap)));
+		}
+		return copy;
+	}
+
+	/**
+	 * Rough estimate of the heap retained by {@code environment}, used to bound caches by size rather than entry count
+	 */
+	static long estimateSize(Environment environment) {
+		long size = OBJECT_OVERHEAD + sizeOf(environment.getName()) + sizeOf(environment.getLabel())
+			+ sizeOf(environment.getVersion()) + sizeOf(environment.getState());
+		for (PropertySource source : environment.getPropertySources()) {
+			size += OBJECT_OVERHEAD + sizeOf(source.getName());
+			if (source.getSource() != null) {
+				for (Map.Entry<?, ?> entry : source.getSource().entrySet()) {
+					size += ENTRY_OVERHEAD + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+				}
+			}
+		}
+		return size;
+	}
+
+	private static long sizeOf(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof CharSequence) {
+			return 40 + 2L * ((CharSequence) value).length();
+		}
+		return OBJECT_OVERHEAD;
+	}
+}
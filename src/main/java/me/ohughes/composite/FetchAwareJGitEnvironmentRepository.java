@@ -0,0 +1,197 @@
+package me.ohughes.composite;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link MultipleJGitEnvironmentRepository} that leaves fetching to the {@link GitFetchScheduler}. While the background
+ * fetch is fresh a request only checks out the label it asks for, so it never waits on the remote; once the fetch is
+ * older than the maximum staleness, or when no background fetch is scheduled, requests pull as usual.
+ * <p>
+ * With {@code readWithoutCheckout} set, requests do not check out at all but read the label's files straight from the
+ * Git object database using a {@link GitTreeReader}, so requests for different labels no longer queue on the
+ * repository's lock. Otherwise, with {@code worktrees} enabled, each label is read from its own working copy held by a
+ * {@link GitWorktreePool}, to the same effect. Repositories whose URI holds placeholders are always checked out.
+ * <p>
+ * When lookups read the fetched refs, the pattern matching repositories for a lookup are found through a
+ * {@link PatternRepositoryIndex} rather than by trying each repository's patterns in turn. The index is rebuilt
+ * whenever the repositories are set, and again once {@link #afterPropertiesSet()} has given the repositories without a
+ * pattern the default one made from their name. Lookups that check out are left to {@code super.findOne}, as trying
+ * each pattern costs little beside the checkout that follows.
+ */
+@Slf4j
+public class FetchAwareJGitEnvironmentRepository extends MultipleJGitEnvironmentRepository {
+
+	@Getter
+	@Setter
+	private volatile GitFetchStatus fetchStatus;
+	@Getter
+	@Setter
+	private boolean readWithoutCheckout;
+	@Getter(AccessLevel.PACKAGE)
+	private final GitLocalClone localClone = new GitLocalClone(this, this::getWorkingDirectory, this::getFetchStatus);
+	private final GitTreeReader treeReader = new GitTreeReader(this, localClone);
+	private GitWorktreePool worktreePool;
+	private volatile PatternRepositoryIndex<PatternMatchingJGitEnvironmentRepository> repositoryIndex =
+		new PatternRepositoryIndex<>(Collections.emptyList(), PatternMatchingJGitEnvironmentRepository::getPattern);
+	private volatile boolean placeholders;
+
+	public FetchAwareJGitEnvironmentRepository(ConfigurableEnvironment environment) {
+		super(environment);
+	}
+
+	public void setWorktrees(CompositeProperties.WorktreeProperties worktrees) {
+		worktreePool = worktrees.isEnabled() ? new GitWorktreePool(this, localClone, this::getSearchLocations, worktrees) : null;
+	}
+
+	/**
+	 * @return whether lookups resolve labels against the fetched refs rather than checking them out
+	 */
+	boolean isReadingFetchedRefs() {
+		return readWithoutCheckout || worktreePool != null;
+	}
+
+	@Override
+	public void setUri(String uri) {
+		super.setUri(uri);
+		placeholders = hasPlaceholders();
+	}
+
+	@Override
+	public void setRepos(Map<String, PatternMatchingJGitEnvironmentRepository> repos) {
+		super.setRepos(repos);
+		rebuildIndex();
+		placeholders = hasPlaceholders();
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		super.afterPropertiesSet();
+		if (worktreePool != null) {
+			worktreePool.clearStale();
+		}
+		rebuildIndex();
+	}
+
+	private void rebuildIndex() {
+		repositoryIndex = new PatternRepositoryIndex<>(getRepos().values(), PatternMatchingJGitEnvironmentRepository::getPattern);
+	}
+
+	@Override
+	public Environment findOne(String application, String profile, String label) {
+		if (placeholders || !isReadingFetchedRefs()) {
+			return super.findOne(application, profile, label);
+		}
+		// The first pattern matching repository to answer wins, as in the linear search
+		for (PatternMatchingJGitEnvironmentRepository repository : repositoryIndex.resolve(application, profile)) {
+			try {
+				Environment source = repository.findOne(application, profile, label == null ? repository.getDefaultLabel() : label);
+				if (source != null) {
+					return source;
+				}
+			} catch (Exception e) {
+				log.debug("Cannot load configuration from {}, cause: ({}) {}", repository.getUri(),
+					e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+		}
+		if (readWithoutCheckout) {
+			return treeReader.findOne(application, profile, label == null ? getDefaultLabel() : label);
+		}
+		return worktreePool.findOne(application, profile, label == null ? getDefaultLabel() : label);
+	}
+
+	private boolean hasPlaceholders() {
+		if (getUri() != null && getUri().contains("{")) {
+			return true;
+		}
+		for (PatternMatchingJGitEnvironmentRepository repository : getRepos().values()) {
+			if (repository.getUri() != null && repository.getUri().contains("{")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String refresh(String label) {
+		if (fetchStatus != null) {
+			fetchStatus.labelRequested(label == null ? getDefaultLabel() : label);
+		}
+		return super.refresh(label);
+	}
+
+	@Override
+	public boolean shouldPull(Git git) throws GitAPIException {
+		return (fetchStatus == null || !fetchStatus.isFresh()) && super.shouldPull(git);
+	}
+
+	/**
+	 * Pattern matching counterpart of {@link FetchAwareJGitEnvironmentRepository}
+	 */
+	public static class FetchAwarePatternMatchingJGitEnvironmentRepository extends PatternMatchingJGitEnvironmentRepository {
+
+		@Getter
+		@Setter
+		private volatile GitFetchStatus fetchStatus;
+		@Getter
+		@Setter
+		private boolean readWithoutCheckout;
+		@Getter(AccessLevel.PACKAGE)
+		private final GitLocalClone localClone = new GitLocalClone(this, this::getWorkingDirectory, this::getFetchStatus);
+		private final GitTreeReader treeReader = new GitTreeReader(this, localClone);
+		private GitWorktreePool worktreePool;
+
+		public void setWorktrees(CompositeProperties.WorktreeProperties worktrees) {
+			worktreePool = worktrees.isEnabled() ? new GitWorktreePool(this, localClone, this::getSearchLocations, worktrees) : null;
+		}
+
+		boolean isReadingFetchedRefs() {
+			return readWithoutCheckout || worktreePool != null;
+		}
+
+		@Override
+		public void afterPropertiesSet() throws Exception {
+			super.afterPropertiesSet();
+			if (worktreePool != null) {
+				worktreePool.clearStale();
+			}
+		}
+
+		@Override
+		public Environment findOne(String application, String profile, String label) {
+			if (getPattern() == null || getPattern().length == 0) {
+				return super.findOne(application, profile, label);
+			}
+			if (readWithoutCheckout) {
+				return treeReader.findOne(application, profile, label);
+			}
+			if (worktreePool != null) {
+				return worktreePool.findOne(application, profile, label);
+			}
+			return super.findOne(application, profile, label);
+		}
+
+		@Override
+		public String refresh(String label) {
+			if (fetchStatus != null) {
+				fetchStatus.labelRequested(label == null ? getDefaultLabel() : label);
+			}
+			return super.refresh(label);
+		}
+
+		@Override
+		public boolean shouldPull(Git git) throws GitAPIException {
+			return (fetchStatus == null || !fetchStatus.isFresh()) && super.shouldPull(git);
+		}
+	}
+}
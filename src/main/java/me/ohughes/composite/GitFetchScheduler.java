@@ -0,0 +1,243 @@
+package me.ohughes.composite;
+
+import lombok.extern.slf4j.Slf4j;
+import me.ohughes.composite.FetchAwareJGitEnvironmentRepository.FetchAwarePatternMatchingJGitEnvironmentRepository;
+import me.ohughes.proxy.RoutingHttpConnectionFactory;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.TagOpt;
+import org.springframework.cloud.config.server.environment.JGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Fetches the Git repositories of composite entries in the background, so that requests are served from the local
+ * clone rather than waiting on the remote.
+ * <p>
+ * Each repository, including the pattern matching repositories of an entry, is fetched on its own schedule with a
+ * random jitter added to every interval so that many repositories do not hit the remote at the same moment. The
+ * network fetch runs without holding the repository's lock; only moving the requested branches on to the fetched
+ * commits, which is purely local, excludes requests. Results from an entry whose fetch brought in new commits are
+ * evicted from the composite cache, after which any change listeners are told of the change.
+ */
+@Slf4j
+public class GitFetchScheduler {
+
+	private final int threads;
+	private final RoutingHttpConnectionFactory connectionRouter;
+	private final List<GitFetchStatus> statuses = new CopyOnWriteArrayList<>();
+	private CompositeEnvironmentCache cache;
+	private final List<IntConsumer> changeListeners = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService executor;
+
+	public GitFetchScheduler(int threads, RoutingHttpConnectionFactory connectionRouter) {
+		this.threads = threads;
+		this.connectionRouter = connectionRouter;
+	}
+
+	public void setCache(CompositeEnvironmentCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param listener called with the composite index of an entry whose fetch brought in new commits
+	 */
+	public void addChangeListener(IntConsumer listener) {
+		changeListeners.add(listener);
+	}
+
+	public List<GitFetchStatus> getStatuses() {
+		return Collections.unmodifiableList(statuses);
+	}
+
+	/**
+	 * Start fetching the repository of a Git composite entry, and each of its pattern matching repositories, in the
+	 * background
+	 */
+	synchronized void schedule(DeclarativeCompositeHolder holder, CompositeProperties.FetchProperties properties) {
+		if (!(holder.getEnvironmentRepository() instanceof FetchAwareJGitEnvironmentRepository)) {
+			return;
+		}
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(threads, new CustomizableThreadFactory("composite-git-fetch-"));
+		}
+		FetchAwareJGitEnvironmentRepository repository = (FetchAwareJGitEnvironmentRepository) holder.getEnvironmentRepository();
+		if (repository.getFetchStatus() != null) {
+			// Already scheduled, as an entry built lazily schedules itself and may be built before startup schedules the rest
+			return;
+		}
+		String prefix = "composite." + holder.getIndex() + ".git.";
+		GitFetchStatus status = new GitFetchStatus(prefix + "default", properties.getMaxStaleness(), repository.getDefaultLabel());
+		repository.setFetchStatus(status);
+		schedule(holder, repository, status, properties);
+
+		for (Map.Entry<String, PatternMatchingJGitEnvironmentRepository> patternRepo : repository.getRepos().entrySet()) {
+			if (patternRepo.getValue() instanceof FetchAwarePatternMatchingJGitEnvironmentRepository) {
+				GitFetchStatus patternStatus = new GitFetchStatus(prefix + patternRepo.getKey(), properties.getMaxStaleness(),
+					patternRepo.getValue().getDefaultLabel());
+				((FetchAwarePatternMatchingJGitEnvironmentRepository) patternRepo.getValue()).setFetchStatus(patternStatus);
+				schedule(holder, patternRepo.getValue(), patternStatus, properties);
+			}
+		}
+	}
+
+	/**
+	 * Stop fetching the repositories of a Git composite entry that has been removed or moved to another index. A fetch
+	 * already under way is left to finish.
+	 */
+	synchronized void unschedule(DeclarativeCompositeHolder holder) {
+		if (!holder.isInitialized() || !(holder.getEnvironmentRepository() instanceof FetchAwareJGitEnvironmentRepository)) {
+			return;
+		}
+		FetchAwareJGitEnvironmentRepository repository = (FetchAwareJGitEnvironmentRepository) holder.getEnvironmentRepository();
+		statuses.remove(repository.getFetchStatus());
+		repository.setFetchStatus(null);
+		for (PatternMatchingJGitEnvironmentRepository patternRepo : repository.getRepos().values()) {
+			if (patternRepo instanceof FetchAwarePatternMatchingJGitEnvironmentRepository) {
+				FetchAwarePatternMatchingJGitEnvironmentRepository fetchAware = (FetchAwarePatternMatchingJGitEnvironmentRepository) patternRepo;
+				statuses.remove(fetchAware.getFetchStatus());
+				fetchAware.setFetchStatus(null);
+			}
+		}
+	}
+
+	private void schedule(DeclarativeCompositeHolder holder, JGitEnvironmentRepository repository, GitFetchStatus status,
+						  CompositeProperties.FetchProperties properties) {
+		statuses.add(status);
+		Runnable fetch = new Runnable() {
+			@Override
+			public void run() {
+				if (!statuses.contains(status)) {
+					log.debug("Stopped fetching {} as its composite entry has been removed", status.getName());
+					return;
+				}
+				fetch(holder, repository, status);
+				try {
+					executor.schedule(this, properties.getInterval() + jitter(properties), TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					log.debug("Stopped fetching {} as the scheduler has shut down", status.getName());
+				}
+			}
+		};
+		executor.schedule(fetch, jitter(properties), TimeUnit.MILLISECONDS);
+	}
+
+	private static long jitter(CompositeProperties.FetchProperties properties) {
+		return properties.getJitter() > 0 ? ThreadLocalRandom.current().nextLong(properties.getJitter() + 1) : 0;
+	}
+
+	private void fetch(DeclarativeCompositeHolder holder, JGitEnvironmentRepository repository, GitFetchStatus status) {
+		long start = System.nanoTime();
+		try {
+			boolean changed = connectionRouter == null || holder.getConnectionFactory() == null
+				? fetch(repository, status)
+				: connectionRouter.route(holder.getConnectionFactory(), () -> fetch(repository, status));
+			status.fetched(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			if (changed) {
+				if (cache != null) {
+					cache.evictBackend(holder.getIndex());
+				}
+				changeListeners.forEach(listener -> listener.accept(holder.getIndex()));
+			}
+		} catch (Exception e) {
+			status.failed(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e);
+			log.warn("Background fetch of {} failed: {}", status.getName(), e.getMessage());
+		}
+	}
+
+	/**
+	 * @return whether the fetch brought in anything new
+	 */
+	private boolean fetch(JGitEnvironmentRepository repository, GitFetchStatus status) {
+		File basedir = repository.getBasedir();
+		try {
+			if (!new File(basedir, ".git").exists()) {
+				// Not cloned yet, so clone it just as a request would
+				synchronized (repository) {
+					repository.refresh(repository.getDefaultLabel());
+				}
+				return true;
+			}
+			try (Git git = Git.open(basedir)) {
+				FetchCommand fetch = git.fetch().setRemote("origin").setTagOpt(TagOpt.FETCH_TAGS)
+					.setTimeout(repository.getTimeout());
+				if (repository.getGitCredentialsProvider() != null) {
+					fetch.setCredentialsProvider(repository.getGitCredentialsProvider());
+				}
+				// Lookups that read the fetched refs fetch the same clone themselves once the background fetch is stale
+				GitLocalClone localClone = localClone(repository);
+				FetchResult result = localClone == null ? fetch.call() : localClone.fetchExclusively(fetch::call);
+				if (result.getTrackingRefUpdates().isEmpty()) {
+					return false;
+				}
+				// Requests hold the same lock while they check out and read the working tree. Requests that read without
+				// checking out, or from per-label working copies, resolve labels against the fetched refs, so have no
+				// branches to move on.
+				if (!readsFetchedRefs(repository)) {
+					synchronized (repository) {
+						advanceBranches(git, status);
+					}
+				}
+				return true;
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private static GitLocalClone localClone(JGitEnvironmentRepository repository) {
+		if (repository instanceof FetchAwareJGitEnvironmentRepository) {
+			return ((FetchAwareJGitEnvironmentRepository) repository).getLocalClone();
+		}
+		return repository instanceof FetchAwarePatternMatchingJGitEnvironmentRepository
+			? ((FetchAwarePatternMatchingJGitEnvironmentRepository) repository).getLocalClone() : null;
+	}
+
+	private static boolean readsFetchedRefs(JGitEnvironmentRepository repository) {
+		if (repository instanceof FetchAwareJGitEnvironmentRepository) {
+			return ((FetchAwareJGitEnvironmentRepository) repository).isReadingFetchedRefs();
+		}
+		return repository instanceof FetchAwarePatternMatchingJGitEnvironmentRepository
+			&& ((FetchAwarePatternMatchingJGitEnvironmentRepository) repository).isReadingFetchedRefs();
+	}
+
+	/**
+	 * Move each requested branch on to the commit just fetched for it. The working copies are never edited, so a hard
+	 * reset is equivalent to the merge a request would otherwise carry out after fetching. Tags and commit ids do not
+	 * move, and branches without a local counterpart are created from the fetched ref when first checked out.
+	 */
+	private static void advanceBranches(Git git, GitFetchStatus status) throws Exception {
+		Repository repository = git.getRepository();
+		for (String label : status.getLabels()) {
+			Ref remote = repository.exactRef("refs/remotes/origin/" + label);
+			Ref local = repository.exactRef("refs/heads/" + label);
+			if (remote == null || local == null || remote.getObjectId().equals(local.getObjectId())) {
+				continue;
+			}
+			git.checkout().setName(label).call();
+			git.reset().setMode(ResetCommand.ResetType.HARD).setRef(remote.getName()).call();
+		}
+	}
+
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
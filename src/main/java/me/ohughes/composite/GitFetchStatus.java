@@ -0,0 +1,63 @@
+package me.ohughes.composite;
+
+import lombok.Getter;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome of the background fetches of a single Git repository, along with the labels that requests have asked it
+ * for. While the last successful fetch is within the maximum staleness, requests are served from the local clone
+ * without contacting the remote.
+ */
+@Getter
+public class GitFetchStatus {
+
+	/**
+	 * Labels are recorded as requests arrive, so bound how many are kept up to date
+	 */
+	private static final int MAX_LABELS = 64;
+
+	private final String name;
+	private final long maxStaleness;
+	private final Set<String> labels = ConcurrentHashMap.newKeySet();
+	private final LongAdder failures = new LongAdder();
+	private volatile long lastFetch;
+	private volatile long lastFetchDuration;
+	private volatile String lastError;
+
+	GitFetchStatus(String name, long maxStaleness, String defaultLabel) {
+		this.name = name;
+		this.maxStaleness = maxStaleness;
+		if (defaultLabel != null) {
+			labels.add(defaultLabel);
+		}
+	}
+
+	/**
+	 * @return whether the local clone was fetched recently enough to serve requests without pulling
+	 */
+	boolean isFresh() {
+		long lastFetch = this.lastFetch;
+		return lastFetch > 0 && System.currentTimeMillis() - lastFetch <= maxStaleness;
+	}
+
+	void labelRequested(String label) {
+		if (label != null && labels.size() < MAX_LABELS) {
+			labels.add(label);
+		}
+	}
+
+	void fetched(long durationMillis) {
+		lastFetchDuration = durationMillis;
+		lastFetch = System.currentTimeMillis();
+		lastError = null;
+	}
+
+	void failed(long durationMillis, Exception e) {
+		lastFetchDuration = durationMillis;
+		lastError = e.getMessage();
+		failures.increment();
+	}
+}
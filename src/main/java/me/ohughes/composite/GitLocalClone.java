@@ -0,0 +1,141 @@
+package me.ohughes.composite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.FS;
+import org.springframework.cloud.config.server.environment.JGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.NoSuchLabelException;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * The local clone of a Git repository, as read by lookups that resolve labels against the fetched refs rather than
+ * checking them out: a {@link GitTreeReader} or a {@link GitWorktreePool}.
+ * <p>
+ * The repository is cloned, as usual, on first use. While the entry's background fetch is fresh nothing is fetched;
+ * otherwise every lookup fetches, lookups arriving while a fetch is under way sharing it. The {@link GitFetchScheduler}
+ * fetches through {@link #fetchExclusively(Callable)}, so the background fetch and lookups never fetch the clone at the
+ * same time, which JGit would fail on the ref locks the other fetch holds.
+ */
+@Slf4j
+class GitLocalClone {
+
+	private final JGitEnvironmentRepository repository;
+	private final Supplier<File> workingDirectory;
+	private final Supplier<GitFetchStatus> fetchStatus;
+	private final Object fetchLock = new Object();
+	private long lastFetchStarted;
+
+	/**
+	 * @param workingDirectory where the repository keeps its clone, which for a local repository is the repository itself
+	 */
+	GitLocalClone(JGitEnvironmentRepository repository, Supplier<File> workingDirectory, Supplier<GitFetchStatus> fetchStatus) {
+		this.repository = repository;
+		this.workingDirectory = workingDirectory;
+		this.fetchStatus = fetchStatus;
+	}
+
+	/**
+	 * Clone or fetch as needed and open the clone's object database for reading {@code label}. The caller closes it.
+	 */
+	Repository open(String label) {
+		File gitDir = new File(workingDirectory.get(), ".git");
+		if (!gitDir.exists()) {
+			// Not cloned yet, so clone it just as a checkout would
+			synchronized (repository) {
+				repository.refresh(repository.getDefaultLabel());
+			}
+		} else {
+			fetchIfStale();
+		}
+		if (fetchStatus.get() != null) {
+			fetchStatus.get().labelRequested(label);
+		}
+
+		try {
+			return RepositoryCache.open(RepositoryCache.FileKey.exact(gitDir, FS.DETECTED), true);
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("Cannot open git repo at %s: %s", gitDir, e.getMessage()), e);
+		}
+	}
+
+	/**
+	 * Fetch from the remote, unless the background fetch is fresh or a fetch started since this lookup arrived
+	 */
+	private void fetchIfStale() {
+		GitFetchStatus status = fetchStatus.get();
+		if (status != null && status.isFresh()) {
+			return;
+		}
+		long requested = System.nanoTime();
+		synchronized (fetchLock) {
+			if (lastFetchStarted - requested > 0) {
+				return;
+			}
+			lastFetchStarted = System.nanoTime();
+			try (Git git = Git.open(workingDirectory.get())) {
+				if (git.getRepository().getConfig().getString("remote", "origin", "url") == null) {
+					// A local repository read in place, which has nothing to fetch
+					return;
+				}
+				FetchCommand fetch = git.fetch().setRemote("origin").setTagOpt(TagOpt.FETCH_TAGS)
+					.setTimeout(repository.getTimeout());
+				if (repository.getGitCredentialsProvider() != null) {
+					fetch.setCredentialsProvider(repository.getGitCredentialsProvider());
+				} else if (StringUtils.hasText(repository.getUsername())) {
+					fetch.setCredentialsProvider(new UsernamePasswordCredentialsProvider(repository.getUsername(),
+						repository.getPassword()));
+				}
+				fetch.call();
+			} catch (Exception e) {
+				// A checkout serves what it has locally when the fetch fails, and so does this
+				log.warn("Could not fetch remote for {}: {}", repository.getUri(), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Carry out {@code fetch} of the clone holding the lock every fetch of it holds. Lookups that arrive before it starts
+	 * share it rather than fetching again.
+	 */
+	<T> T fetchExclusively(Callable<T> fetch) throws Exception {
+		synchronized (fetchLock) {
+			lastFetchStarted = System.nanoTime();
+			return fetch.call();
+		}
+	}
+
+	/**
+	 * Resolve {@code label} as a checkout would: a remote branch, then a local branch, a tag and lastly a commit id
+	 */
+	static ObjectId resolve(Repository git, String label) throws IOException {
+		for (String prefix : new String[]{"refs/remotes/origin/", "refs/heads/", "refs/tags/"}) {
+			Ref ref = git.exactRef(prefix + label);
+			if (ref != null) {
+				return ref.getObjectId();
+			}
+		}
+		ObjectId commitId;
+		try {
+			commitId = git.resolve(label + "^{commit}");
+		} catch (RevisionSyntaxException e) {
+			commitId = null;
+		}
+		if (commitId == null) {
+			throw new NoSuchLabelException("No such label: " + label);
+		}
+		return commitId;
+	}
+}
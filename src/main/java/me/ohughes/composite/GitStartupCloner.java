@@ -0,0 +1,200 @@
+package me.ohughes.composite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.config.server.environment.JGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries out the "start up" clone of every Git repository in the composite that has {@code cloneOnStart} set,
+ * including the pattern matching repositories nested within each entry.
+ * <p>
+ * {@link MultipleJGitEnvironmentRepository#afterPropertiesSet()} clones an entry's repository and then each of its
+ * pattern matching repositories one after another, so with many repositories startup is dominated by waiting on the
+ * network. Instead each repository is configured as it is added, with cloning suppressed, and {@link #cloneAll()} then
+ * clones all of them concurrently on a bounded pool within an overall deadline.
+ */
+@Slf4j
+class GitStartupCloner {
+
+	private final CompositeProperties.StartupCloneProperties properties;
+	private final Map<String, Callable<Void>> clones = new LinkedHashMap<>();
+
+	GitStartupCloner(CompositeProperties.StartupCloneProperties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Configure {@code repository} and its pattern matching repositories, and queue a clone for each of them that
+	 * clones on start. Any "cloneOnStart" value is respected; repositories without it keep cloning on demand.
+	 *
+	 * @param name identifies the repository in the startup report
+	 */
+	void add(String name, MultipleJGitEnvironmentRepository repository) {
+		Map<String, PatternMatchingJGitEnvironmentRepository> patternRepos = repository.getRepos();
+		Map<JGitEnvironmentRepository, Boolean> cloneOnStart = new LinkedHashMap<>();
+		cloneOnStart.put(repository, repository.isCloneOnStart());
+		for (PatternMatchingJGitEnvironmentRepository patternRepo : patternRepos.values()) {
+			cloneOnStart.put(patternRepo, patternRepo.isCloneOnStart());
+		}
+
+		// Propagates credentials and timeouts to the pattern matching repositories without touching the network
+		cloneOnStart.keySet().forEach(repo -> repo.setCloneOnStart(false));
+		try {
+			repository.afterPropertiesSet();
+		} catch (Exception e) {
+			throw new IllegalStateException(String.format("Error occurred configuring git repo %s: %s", name,
+				e.getMessage()), e);
+		} finally {
+			cloneOnStart.forEach(JGitEnvironmentRepository::setCloneOnStart);
+		}
+
+		if (repository.isCloneOnStart()) {
+			clones.put(name, () -> {
+				cloneWithoutPatternRepos(repository);
+				return null;
+			});
+		}
+		for (Map.Entry<String, PatternMatchingJGitEnvironmentRepository> patternRepo : patternRepos.entrySet()) {
+			if (patternRepo.getValue().isCloneOnStart()) {
+				clones.put(name + ".repos." + patternRepo.getKey(), () -> {
+					// Lookups hold the same lock, so wait rather than clone alongside
+					synchronized (patternRepo.getValue()) {
+						patternRepo.getValue().afterPropertiesSet();
+					}
+					return null;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Clone every queued repository, returning once all of them are cloned
+	 *
+	 * @throws IllegalStateException if any clone fails or the deadline passes first, in which case the remaining
+	 * clones are cancelled
+	 */
+	void cloneAll() {
+		if (clones.isEmpty()) {
+			return;
+		}
+		List<String> names = new ArrayList<>(clones.keySet());
+		List<Callable<Void>> timedClones = new ArrayList<>(clones.size());
+		Map<String, Long> durations = new LinkedHashMap<>();
+		for (Map.Entry<String, Callable<Void>> clone : clones.entrySet()) {
+			timedClones.add(() -> {
+				long start = System.nanoTime();
+				try {
+					return clone.getValue().call();
+				} finally {
+					synchronized (durations) {
+						durations.put(clone.getKey(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					}
+				}
+			});
+		}
+
+		int threads = Math.max(1, Math.min(properties.getParallelism(), clones.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("composite-clone-"));
+		long start = System.nanoTime();
+		List<Future<Void>> results;
+		try {
+			results = executor.invokeAll(timedClones, properties.getDeadline(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while cloning git repos on start", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		List<String> timedOut = new ArrayList<>();
+		Map<String, Throwable> failures = new LinkedHashMap<>();
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (CancellationException e) {
+				timedOut.add(names.get(i));
+			} catch (ExecutionException e) {
+				failures.put(names.get(i), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while cloning git repos on start", e);
+			}
+		}
+
+		report(names, durations, elapsed, threads);
+		if (!failures.isEmpty()) {
+			Map.Entry<String, Throwable> failure = failures.entrySet().iterator().next();
+			log.info("Error occurred attempting to clone git repos on start: {} ", failures.keySet());
+			throw new IllegalStateException(String.format("Error occurred attempting to clone git repo %s on start: %s",
+				failure.getKey(), failure.getValue().getMessage()), failure.getValue());
+		}
+		if (!timedOut.isEmpty()) {
+			throw new IllegalStateException(String.format("Git repos %s were not cloned within the startup deadline of %d ms",
+				timedOut, properties.getDeadline()));
+		}
+	}
+
+	/**
+	 * Clone every queued repository on a background thread, for when there are results to serve in the meantime.
+	 * Rather than failing startup, a failed clone is logged and the repository left to clone on its first lookup.
+	 *
+	 * @return completes, always normally, once the clones have finished
+	 */
+	CompletableFuture<Void> cloneAllInBackground() {
+		CompletableFuture<Void> cloned = new CompletableFuture<>();
+		Thread thread = new CustomizableThreadFactory("composite-clone-background-").newThread(() -> {
+			try {
+				cloneAll();
+			} catch (RuntimeException e) {
+				log.error("Error occurred cloning git repos in the background: {}", e.getMessage(), e);
+			} finally {
+				cloned.complete(null);
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return cloned;
+	}
+
+	private void report(List<String> names, Map<String, Long> durations, long elapsed, int threads) {
+		log.info("Cloned {} git repos on start in {} ms using {} threads", names.size(), elapsed, threads);
+		synchronized (durations) {
+			for (String name : names) {
+				Long duration = durations.get(name);
+				log.info("  {}: {}", name, duration == null ? "not started" : duration + " ms");
+			}
+		}
+	}
+
+	/**
+	 * Clone the entry's own repository. {@link MultipleJGitEnvironmentRepository#afterPropertiesSet()} would go on to
+	 * clone each pattern matching repository as well, and they are cloned separately, so the clone is made as the first
+	 * lookup would make it instead, holding the repository's lock as lookups do. The repository's pattern matching
+	 * repositories are left as they are throughout, so lookups made meanwhile still reach them.
+	 */
+	private static void cloneWithoutPatternRepos(MultipleJGitEnvironmentRepository repository) {
+		if (repository.getUri().contains("{")) {
+			// Repositories with placeholders are only cloned once a lookup fills them in
+			return;
+		}
+		synchronized (repository) {
+			repository.refresh(repository.getDefaultLabel());
+		}
+	}
+}
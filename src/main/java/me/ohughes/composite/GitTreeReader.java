@@ -0,0 +1,286 @@
+package me.ohughes.composite;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.springframework.boot.env.PropertiesPropertySourceLoader;
+import org.springframework.boot.env.PropertySourceLoader;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+import org.springframework.cloud.config.server.environment.JGitEnvironmentRepository;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the configuration files of a Git repository straight from the commit a label resolves to, rather than checking
+ * the label out and reading the working tree. Nothing on disk changes while reading, so lookups need no lock and
+ * lookups for different labels run at the same time.
+ * <p>
+ * Files are found and loaded just as {@link org.springframework.cloud.config.server.environment.NativeEnvironmentRepository}
+ * would find them in a checkout: the root and each matching search path are searched, later ones first, for
+ * {@code {application}} and then {@code application} files, profile specific files and YAML documents taking precedence
+ * over the rest and later profiles over earlier ones. Files are parsed by the same Spring Boot loaders, so property
+ * source names and values match those of a checkout. Profiles activated or included from within the files themselves
+ * are not followed.
+ * <p>
+ * The repository is cloned and fetched by a {@link GitLocalClone}.
+ */
+class GitTreeReader {
+
+	private static final String[] EXTENSIONS = {"properties", "xml", "yml", "yaml"};
+	private static final PropertySourceLoader PROPERTIES_LOADER = new PropertiesPropertySourceLoader();
+	private static final PropertySourceLoader YAML_LOADER = new YamlPropertySourceLoader();
+
+	private final JGitEnvironmentRepository repository;
+	private final GitLocalClone clone;
+	private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+	GitTreeReader(JGitEnvironmentRepository repository, GitLocalClone clone) {
+		this.repository = repository;
+		this.clone = clone;
+	}
+
+	Environment findOne(String application, String profile, String label) {
+		Repository git = clone.open(label);
+		try (ObjectReader reader = git.newObjectReader(); RevWalk revWalk = new RevWalk(reader)) {
+			RevCommit commit = revWalk.parseCommit(GitLocalClone.resolve(git, label));
+			Tree tree = new Tree(reader, commit.getTree());
+			String[] profiles = profile == null ? new String[0] : StringUtils.commaDelimitedListToStringArray(profile);
+			Environment environment = new Environment(application, profiles, label, commit.getName(), null);
+			for (PropertySource source : load(tree, searchDirectories(tree, application, profile, label),
+				configNames(application), profiles)) {
+				environment.add(source);
+			}
+			return environment;
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("Cannot read label %s of %s: %s", label, repository.getUri(),
+				e.getMessage()), e);
+		} finally {
+			git.close();
+		}
+	}
+
+	/**
+	 * The root, then every directory matching a search path once its placeholders are replaced, each ending in a slash
+	 * and, as later locations take precedence, in reverse order
+	 */
+	private List<String> searchDirectories(Tree tree, String application, String profile, String label) throws IOException {
+		Set<String> directories = new LinkedHashSet<>();
+		directories.add("");
+		String[] applications = application == null ? new String[]{null} : StringUtils.commaDelimitedListToStringArray(application);
+		String[] profiles = profile == null ? new String[]{null} : StringUtils.commaDelimitedListToStringArray(profile);
+		for (String searchPath : repository.getSearchPaths() == null ? new String[0] : repository.getSearchPaths()) {
+			for (String eachProfile : profiles) {
+				for (String eachApplication : applications) {
+					String path = searchPath;
+					if (eachApplication != null) {
+						path = path.replace("{application}", eachApplication);
+					}
+					if (eachProfile != null) {
+						path = path.replace("{profile}", eachProfile);
+					}
+					if (label != null) {
+						path = path.replace("{label}", label);
+					}
+					path = StringUtils.trimLeadingCharacter(path, '/');
+					if (!path.isEmpty() && !path.endsWith("/")) {
+						path = path + "/";
+					}
+					if (pathMatcher.isPattern(path)) {
+						for (String directory : tree.directories()) {
+							if (pathMatcher.match(path, directory)) {
+								directories.add(directory);
+							}
+						}
+					} else if (tree.directories().contains(path)) {
+						directories.add(path);
+					}
+				}
+			}
+		}
+		List<String> ordered = new ArrayList<>(directories);
+		Collections.reverse(ordered);
+		return ordered;
+	}
+
+	/**
+	 * File names searched for, most specific first, which like a checkout leaves out {@code application} when the
+	 * application's own name already starts with it
+	 */
+	private static List<String> configNames(String application) {
+		String config = application == null ? "application"
+			: application.startsWith("application") ? application : "application," + application;
+		List<String> names = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(
+			StringUtils.trimArrayElements(StringUtils.commaDelimitedListToStringArray(config)))));
+		Collections.reverse(names);
+		return names;
+	}
+
+	/**
+	 * Load the files in the order Spring Boot loads config files for the given active profiles, returning them with
+	 * the highest precedence first
+	 */
+	private List<PropertySource> load(Tree tree, List<String> directories, List<String> names, String[] profiles) throws IOException {
+		List<String> loadOrder = new ArrayList<>();
+		loadOrder.add(null);
+		for (String profile : profiles) {
+			loadOrder.add(profile.trim());
+		}
+
+		List<List<PropertySource>> groups = new ArrayList<>();
+		List<String> processedProfiles = new ArrayList<>();
+		for (String profile : loadOrder) {
+			Map<String, PropertySource> group = new LinkedHashMap<>();
+			for (String directory : directories) {
+				for (String name : names) {
+					for (String extension : EXTENSIONS) {
+						if (profile != null) {
+							load(tree, group, directory + name + "-" + profile + "." + extension, null);
+							for (String processedProfile : processedProfiles) {
+								load(tree, group, directory + name + "-" + processedProfile + "." + extension, profile);
+							}
+							load(tree, group, directory + name + "-" + profile + "." + extension, profile);
+						}
+						load(tree, group, directory + name + "." + extension, profile);
+					}
+				}
+			}
+			groups.add(new ArrayList<>(group.values()));
+			if (profile != null) {
+				processedProfiles.add(profile);
+			}
+		}
+
+		List<PropertySource> sources = new ArrayList<>();
+		for (int i = groups.size() - 1; i >= 0; i--) {
+			sources.addAll(groups.get(i));
+		}
+		return sources;
+	}
+
+	private void load(Tree tree, Map<String, PropertySource> group, String path, String profile) throws IOException {
+		byte[] content = tree.read(path);
+		if (content == null) {
+			return;
+		}
+		String name = repository.getUri() + "/" + path + (profile == null ? "" : "#" + profile);
+		if (group.containsKey(name)) {
+			return;
+		}
+		PropertySourceLoader loader = path.endsWith(".yml") || path.endsWith(".yaml") ? YAML_LOADER : PROPERTIES_LOADER;
+		org.springframework.core.env.PropertySource<?> loaded = loader.load(name, new BlobResource(content, path), profile);
+		if (loaded != null && loaded.getSource() instanceof Map) {
+			group.put(name, new PropertySource(name, (Map<?, ?>) loaded.getSource()));
+		}
+	}
+
+	/**
+	 * The files and directories of a single commit, each directory being listed at most once however many lookups
+	 * name it
+	 */
+	private static class Tree {
+
+		private final ObjectReader reader;
+		private final RevTree root;
+		private final Map<String, Map<String, ObjectId>> files = new HashMap<>();
+		private Set<String> directories;
+
+		Tree(ObjectReader reader, RevTree root) {
+			this.reader = reader;
+			this.root = root;
+		}
+
+		/**
+		 * @return the content of the file at {@code path}, or {@code null} if there is no such file
+		 */
+		byte[] read(String path) throws IOException {
+			int slash = path.lastIndexOf('/');
+			String directory = path.substring(0, slash + 1);
+			ObjectId blobId = files(directory).get(path.substring(slash + 1));
+			return blobId == null ? null : reader.open(blobId).getBytes();
+		}
+
+		private Map<String, ObjectId> files(String directory) throws IOException {
+			Map<String, ObjectId> listed = files.get(directory);
+			if (listed != null) {
+				return listed;
+			}
+			listed = new HashMap<>();
+			ObjectId treeId = root;
+			if (!directory.isEmpty()) {
+				TreeWalk directoryWalk = TreeWalk.forPath(reader, directory.substring(0, directory.length() - 1), root);
+				treeId = directoryWalk != null && directoryWalk.isSubtree() ? directoryWalk.getObjectId(0) : null;
+			}
+			if (treeId != null) {
+				TreeWalk walk = new TreeWalk(reader);
+				walk.addTree(treeId);
+				while (walk.next()) {
+					if (!walk.isSubtree()) {
+						listed.put(walk.getNameString(), walk.getObjectId(0));
+					}
+				}
+			}
+			files.put(directory, listed);
+			return listed;
+		}
+
+		/**
+		 * @return every directory in the commit, each ending in a slash
+		 */
+		Set<String> directories() throws IOException {
+			if (directories == null) {
+				directories = new LinkedHashSet<>();
+				TreeWalk walk = new TreeWalk(reader);
+				walk.addTree(root);
+				while (walk.next()) {
+					if (walk.isSubtree()) {
+						directories.add(walk.getPathString() + "/");
+						walk.enterSubtree();
+					}
+				}
+			}
+			return directories;
+		}
+	}
+
+	/**
+	 * The loaders tell XML properties files apart by their file name, which a plain byte array resource does not have
+	 */
+	private static class BlobResource extends ByteArrayResource {
+
+		private final String path;
+
+		BlobResource(byte[] content, String path) {
+			super(content, path);
+			this.path = path;
+		}
+
+		@Override
+		public String getFilename() {
+			return StringUtils.getFilename(path);
+		}
+
+		@Override
+		public Resource createRelative(String relativePath) {
+			throw new UnsupportedOperationException("Relative resources are not supported for " + path);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package me.ohughes.composite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.EnvironmentCleaner;
+import org.springframework.cloud.config.server.environment.JGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.NativeEnvironmentRepository;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Working copies of a Git repository, one per label, so that lookups for different labels read their own files at the
+ * same time instead of queueing to check their label out in the repository's single working tree.
+ * <p>
+ * Each working copy is written straight from the clone's object database, which all of them share, to a directory of
+ * the pool's own next to the clone, and is read just as a checkout is. The pool marks the directory as its own when it
+ * creates it, and never clears a directory without that mark. A label's working copy is kept while the label still resolves to
+ * the same commit, so a hot label is written once; when the label moves on a new copy is written and the old one is
+ * removed once the lookups reading it have finished. Copies are evicted, least recently used first, to stay within
+ * {@code max-worktrees} copies and {@code max-bytes} of files, though copies being read are never evicted.
+ * <p>
+ * The repository is cloned and fetched by a {@link GitLocalClone}.
+ */
+@Slf4j
+class GitWorktreePool {
+
+	/**
+	 * The search locations of a lookup within a working copy, as worked out by the repository
+	 */
+	interface SearchLocator {
+		String[] getSearchLocations(File directory, String application, String profile, String label);
+	}
+
+	/**
+	 * Marks the directory holding the working copies as created by a pool
+	 */
+	private static final String MARKER = ".composite-worktree-pool";
+
+	private final JGitEnvironmentRepository repository;
+	private final GitLocalClone clone;
+	private final SearchLocator searchLocator;
+	private final CompositeProperties.WorktreeProperties properties;
+	private final Map<String, Worktree> worktrees = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Object> checkoutLocks = new ConcurrentHashMap<>();
+	private final EnvironmentCleaner cleaner = new EnvironmentCleaner();
+	private long bytes;
+	private long sequence;
+	private final AtomicBoolean cleared = new AtomicBoolean();
+
+	GitWorktreePool(JGitEnvironmentRepository repository, GitLocalClone clone, SearchLocator searchLocator,
+					CompositeProperties.WorktreeProperties properties) {
+		this.repository = repository;
+		this.clone = clone;
+		this.searchLocator = searchLocator;
+		this.properties = properties;
+	}
+
+	/**
+	 * Remove the working copies left behind by a previous run, which are not tracked so would never be evicted. Only
+	 * the first call removes anything, as the copies there afterwards are this pool's own.
+	 *
+	 * @throws IllegalStateException if the directory for the working copies holds files but was not created by a pool
+	 */
+	void clearStale() {
+		if (cleared.compareAndSet(false, true)) {
+			File root = root();
+			if (!root.exists()) {
+				return;
+			}
+			requireOwned(root);
+			File[] stale = root.listFiles(file -> !file.getName().equals(MARKER));
+			for (File worktree : stale == null ? new File[0] : stale) {
+				FileSystemUtils.deleteRecursively(worktree);
+			}
+		}
+	}
+
+	/**
+	 * @return the labels with a checkout lock, which are those with a working copy in the pool or being written
+	 */
+	int lockedLabels() {
+		return checkoutLocks.size();
+	}
+
+	Environment findOne(String application, String profile, String label) {
+		Worktree worktree;
+		Repository git = clone.open(label);
+		try {
+			worktree = acquire(git, label, GitLocalClone.resolve(git, label));
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("Cannot check out label %s of %s: %s", label, repository.getUri(),
+				e.getMessage()), e);
+		} finally {
+			git.close();
+		}
+		try {
+			NativeEnvironmentRepository delegate = new NativeEnvironmentRepository(repository.getEnvironment());
+			delegate.setSearchLocations(searchLocator.getSearchLocations(worktree.directory, application, profile, label));
+			Environment result = delegate.findOne(application, profile, "");
+			result.setVersion(worktree.commit.getName());
+			result.setLabel(label);
+			return cleaner.clean(result, worktree.directory.toURI().toString(), repository.getUri());
+		} finally {
+			release(worktree);
+		}
+	}
+
+	/**
+	 * @return the working copy of {@code label} at {@code commit}, written first if need be, which the caller releases
+	 */
+	private Worktree acquire(Repository git, String label, ObjectId commit) throws IOException {
+		Worktree held = use(label, commit);
+		if (held != null) {
+			return held;
+		}
+		// Lookups for the same label wait for a single copy to be written, other labels carry on
+		synchronized (checkoutLocks.computeIfAbsent(label, key -> new Object())) {
+			held = use(label, commit);
+			if (held != null) {
+				return held;
+			}
+			Worktree written;
+			try {
+				written = write(git, label, commit);
+			} catch (IOException | RuntimeException e) {
+				dropLockIfUnused(label);
+				throw e;
+			}
+			List<Worktree> removable = new ArrayList<>();
+			synchronized (this) {
+				written.users++;
+				Worktree replaced = worktrees.put(label, written);
+				bytes += written.bytes;
+				if (replaced != null) {
+					retire(replaced, removable);
+				}
+				evict(removable);
+			}
+			remove(removable);
+			return written;
+		}
+	}
+
+	private synchronized Worktree use(String label, ObjectId commit) {
+		Worktree held = worktrees.get(label);
+		if (held == null || !held.commit.equals(commit)) {
+			return null;
+		}
+		held.users++;
+		return held;
+	}
+
+	private void release(Worktree worktree) {
+		boolean removable;
+		synchronized (this) {
+			worktree.users--;
+			removable = worktree.retired && worktree.users == 0;
+		}
+		if (removable) {
+			delete(worktree);
+		}
+	}
+
+	/**
+	 * Evict the least recently used copies not being read until the pool is back within its limits
+	 */
+	private void evict(List<Worktree> removable) {
+		Iterator<Worktree> eldestFirst = worktrees.values().iterator();
+		while ((worktrees.size() > properties.getMaxWorktrees() || bytes > properties.getMaxBytes()) && eldestFirst.hasNext()) {
+			Worktree worktree = eldestFirst.next();
+			if (worktree.users == 0) {
+				eldestFirst.remove();
+				bytes -= worktree.bytes;
+				worktree.retired = true;
+				removable.add(worktree);
+				// Should a lookup for the label be writing a new copy meanwhile, the next one for it may write another
+				checkoutLocks.remove(worktree.label);
+			}
+		}
+	}
+
+	private synchronized void dropLockIfUnused(String label) {
+		if (!worktrees.containsKey(label)) {
+			checkoutLocks.remove(label);
+		}
+	}
+
+	private void retire(Worktree worktree, List<Worktree> removable) {
+		bytes -= worktree.bytes;
+		worktree.retired = true;
+		if (worktree.users == 0) {
+			removable.add(worktree);
+		}
+	}
+
+	private void remove(List<Worktree> removable) {
+		for (Worktree worktree : removable) {
+			delete(worktree);
+		}
+	}
+
+	private void delete(Worktree worktree) {
+		log.debug("Removing working copy of {} at {} from {}", worktree.label, worktree.commit.getName(), worktree.directory);
+		FileSystemUtils.deleteRecursively(worktree.directory);
+	}
+
+	/**
+	 * Write the files of {@code commit} to a new directory, sharing the clone's object database rather than cloning
+	 */
+	private Worktree write(Repository git, String label, ObjectId commit) throws IOException {
+		File directory;
+		synchronized (this) {
+			directory = new File(ownedRoot(), (sequence++) + "-" + label.replaceAll("[^A-Za-z0-9._-]", "_"));
+		}
+		long start = System.nanoTime();
+		long written = 0;
+		try (ObjectReader reader = git.newObjectReader(); RevWalk revWalk = new RevWalk(reader)) {
+			RevCommit revCommit = revWalk.parseCommit(commit);
+			TreeWalk walk = new TreeWalk(reader);
+			walk.addTree(revCommit.getTree());
+			walk.setRecursive(true);
+			while (walk.next()) {
+				if ((walk.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+					// Symbolic links and submodules are not config files
+					continue;
+				}
+				File file = new File(directory, walk.getPathString());
+				Files.createDirectories(file.getParentFile().toPath());
+				ObjectLoader blob = reader.open(walk.getObjectId(0));
+				try (OutputStream out = Files.newOutputStream(file.toPath())) {
+					blob.copyTo(out);
+				}
+				written += blob.getSize();
+			}
+		} catch (IOException | RuntimeException e) {
+			FileSystemUtils.deleteRecursively(directory);
+			throw e;
+		}
+		Files.createDirectories(directory.toPath());
+		log.debug("Wrote working copy of {} at {} to {} in {} ms", label, commit.getName(), directory,
+			TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return new Worktree(label, commit.copy(), directory, written);
+	}
+
+	/**
+	 * The directory of the working copies, created and marked as the pool's own if need be. Called holding the pool's
+	 * lock.
+	 */
+	private File ownedRoot() throws IOException {
+		File root = root();
+		File marker = new File(root, MARKER);
+		if (!marker.isFile()) {
+			requireOwned(root);
+			Files.createDirectories(root.toPath());
+			if (!marker.createNewFile() && !marker.isFile()) {
+				throw new IOException("Cannot create " + marker);
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * A directory without the marker is only taken over while it is empty
+	 */
+	private static void requireOwned(File root) {
+		String[] files = root.list();
+		if (files != null && files.length > 0 && !new File(root, MARKER).isFile()) {
+			throw new IllegalStateException(String.format("Not using %s for git working copies as it was not created by "
+				+ "the composite: remove it or choose another basedir", root));
+		}
+	}
+
+	/**
+	 * A directory of the pool's own, within one named after the clone, so that clearing stale copies never reaches files
+	 * the pool did not write
+	 */
+	private File root() {
+		return new File(repository.getBasedir().getAbsolutePath() + "-worktrees", "composite-worktree-pool");
+	}
+
+	private static class Worktree {
+		private final String label;
+		private final ObjectId commit;
+		private final File directory;
+		private final long bytes;
+		/**
+		 * Lookups reading the copy, guarded by the pool
+		 */
+		private int users;
+		/**
+		 * Whether the copy has left the pool, to be removed once no lookup is reading it
+		 */
+		private boolean retired;
+
+		Worktree(String label, ObjectId commit, File directory, long bytes) {
+			this.label = label;
+			this.commit = commit;
+			this.directory = directory;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent successful result of a single backend for each lookup, kept so that it can be served in place of a
+ * failure. Unlike the composite cache entries never expire; only the least recently used are dropped once the store
+ * is full.
+ */
+class LastKnownGood {
+
+	private final Map<LookupKey, Environment> results;
+
+	LastKnownGood(int maxEntries) {
+		this.results = new LinkedHashMap<LookupKey, Environment>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<LookupKey, Environment> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	void put(LookupKey key, Environment environment) {
+		Environment copy = Environments.copy(environment);
+		synchronized (results) {
+			results.put(key, copy);
+		}
+	}
+
+	/**
+	 * @return a private copy of the last good result, or {@code null} if there has not been one
+	 */
+	Environment get(LookupKey key) {
+		Environment environment;
+		synchronized (results) {
+			environment = results.get(key);
+		}
+		return environment == null ? null : Environments.copy(environment);
+	}
+}
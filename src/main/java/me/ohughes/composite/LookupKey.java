@@ -0,0 +1,67 @@
+package me.ohughes.composite;
+
+import lombok.Value;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * Identifies a lookup against either the whole composite or a single backend within it.
+ * <p>
+ * Vault results depend on the token presented by the client, so a hash of the {@code X-Config-Token} header forms part
+ * of the key for Vault backends and for the composite as a whole. Git results are shared between all clients.
+ */
+@Value
+class LookupKey {
+
+	static final int COMPOSITE = -1;
+	private static final String CONFIG_TOKEN_HEADER = "X-Config-Token";
+
+	int backend;
+	String application;
+	String profile;
+	String label;
+	String tokenHash;
+
+	static LookupKey composite(String application, String profile, String label) {
+		return new LookupKey(COMPOSITE, application, profile, label, currentTokenHash());
+	}
+
+	static LookupKey backend(DeclarativeCompositeHolder environmentHolder, String application, String profile, String label) {
+		String tokenHash = environmentHolder.getType() == DeclarativeCompositeConfig.EnvironmentType.VAULT
+			? currentTokenHash() : null;
+		return new LookupKey(environmentHolder.getIndex(), application, profile, label, tokenHash);
+	}
+
+	boolean isComposite() {
+		return backend == COMPOSITE;
+	}
+
+	private static String currentTokenHash() {
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		if (!(requestAttributes instanceof ServletRequestAttributes)) {
+			return null;
+		}
+		String token = ((ServletRequestAttributes) requestAttributes).getRequest().getHeader(CONFIG_TOKEN_HEADER);
+		return hasText(token) ? tokenHash(token) : null;
+	}
+
+	/**
+	 * Tokens are only ever held as a digest, so that cache keys do not retain client credentials
+	 */
+	static String tokenHash(String token) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+			return DatatypeConverter.printHexBinary(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package me.ohughes.composite;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import me.ohughes.composite.VaultSecretCache.VaultSecret;
+import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.cloud.config.server.environment.EnvironmentWatch;
+import org.springframework.cloud.config.server.environment.VaultEnvironmentRepository;
+import org.springframework.core.Ordered;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.util.StringUtils.commaDelimitedListToStringArray;
+import static org.springframework.util.StringUtils.hasLength;
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * Vault backend for the composite that reads the secret paths of a lookup concurrently.
+ * <p>
+ * {@link VaultEnvironmentRepository} reads the default key, the application and the profile specific path of each,
+ * one after another. This repository reads the same paths and gives them the same precedence, but issues every read
+ * at once so that a lookup costs roughly a single round trip to Vault. The paths are read through the entry's pooled
+ * client, so each read reuses a kept alive connection. Request headers are read on the calling thread as the request
+ * is not visible to the threads doing the reads.
+ * <p>
+ * With a {@link VaultSecretCache} secrets are served from the cache while their lease allows. Setting
+ * {@code kv-version} to 2 reads secrets from a KV version 2 mount, named by {@code backend}, which also lets the cache
+ * revalidate them against their metadata.
+ * <p>
+ * Given an {@link AsyncRestTemplate} the paths are read without holding a thread per read: every read is handed to the
+ * template's client, whose I/O threads carry it out, and only the calling thread waits for the lookup to complete.
+ */
+@Getter
+@Setter
+public class ParallelVaultEnvironmentRepository implements EnvironmentRepository, Ordered {
+
+	private static final String VAULT_TOKEN = "X-Vault-Token";
+	private static final String CONFIG_TOKEN = "X-Config-Token";
+	private static final String CONFIG_STATE = "X-Config-State";
+	private static final String DEFAULT_PROFILE = "default";
+
+	private String host = "127.0.0.1";
+	private int port = 8200;
+	private String scheme = "http";
+	private String backend = "secret";
+	private String defaultKey = "application";
+	private String profileSeparator = ",";
+	private int kvVersion = 1;
+	private int order = Ordered.LOWEST_PRECEDENCE;
+
+	@Getter(AccessLevel.NONE)
+	private final HttpServletRequest request;
+	@Getter(AccessLevel.NONE)
+	private final EnvironmentWatch watch;
+	@Getter(AccessLevel.NONE)
+	private final RestTemplate rest;
+	@Getter(AccessLevel.NONE)
+	private final AsyncRestTemplate asyncRest;
+	@Getter(AccessLevel.NONE)
+	private final Executor readExecutor;
+	@Getter(AccessLevel.NONE)
+	private final VaultSecretCache secretCache;
+
+	/**
+	 * @param readExecutor runs all but one of the reads of each lookup, the calling thread runs the other. Without an
+	 *                     executor the paths are read one after another.
+	 */
+	public ParallelVaultEnvironmentRepository(HttpServletRequest request, EnvironmentWatch watch, RestTemplate rest,
+											  Executor readExecutor) {
+		this(request, watch, rest, readExecutor, null);
+	}
+
+	/**
+	 * @param secretCache may be {@code null}, in which case every lookup reads from Vault
+	 */
+	public ParallelVaultEnvironmentRepository(HttpServletRequest request, EnvironmentWatch watch, RestTemplate rest,
+											  Executor readExecutor, VaultSecretCache secretCache) {
+		this.request = request;
+		this.watch = watch;
+		this.rest = rest;
+		this.asyncRest = null;
+		this.readExecutor = readExecutor;
+		this.secretCache = secretCache;
+	}
+
+	/**
+	 * @param asyncRest   reads every path of a lookup at once, on the I/O threads of its client
+	 * @param secretCache may be {@code null}, in which case every lookup reads from Vault
+	 */
+	public ParallelVaultEnvironmentRepository(HttpServletRequest request, EnvironmentWatch watch, AsyncRestTemplate asyncRest,
+											  VaultSecretCache secretCache) {
+		this.request = request;
+		this.watch = watch;
+		this.rest = null;
+		this.asyncRest = asyncRest;
+		this.readExecutor = null;
+		this.secretCache = secretCache;
+	}
+
+	public void setProfileSeparator(String profileSeparator) {
+		this.profileSeparator = profileSeparator;
+		if (secretCache != null) {
+			secretCache.setProfileSeparator(profileSeparator);
+		}
+	}
+
+	@Override
+	public Environment findOne(String application, String profile, String label) {
+		String newState = watch.watch(request.getHeader(CONFIG_STATE));
+		String token = request.getHeader(CONFIG_TOKEN);
+		if (!hasLength(token)) {
+			throw new IllegalArgumentException("Missing required header: " + CONFIG_TOKEN);
+		}
+
+		String[] profiles = commaDelimitedListToStringArray(profile);
+		List<String> keys = findKeys(application, scrubProfiles(profiles));
+		List<Properties> secrets = asyncRest != null ? readAllAsync(keys, token) : readAll(keys, token);
+
+		Environment environment = new Environment(application, profiles, label, null, newState);
+		for (int i = 0; i < keys.size(); i++) {
+			Properties properties = secrets.get(i);
+			if (properties != null && !properties.isEmpty()) {
+				// Cached secrets are shared by every lookup
+				environment.add(new PropertySource("vault:" + keys.get(i), Collections.unmodifiableMap(properties)));
+			}
+		}
+		return environment;
+	}
+
+	/**
+	 * @return the secrets at each of {@code keys}, in the same order, with {@code null} for any path that is not found
+	 */
+	private List<Properties> readAll(List<String> keys, String token) {
+		List<Properties> secrets = new ArrayList<>(keys.size());
+		if (readExecutor == null || keys.size() < 2) {
+			for (String key : keys) {
+				secrets.add(read(key, token));
+			}
+			return secrets;
+		}
+
+		List<CompletableFuture<Properties>> pendingSecrets = new ArrayList<>(keys.size() - 1);
+		for (String key : keys.subList(1, keys.size())) {
+			pendingSecrets.add(CompletableFuture.supplyAsync(() -> read(key, token), readExecutor));
+		}
+		try {
+			secrets.add(read(keys.get(0), token));
+			for (CompletableFuture<Properties> pendingSecret : pendingSecrets) {
+				secrets.add(pendingSecret.join());
+			}
+			return secrets;
+		} catch (RuntimeException e) {
+			pendingSecrets.forEach(pendingSecret -> pendingSecret.cancel(false));
+			// Surface the error of the read itself, e.g. a 403 for a token without access
+			if (e instanceof CompletionException && e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * As {@link #readAll}, with every read in flight at once and no thread but the caller's waiting on them
+	 */
+	private List<Properties> readAllAsync(List<String> keys, String token) {
+		List<CompletableFuture<Properties>> pendingSecrets = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			pendingSecrets.add(readAsync(key, token));
+		}
+		List<Properties> secrets = new ArrayList<>(keys.size());
+		try {
+			for (CompletableFuture<Properties> pendingSecret : pendingSecrets) {
+				secrets.add(pendingSecret.join());
+			}
+			return secrets;
+		} catch (CompletionException e) {
+			// Surface the error of the read itself, e.g. a 403 for a token without access
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Paths in order of increasing precedence, matching {@link VaultEnvironmentRepository}: the default key, its
+	 * profiles, the application and then its profiles, reversed so that the most specific path comes first
+	 */
+	private List<String> findKeys(String application, List<String> profiles) {
+		List<String> keys = new ArrayList<>();
+		if (hasText(defaultKey) && !defaultKey.equals(application)) {
+			keys.add(defaultKey);
+			addProfiles(keys, defaultKey, profiles);
+		}
+		keys.add(application);
+		addProfiles(keys, application, profiles);
+		Collections.reverse(keys);
+		return keys;
+	}
+
+	private void addProfiles(List<String> keys, String baseKey, List<String> profiles) {
+		for (String profile : profiles) {
+			keys.add(baseKey + profileSeparator + profile);
+		}
+	}
+
+	private static List<String> scrubProfiles(String[] profiles) {
+		List<String> scrubbedProfiles = new ArrayList<>(Arrays.asList(profiles));
+		scrubbedProfiles.remove(DEFAULT_PROFILE);
+		return scrubbedProfiles;
+	}
+
+	private Properties read(String key, String token) {
+		if (secretCache == null) {
+			return readSecret(key, token).getProperties();
+		}
+		return secretCache.get(key, token, () -> readSecret(key, token), () -> readCurrentVersion(key, token));
+	}
+
+	private CompletableFuture<Properties> readAsync(String key, String token) {
+		if (secretCache == null) {
+			return readSecretAsync(key, token).thenApply(VaultSecret::getProperties);
+		}
+		return secretCache.getAsync(key, token, () -> readSecretAsync(key, token), () -> readCurrentVersionAsync(key, token));
+	}
+
+	private VaultSecret readSecret(String key, String token) {
+		return toSecret(get(kvVersion == 2 ? "data" : null, key, token));
+	}
+
+	private CompletableFuture<VaultSecret> readSecretAsync(String key, String token) {
+		return getAsync(kvVersion == 2 ? "data" : null, key, token).thenApply(this::toSecret);
+	}
+
+	private VaultSecret toSecret(VaultResponse response) {
+		JsonNode data = response == null ? null : response.getData();
+		Long version = null;
+		if (data != null && kvVersion == 2) {
+			JsonNode metadataVersion = data.path("metadata").path("version");
+			version = metadataVersion.isNumber() ? metadataVersion.asLong() : null;
+			data = data.get("data");
+		}
+		long leaseDuration = response == null ? 0 : TimeUnit.SECONDS.toMillis(response.getLeaseDuration());
+		if (data == null || data.isNull()) {
+			return new VaultSecret(null, leaseDuration, version);
+		}
+
+		// Secrets are flattened the same way as VaultEnvironmentRepository, which reads the JSON data as YAML
+		YamlPropertiesFactoryBean yaml = new YamlPropertiesFactoryBean();
+		yaml.setResources(new ByteArrayResource(data.toString().getBytes(StandardCharsets.UTF_8)));
+		return new VaultSecret(yaml.getObject(), leaseDuration, version);
+	}
+
+	/**
+	 * @return the current version of a KV version 2 secret, or {@code null} for any other secret
+	 */
+	private Long readCurrentVersion(String key, String token) {
+		return kvVersion != 2 ? null : toCurrentVersion(get("metadata", key, token));
+	}
+
+	private CompletableFuture<Long> readCurrentVersionAsync(String key, String token) {
+		return kvVersion != 2 ? CompletableFuture.completedFuture(null)
+			: getAsync("metadata", key, token).thenApply(ParallelVaultEnvironmentRepository::toCurrentVersion);
+	}
+
+	private static Long toCurrentVersion(VaultResponse response) {
+		JsonNode currentVersion = response == null || response.getData() == null ? null : response.getData().get("current_version");
+		return currentVersion != null && currentVersion.isNumber() ? currentVersion.asLong() : null;
+	}
+
+	/**
+	 * @param kvPath the KV version 2 path, such as {@code data}, placed between the mount and the key
+	 * @return the response, or {@code null} if there is nothing at the path
+	 */
+	private VaultResponse get(String kvPath, String key, String token) {
+		try {
+			ResponseEntity<VaultResponse> response = rest.exchange(url(kvPath), HttpMethod.GET, new HttpEntity<>(headers(token)),
+				VaultResponse.class, backend, key);
+			return response.getStatusCode() == HttpStatus.OK ? response.getBody() : null;
+		} catch (HttpStatusCodeException e) {
+			if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * As {@link #get}, completing on an I/O thread of the asynchronous client
+	 */
+	private CompletableFuture<VaultResponse> getAsync(String kvPath, String key, String token) {
+		CompletableFuture<VaultResponse> pendingResponse = new CompletableFuture<>();
+		asyncRest.exchange(url(kvPath), HttpMethod.GET, new HttpEntity<>(headers(token)), VaultResponse.class, backend, key)
+			.addCallback(response -> pendingResponse.complete(response.getStatusCode() == HttpStatus.OK ? response.getBody() : null),
+				failure -> {
+					if (failure instanceof HttpStatusCodeException
+						&& ((HttpStatusCodeException) failure).getStatusCode() == HttpStatus.NOT_FOUND) {
+						pendingResponse.complete(null);
+					} else {
+						pendingResponse.completeExceptionally(failure);
+					}
+				});
+		return pendingResponse;
+	}
+
+	private String url(String kvPath) {
+		return String.format("%s://%s:%s/v1/{backend}/%s{key}", scheme, host, port, kvPath == null ? "" : kvPath + "/");
+	}
+
+	private static HttpHeaders headers(String token) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add(VAULT_TOKEN, token);
+		return headers;
+	}
+
+	@Data
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	static class VaultResponse {
+		private JsonNode data;
+		@JsonProperty("lease_duration")
+		private long leaseDuration;
+	}
+}
@@ -0,0 +1,146 @@
+package me.ohughes.composite;
+
+import org.springframework.util.PatternMatchUtils;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Finds the pattern matching repositories of a Git entry that match an application and profile, without trying every
+ * pattern of every repository in turn.
+ * <p>
+ * A repository matches when any of its patterns matches {@code application/profile} for any of the requested profiles,
+ * with the same {@code *} wildcards as {@link PatternMatchUtils#simpleMatch(String, String)}. Patterns without a
+ * wildcard are held in a hash table. The rest are held in a trie under the literal text before their first wildcard,
+ * so only the patterns whose prefix the lookup starts with are tried; the common shapes {@code prefix*} and
+ * {@code prefix*suffix} are decided without running the general matcher. Only patterns that start with a wildcard are
+ * tried for every lookup.
+ * <p>
+ * Resolutions are cached, up to {@value #MAX_RESOLUTIONS} of them, for the life of the index, which is rebuilt
+ * whenever the entry's repositories are replaced.
+ */
+class PatternRepositoryIndex<T> {
+
+	private static final int MAX_RESOLUTIONS = 10000;
+
+	private final List<T> repositories;
+	private final Map<String, BitSet> literals = new HashMap<>();
+	private final Node root = new Node();
+	private final Map<String, List<T>> resolutions = new ConcurrentHashMap<>();
+
+	/**
+	 * @param repositories in the order they are to be tried
+	 * @param patterns the patterns of a repository
+	 */
+	PatternRepositoryIndex(Collection<T> repositories, Function<T, String[]> patterns) {
+		this.repositories = new ArrayList<>(repositories);
+		for (int index = 0; index < this.repositories.size(); index++) {
+			String[] repositoryPatterns = patterns.apply(this.repositories.get(index));
+			if (repositoryPatterns == null) {
+				continue;
+			}
+			for (String pattern : repositoryPatterns) {
+				if (pattern != null) {
+					add(index, pattern);
+				}
+			}
+		}
+	}
+
+	private void add(int index, String pattern) {
+		int firstWildcard = pattern.indexOf('*');
+		if (firstWildcard == -1) {
+			literals.computeIfAbsent(pattern, literal -> new BitSet()).set(index);
+			return;
+		}
+		Node node = root;
+		for (int i = 0; i < firstWildcard; i++) {
+			node = node.children.computeIfAbsent(pattern.charAt(i), character -> new Node());
+		}
+		node.wildcards.add(new Wildcard(index, pattern.substring(firstWildcard)));
+	}
+
+	/**
+	 * @return the repositories matching {@code application} and any of the comma separated {@code profile}, in the
+	 * order they are to be tried
+	 */
+	List<T> resolve(String application, String profile) {
+		String key = application + '\0' + profile;
+		List<T> resolved = resolutions.get(key);
+		if (resolved != null) {
+			return resolved;
+		}
+		BitSet matched = new BitSet(repositories.size());
+		for (String eachProfile : StringUtils.commaDelimitedListToStringArray(profile)) {
+			match(application + "/" + eachProfile, matched);
+		}
+		resolved = matched.isEmpty() ? Collections.emptyList() : new ArrayList<>(matched.cardinality());
+		for (int index = matched.nextSetBit(0); index >= 0; index = matched.nextSetBit(index + 1)) {
+			resolved.add(repositories.get(index));
+		}
+		resolved = Collections.unmodifiableList(resolved);
+		// Bounded by simply starting again, which only costs the resolutions being worked out afresh
+		if (resolutions.size() >= MAX_RESOLUTIONS) {
+			resolutions.clear();
+		}
+		resolutions.put(key, resolved);
+		return resolved;
+	}
+
+	private void match(String candidate, BitSet matched) {
+		BitSet literal = literals.get(candidate);
+		if (literal != null) {
+			matched.or(literal);
+		}
+		Node node = root;
+		int position = 0;
+		while (node != null) {
+			for (Wildcard wildcard : node.wildcards) {
+				if (!matched.get(wildcard.index) && wildcard.matches(candidate, position)) {
+					matched.set(wildcard.index);
+				}
+			}
+			node = position < candidate.length() ? node.children.get(candidate.charAt(position)) : null;
+			position++;
+		}
+	}
+
+	private static class Node {
+		private final Map<Character, Node> children = new HashMap<>();
+		private final List<Wildcard> wildcards = new ArrayList<>();
+	}
+
+	/**
+	 * The part of a pattern from its first wildcard onwards, to be matched against what follows the literal prefix
+	 */
+	private static class Wildcard {
+
+		private final int index;
+		private final String remainder;
+		/**
+		 * The literal text after the wildcard, when the remainder is a single wildcard followed by literal text
+		 */
+		private final String suffix;
+
+		Wildcard(int index, String remainder) {
+			this.index = index;
+			this.remainder = remainder;
+			this.suffix = remainder.indexOf('*', 1) == -1 ? remainder.substring(1) : null;
+		}
+
+		boolean matches(String candidate, int position) {
+			if (suffix != null) {
+				return candidate.length() - position >= suffix.length() && candidate.endsWith(suffix);
+			}
+			return PatternMatchUtils.simpleMatch(remainder, candidate.substring(position));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package me.ohughes.composite;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.FatalBeanException;
+import org.springframework.util.ClassUtils;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies the properties of one class of bean onto another, as {@link BeanUtils#copyProperties(Object, Object, String...)}
+ * does, but works out which getter feeds which setter once per pair of classes rather than on every copy.
+ * <p>
+ * A property is copied when the target has a setter and the source a getter of an assignable type, and it is not
+ * ignored. Copiers are held for the life of the application, of which there are only as many as there are pairs of
+ * classes copied between.
+ */
+class PropertyCopier {
+
+	private static final Map<List<Object>, PropertyCopier> COPIERS = new ConcurrentHashMap<>();
+
+	private final Method[] getters;
+	private final Method[] setters;
+
+	private PropertyCopier(Class<?> sourceClass, Class<?> targetClass, List<String> ignoredProperties) {
+		List<Method> getters = new ArrayList<>();
+		List<Method> setters = new ArrayList<>();
+		for (PropertyDescriptor targetProperty : BeanUtils.getPropertyDescriptors(targetClass)) {
+			Method setter = targetProperty.getWriteMethod();
+			if (setter == null || ignoredProperties.contains(targetProperty.getName())) {
+				continue;
+			}
+			PropertyDescriptor sourceProperty = BeanUtils.getPropertyDescriptor(sourceClass, targetProperty.getName());
+			Method getter = sourceProperty == null ? null : sourceProperty.getReadMethod();
+			if (getter != null && ClassUtils.isAssignable(setter.getParameterTypes()[0], getter.getReturnType())) {
+				getters.add(accessible(getter));
+				setters.add(accessible(setter));
+			}
+		}
+		this.getters = getters.toArray(new Method[0]);
+		this.setters = setters.toArray(new Method[0]);
+	}
+
+	/**
+	 * @return the copier from {@code sourceClass} to {@code targetClass} leaving out {@code ignoredProperties}
+	 */
+	static PropertyCopier of(Class<?> sourceClass, Class<?> targetClass, String... ignoredProperties) {
+		List<Object> key = new ArrayList<>();
+		key.add(sourceClass);
+		key.add(targetClass);
+		key.addAll(Arrays.asList(ignoredProperties));
+		return COPIERS.computeIfAbsent(key, ignored -> new PropertyCopier(sourceClass, targetClass, Arrays.asList(ignoredProperties)));
+	}
+
+	/**
+	 * Copy every property of {@code source} onto {@code target}
+	 */
+	void copy(Object source, Object target) {
+		copy(source, target, false);
+	}
+
+	/**
+	 * Copy the properties of {@code source} that are not {@code null} onto {@code target}, leaving the target's own value
+	 * for the rest
+	 */
+	void copyNonNull(Object source, Object target) {
+		copy(source, target, true);
+	}
+
+	private void copy(Object source, Object target, boolean skipNulls) {
+		Objects.requireNonNull(source, "Source must not be null");
+		Objects.requireNonNull(target, "Target must not be null");
+		for (int i = 0; i < getters.length; i++) {
+			try {
+				Object value = getters[i].invoke(source);
+				if (value != null || !skipNulls) {
+					setters[i].invoke(target, value);
+				}
+			} catch (Exception e) {
+				throw new FatalBeanException("Could not copy property '" + setters[i].getName() + "' from source to target", e);
+			}
+		}
+	}
+
+	private static Method accessible(Method method) {
+		if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+			method.setAccessible(true);
+		}
+		return method;
+	}
+}
@@ -0,0 +1,230 @@
+package me.ohughes.composite;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Merges the property sources of several environments so that only the first value found for each key is visible.
+ * <p>
+ * Rather than copying every surviving entry into a new map, each merged property source is a read-only view over the
+ * original source map. A source none of whose keys are shadowed by an earlier one is exposed as is, a source all of
+ * whose keys are shadowed is dropped, and any other source only shows the keys it was first to contribute, as recorded
+ * in a single index shared by all of the views. The views hold on to the original maps, so the environments being
+ * merged must not be modified afterwards.
+ */
+class ShadowingMerge {
+
+	private ShadowingMerge() {
+	}
+
+	/**
+	 * Notified, for each environment merged, of how many of its keys made it into the result and how many were
+	 * shadowed by an earlier source
+	 */
+	interface KeyCountListener {
+		void merged(int environmentIndex, int contributed, int shadowed);
+	}
+
+	/**
+	 * Add the property sources of {@code environments}, in order, to {@code target}, hiding every key already
+	 * contributed by an earlier source
+	 */
+	static Environment merge(Environment target, List<Environment> environments) {
+		return merge(target, environments, null);
+	}
+
+	static Environment merge(Environment target, List<Environment> environments, KeyCountListener listener) {
+		int totalKeys = 0;
+		for (Environment environment : environments) {
+			for (PropertySource source : environment.getPropertySources()) {
+				totalKeys += source.getSource() == null ? 0 : source.getSource().size();
+			}
+		}
+
+		KeyIndex keyOwners = new KeyIndex(totalKeys);
+		int sourceIndex = 0;
+		for (int environmentIndex = 0; environmentIndex < environments.size(); environmentIndex++) {
+			int environmentContributed = 0;
+			int environmentShadowed = 0;
+			for (PropertySource source : environments.get(environmentIndex).getPropertySources()) {
+				Map<?, ?> sourceMap = source.getSource();
+				if (sourceMap == null || sourceMap.isEmpty()) {
+					continue;
+				}
+				int owner = sourceIndex++;
+				int contributed = 0;
+				for (Object key : sourceMap.keySet()) {
+					if (keyOwners.add(key, owner)) {
+						contributed++;
+					}
+				}
+				environmentContributed += contributed;
+				environmentShadowed += sourceMap.size() - contributed;
+				if (contributed == 0) {
+					continue;
+				}
+				target.add(new PropertySource(source.getName(), contributed == sourceMap.size()
+					? Collections.unmodifiableMap(sourceMap)
+					: new ShadowedMap(sourceMap, keyOwners, owner, contributed)));
+			}
+			if (listener != null) {
+				listener.merged(environmentIndex, environmentContributed, environmentShadowed);
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Read-only view of a source map showing only the keys that it was the first source to contribute
+	 */
+	private static class ShadowedMap extends AbstractMap<Object, Object> {
+
+		private final Map<?, ?> source;
+		private final KeyIndex keyOwners;
+		private final int owner;
+		private final int size;
+		private Set<Entry<Object, Object>> entrySet;
+
+		ShadowedMap(Map<?, ?> source, KeyIndex keyOwners, int owner, int size) {
+			this.source = source;
+			this.keyOwners = keyOwners;
+			this.owner = owner;
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return keyOwners.ownerOf(key) == owner;
+		}
+
+		@Override
+		public Object get(Object key) {
+			return keyOwners.ownerOf(key) == owner ? source.get(key) : null;
+		}
+
+		@Override
+		public Set<Entry<Object, Object>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Entry<Object, Object>>() {
+					@Override
+					public Iterator<Entry<Object, Object>> iterator() {
+						return new VisibleEntryIterator();
+					}
+
+					@Override
+					public int size() {
+						return size;
+					}
+				};
+			}
+			return entrySet;
+		}
+
+		private class VisibleEntryIterator implements Iterator<Entry<Object, Object>> {
+
+			private final Iterator<? extends Entry<?, ?>> entries = source.entrySet().iterator();
+			private Entry<?, ?> next = advance();
+
+			private Entry<?, ?> advance() {
+				while (entries.hasNext()) {
+					Entry<?, ?> entry = entries.next();
+					if (keyOwners.ownerOf(entry.getKey()) == owner) {
+						return entry;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Entry<Object, Object> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Entry<?, ?> current = next;
+				next = advance();
+				return new SimpleImmutableEntry<>(current.getKey(), current.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Open addressing hash table, with linear probing, recording which source first contributed each key. Sized up
+	 * front from the total number of keys across all sources it never needs to grow, and costs two arrays rather than
+	 * a node per key.
+	 */
+	static class KeyIndex {
+
+		private static final Object NULL_KEY = new Object();
+
+		private final Object[] keys;
+		private final int[] owners;
+
+		KeyIndex(int maxKeys) {
+			// Keep the load factor at or below three quarters so that probe sequences stay short
+			int capacity = Integer.highestOneBit(Math.max(4, maxKeys + maxKeys / 3) * 2 - 1);
+			keys = new Object[capacity];
+			owners = new int[capacity];
+		}
+
+		/**
+		 * Record {@code owner} as the source of {@code key} unless an earlier source already contributed it
+		 *
+		 * @return {@code true} if {@code key} was not already present
+		 */
+		boolean add(Object key, int owner) {
+			Object element = key == null ? NULL_KEY : key;
+			int slot = find(element);
+			if (keys[slot] != null) {
+				return false;
+			}
+			keys[slot] = element;
+			owners[slot] = owner;
+			return true;
+		}
+
+		/**
+		 * @return the source that first contributed {@code key}, or {@code -1} if no source did
+		 */
+		int ownerOf(Object key) {
+			int slot = find(key == null ? NULL_KEY : key);
+			return keys[slot] == null ? -1 : owners[slot];
+		}
+
+		/**
+		 * @return the slot holding {@code element}, or the empty slot where it belongs
+		 */
+		private int find(Object element) {
+			int mask = keys.length - 1;
+			int slot = spread(element.hashCode()) & mask;
+			Object current;
+			while ((current = keys[slot]) != null && !current.equals(element)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private static int spread(int hash) {
+			int spread = hash * 0x9E3779B9;
+			return spread ^ (spread >>> 16);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package me.ohughes.composite;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces identical concurrent lookups. The first caller for a key does the work while any other caller arriving
+ * before it finishes waits for, and shares, the same outcome. Waiters receive their own copy of the result, made with
+ * the supplied copier, so they cannot interfere with each other or with the caller that did the work.
+ */
+class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	private final UnaryOperator<V> copier;
+	private final LongAdder coalesced = new LongAdder();
+
+	SingleFlight(UnaryOperator<V> copier) {
+		this.copier = copier;
+	}
+
+	V execute(K key, Supplier<V> work) {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+		CompletableFuture<V> existingFlight = inFlight.putIfAbsent(key, flight);
+		if (existingFlight != null) {
+			coalesced.increment();
+			return copier.apply(await(existingFlight));
+		}
+
+		try {
+			V result = work.get();
+			flight.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	/**
+	 * As {@link #execute}, for work that completes asynchronously. The key is released once the work's future
+	 * completes, and work that throws rather than returning a future fails the flight in the same way, so that callers
+	 * sharing it are never left waiting.
+	 */
+	CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> work) {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+		CompletableFuture<V> existingFlight = inFlight.putIfAbsent(key, flight);
+		if (existingFlight != null) {
+			coalesced.increment();
+			return existingFlight.thenApply(copier);
+		}
+
+		CompletableFuture<V> pending;
+		try {
+			pending = work.get();
+		} catch (RuntimeException | Error e) {
+			pending = new CompletableFuture<>();
+			pending.completeExceptionally(e);
+		}
+		pending.whenComplete((result, failure) -> {
+			inFlight.remove(key, flight);
+			if (failure != null) {
+				flight.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+					? failure.getCause() : failure);
+			} else {
+				flight.complete(result);
+			}
+		});
+		return flight;
+	}
+
+	/**
+	 * @return the number of callers that shared another caller's lookup rather than doing their own
+	 */
+	long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	private static <V> V await(CompletableFuture<V> flight) {
+		try {
+			return flight.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package me.ohughes.composite;
+
+import lombok.Setter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Cache of the secrets read from each path of a single Vault entry, including paths that were not found.
+ * <p>
+ * A secret is used without contacting Vault for the shorter of its {@code lease_duration} and the configured
+ * {@code ttl}. Once that has passed, a KV version 2 secret can be revalidated by comparing its version with the
+ * current version in the path's metadata, which is much cheaper than reading it again, but never for longer than
+ * {@code max-staleness} after it was last read in full. Concurrent misses for the same path share a single read.
+ * <p>
+ * Secrets are keyed by path and a hash of the client's token, so a token without access to a path is never served it
+ * from the cache.
+ */
+@Slf4j
+public class VaultSecretCache {
+
+	private final CompositeProperties.VaultCacheProperties properties;
+	private final LinkedHashMap<SecretKey, CachedSecret> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final SingleFlight<SecretKey, CachedSecret> reads = new SingleFlight<>(UnaryOperator.identity());
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder revalidations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Separates an application from a profile in the paths read, so that {@link #invalidate(String)} can tell the paths
+	 * of an application's profiles
+	 */
+	@Setter
+	private volatile String profileSeparator = ",";
+
+	public VaultSecretCache(CompositeProperties.VaultCacheProperties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * @param read           reads the secret from Vault in full
+	 * @param currentVersion reads the current version of the secret from its metadata, returning {@code null} if it
+	 *                       has none
+	 * @return the secret at {@code path}, or {@code null} if there is none
+	 */
+	Properties get(String path, String token, Supplier<VaultSecret> read, Supplier<Long> currentVersion) {
+		SecretKey key = new SecretKey(path, LookupKey.tokenHash(token));
+		CachedSecret cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+		}
+		if (cached != null && System.currentTimeMillis() < cached.getFreshUntil()) {
+			hits.increment();
+			return cached.getProperties();
+		}
+		return reads.execute(key, () -> refresh(key, cached, read, currentVersion)).getProperties();
+	}
+
+	/**
+	 * As {@link #get}, for reads that complete asynchronously. No thread waits on Vault: a miss completes once the read
+	 * it shares with any concurrent misses for the same path does.
+	 */
+	CompletableFuture<Properties> getAsync(String path, String token, Supplier<CompletableFuture<VaultSecret>> read,
+										   Supplier<CompletableFuture<Long>> currentVersion) {
+		SecretKey key = new SecretKey(path, LookupKey.tokenHash(token));
+		CachedSecret cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+		}
+		if (cached != null && System.currentTimeMillis() < cached.getFreshUntil()) {
+			hits.increment();
+			return CompletableFuture.completedFuture(cached.getProperties());
+		}
+		return reads.executeAsync(key, () -> refreshAsync(key, cached, read, currentVersion)).thenApply(CachedSecret::getProperties);
+	}
+
+	private CompletableFuture<CachedSecret> refreshAsync(SecretKey key, CachedSecret cached, Supplier<CompletableFuture<VaultSecret>> read,
+														 Supplier<CompletableFuture<Long>> currentVersion) {
+		long now = System.currentTimeMillis();
+		if (cached != null && cached.getVersion() != null && properties.isRevalidate()
+			&& now < cached.getReadAt() + properties.getMaxStaleness()) {
+			return currentVersion.get()
+				.handle((version, failure) -> {
+					if (failure != null) {
+						log.debug("Unable to revalidate Vault secret: {}", failure.getMessage());
+					}
+					return failure == null && cached.getVersion().equals(version);
+				})
+				.thenCompose(unchanged -> {
+					if (!unchanged) {
+						return readAsync(key, read);
+					}
+					revalidations.increment();
+					long revalidatedAt = System.currentTimeMillis();
+					return CompletableFuture.completedFuture(store(key, new CachedSecret(cached.getProperties(),
+						cached.getVersion(), cached.getLeaseDuration(), cached.getReadAt(),
+						freshUntil(revalidatedAt, cached.getReadAt(), cached.getLeaseDuration()))));
+				});
+		}
+		return readAsync(key, read);
+	}
+
+	private CompletableFuture<CachedSecret> readAsync(SecretKey key, Supplier<CompletableFuture<VaultSecret>> read) {
+		misses.increment();
+		long now = System.currentTimeMillis();
+		return read.get().thenApply(secret -> store(key, new CachedSecret(secret.getProperties(), secret.getVersion(),
+			secret.getLeaseDuration(), now, freshUntil(now, now, secret.getLeaseDuration()))));
+	}
+
+	private CachedSecret refresh(SecretKey key, CachedSecret cached, Supplier<VaultSecret> read, Supplier<Long> currentVersion) {
+		long now = System.currentTimeMillis();
+		if (cached != null && cached.getVersion() != null && properties.isRevalidate()
+			&& now < cached.getReadAt() + properties.getMaxStaleness() && cached.getVersion().equals(currentVersionOrNull(currentVersion))) {
+			revalidations.increment();
+			return store(key, new CachedSecret(cached.getProperties(), cached.getVersion(), cached.getLeaseDuration(),
+				cached.getReadAt(), freshUntil(now, cached.getReadAt(), cached.getLeaseDuration())));
+		}
+
+		misses.increment();
+		VaultSecret secret = read.get();
+		return store(key, new CachedSecret(secret.getProperties(), secret.getVersion(), secret.getLeaseDuration(), now,
+			freshUntil(now, now, secret.getLeaseDuration())));
+	}
+
+	/**
+	 * A failed metadata read, for instance because the token may read the secret but not its metadata, just means
+	 * the secret is read in full
+	 */
+	private static Long currentVersionOrNull(Supplier<Long> currentVersion) {
+		try {
+			return currentVersion.get();
+		} catch (RuntimeException e) {
+			log.debug("Unable to revalidate Vault secret: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	private long freshUntil(long now, long readAt, long leaseDuration) {
+		long ttl = leaseDuration > 0 ? Math.min(leaseDuration, properties.getTtl()) : properties.getTtl();
+		return Math.min(now + ttl, readAt + properties.getMaxStaleness());
+	}
+
+	private CachedSecret store(SecretKey key, CachedSecret cached) {
+		synchronized (entries) {
+			entries.put(key, cached);
+			Iterator<CachedSecret> eldest = entries.values().iterator();
+			while (entries.size() > properties.getMaxEntries()) {
+				eldest.next();
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+		return cached;
+	}
+
+	public void invalidateAll() {
+		invalidateIf(key -> true);
+	}
+
+	/**
+	 * Drop the secret at {@code path} and at the path of each of its profiles, for every token. For example
+	 * {@code myapp} drops {@code myapp}, {@code myapp,dev} and {@code myapp,prod} but not {@code myapp2}, while
+	 * {@code myapp,dev} drops only that path.
+	 */
+	public void invalidate(String path) {
+		String profilePrefix = path + profileSeparator;
+		invalidateIf(key -> key.getPath().equals(path) || key.getPath().startsWith(profilePrefix));
+	}
+
+	private void invalidateIf(Predicate<SecretKey> predicate) {
+		synchronized (entries) {
+			Iterator<SecretKey> iterator = entries.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (predicate.test(iterator.next())) {
+					iterator.remove();
+					invalidations.increment();
+				}
+			}
+		}
+	}
+
+	public Statistics getStatistics() {
+		synchronized (entries) {
+			return new Statistics(hits.sum(), misses.sum(), revalidations.sum(), evictions.sum(), invalidations.sum(),
+				entries.size());
+		}
+	}
+
+	/**
+	 * A secret as read from Vault
+	 */
+	@Value
+	static class VaultSecret {
+		/**
+		 * {@code null} when there is no secret at the path
+		 */
+		Properties properties;
+		/**
+		 * In milliseconds, zero when Vault did not return a lease
+		 */
+		long leaseDuration;
+		/**
+		 * Only known for KV version 2 secrets
+		 */
+		Long version;
+	}
+
+	@Value
+	private static class SecretKey {
+		String path;
+		String tokenHash;
+	}
+
+	@Value
+	private static class CachedSecret {
+		Properties properties;
+		Long version;
+		long leaseDuration;
+		long readAt;
+		long freshUntil;
+	}
+
+	@Value
+	public static class Statistics {
+		long hits;
+		long misses;
+		long revalidations;
+		long evictions;
+		long invalidations;
+		int size;
+	}
+}
@@ -0,0 +1,35 @@
+package me.ohughes.composite;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The {@link VaultSecretCache} of every Vault entry in the composite that has one, by composite index
+ */
+public class VaultSecretCaches {
+
+	private final Map<Integer, VaultSecretCache> caches = new ConcurrentSkipListMap<>();
+
+	VaultSecretCache create(int index, CompositeProperties.VaultCacheProperties properties) {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		caches.put(index, cache);
+		return cache;
+	}
+
+	/**
+	 * Replace every cache at once, as when the composite is reloaded and its entries change index
+	 */
+	synchronized void replaceAll(Map<Integer, VaultSecretCache> replacements) {
+		caches.keySet().retainAll(replacements.keySet());
+		caches.putAll(replacements);
+	}
+
+	public Map<Integer, VaultSecretCache> getCaches() {
+		return Collections.unmodifiableMap(caches);
+	}
+
+	public VaultSecretCache get(int index) {
+		return caches.get(index);
+	}
+}
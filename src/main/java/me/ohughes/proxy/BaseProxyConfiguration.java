@@ -1,9 +1,12 @@
 package me.ohughes.proxy;
 
 import lombok.AllArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import me.ohughes.proxy.properties.BaseProxyProperties;
+import me.ohughes.proxy.properties.HttpPoolProperties;
 import me.ohughes.proxy.properties.HttpProxyProperties;
+import me.ohughes.proxy.properties.HttpTimeoutProperties;
 import me.ohughes.proxy.properties.HttpsProxyProperties;
 import me.ohughes.proxy.properties.ProxyHostProperties;
 import org.apache.http.HttpException;
@@ -14,11 +17,21 @@ import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.protocol.HttpContext;
-import org.eclipse.jgit.transport.HttpTransport;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
@@ -50,13 +63,9 @@ public class BaseProxyConfiguration {
 	 * @return Either a proxy configured {@link HttpClient} or a default instance
 	 */
 	public HttpClient buildClient(BaseProxyProperties proxyProperties, HttpClientBuilder httpClientBuilder) {
-		if (proxyProperties != null) {
-			HttpsProxyProperties httpsProperties = proxyProperties.getHttps();
-			HttpProxyProperties httpProperties = proxyProperties.getHttp();
-			if (Proxies.hasProxyProperties(httpsProperties) || Proxies.hasProxyProperties(httpProperties)) {
-
-                return buildClient(httpProperties, httpsProperties, httpClientBuilder);
-            }
+		ProxyRoute route = resolveProxy(proxyProperties);
+		if (route != null) {
+			return buildClient(route, httpClientBuilder);
 		}
 //		RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(500).setConnectTimeout(500).setSocketTimeout(500).build();
 
@@ -64,47 +73,153 @@ public class BaseProxyConfiguration {
 
 	}
 
+	/**
+	 * Build a client backed by its own connection pool so that connections, including any proxy tunnel and TLS session,
+	 * are reused across requests rather than being re-established each time.
+	 *
+	 * Every request made by the client is bounded by {@code timeoutProperties}, so an unresponsive server cannot hold a
+	 * lookup, or a pooled connection, forever.
+	 *
+	 * @return a proxy configured or default {@link CloseableHttpClient} which the caller is responsible for closing
+	 */
+	public CloseableHttpClient buildPooledClient(BaseProxyProperties proxyProperties, HttpPoolProperties poolProperties,
+												 HttpTimeoutProperties timeoutProperties, HttpClientBuilder httpClientBuilder) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(poolProperties.getMaxTotal());
+		connectionManager.setDefaultMaxPerRoute(poolProperties.getMaxPerRoute());
+		connectionManager.setValidateAfterInactivity(poolProperties.getValidateAfterInactivity());
+
+		httpClientBuilder.setConnectionManager(connectionManager)
+			.setKeepAliveStrategy(keepAliveStrategy(poolProperties))
+			.evictExpiredConnections()
+			.evictIdleConnections(poolProperties.getIdleEviction(), TimeUnit.MILLISECONDS)
+			.setDefaultRequestConfig(requestConfig(timeoutProperties));
+
+		return (CloseableHttpClient) buildClient(proxyProperties, httpClientBuilder);
+	}
+
+	/**
+	 * Build a started, non-blocking client whose requests are carried out by {@code ioThreads} I/O threads, however many
+	 * are in flight. Pooling, timeouts and proxies are configured as for {@link #buildPooledClient}, except that idle
+	 * connections are not evicted in the background: the I/O threads notice a connection the server has closed.
+	 *
+	 * @return a started {@link CloseableHttpAsyncClient} which the caller is responsible for closing
+	 */
+	public CloseableHttpAsyncClient buildPooledAsyncClient(BaseProxyProperties proxyProperties, HttpPoolProperties poolProperties,
+														   HttpTimeoutProperties timeoutProperties, int ioThreads) {
+		PoolingNHttpClientConnectionManager connectionManager;
+		try {
+			connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setConnectTimeout(timeoutProperties.getConnect())
+				.setSoTimeout(timeoutProperties.getRead())
+				.build()));
+		} catch (IOReactorException e) {
+			throw new IllegalStateException("Unable to start HTTP I/O threads: " + e.getMessage(), e);
+		}
+		connectionManager.setMaxTotal(poolProperties.getMaxTotal());
+		connectionManager.setDefaultMaxPerRoute(poolProperties.getMaxPerRoute());
+
+		HttpAsyncClientBuilder httpClientBuilder = HttpAsyncClientBuilder.create()
+			.setConnectionManager(connectionManager)
+			.setKeepAliveStrategy(keepAliveStrategy(poolProperties))
+			.setDefaultRequestConfig(requestConfig(timeoutProperties));
+		ProxyRoute route = resolveProxy(proxyProperties);
+		if (route != null) {
+			httpClientBuilder.useSystemProperties();
+			if (route.getRoutePlanner() != null) {
+				httpClientBuilder.setRoutePlanner(route.getRoutePlanner());
+			} else {
+				httpClientBuilder.setProxy(route.getProxy());
+			}
+			if (route.getCredentialsProvider() != null) {
+				httpClientBuilder.setDefaultCredentialsProvider(route.getCredentialsProvider());
+			}
+			httpClientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+		}
+
+		CloseableHttpAsyncClient httpClient = httpClientBuilder.build();
+		httpClient.start();
+		return httpClient;
+	}
+
+	/**
+	 * Keep connections alive for as long as the server advertises, but never longer than the pool allows
+	 */
+	private static ConnectionKeepAliveStrategy keepAliveStrategy(HttpPoolProperties poolProperties) {
+		long keepAlive = poolProperties.getKeepAlive();
+		return (response, context) -> {
+			long advertisedKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return advertisedKeepAlive > 0 ? Math.min(advertisedKeepAlive, keepAlive) : keepAlive;
+		};
+	}
+
+	private static RequestConfig requestConfig(HttpTimeoutProperties timeoutProperties) {
+		return RequestConfig.custom()
+			.setConnectTimeout(timeoutProperties.getConnect())
+			.setSocketTimeout(timeoutProperties.getRead())
+			.setConnectionRequestTimeout(timeoutProperties.getConnectionRequest())
+			.build();
+	}
+
 	void configureJgitProxy(BaseProxyProperties gitProxyProperties, HttpClientBuilder httpClientBuilder) {
 		setNonProxyHostProperty(gitProxyProperties);
 		// Setup HttpClient to use configured proxy servers and override JGits default client
 		HttpClient httpClient = buildClient(gitProxyProperties, httpClientBuilder);
-		HttpTransport.setConnectionFactory(new ProxyAwareHttpClientFactory(httpClient));
+		RoutingHttpConnectionFactory.install().setDefaultFactory(new ProxyAwareHttpClientFactory(httpClient));
+	}
+
+	/**
+	 * Work out how requests reach the proxies configured in {@code proxyProperties}, whichever kind of client is built
+	 *
+	 * @return the proxy route, or {@code null} when no proxy is configured
+	 */
+	ProxyRoute resolveProxy(BaseProxyProperties proxyProperties) {
+		if (proxyProperties == null) {
+			return null;
+		}
+		HttpsProxyProperties httpsProperties = proxyProperties.getHttps();
+		HttpProxyProperties httpProperties = proxyProperties.getHttp();
+		if (!Proxies.hasProxyProperties(httpsProperties) && !Proxies.hasProxyProperties(httpProperties)) {
+			return null;
+		}
+
+		boolean hasBothHttpAndHttpsProxySettings = Stream.of(httpProperties, httpsProperties)
+			.allMatch(Proxies::hasProxyProperties);
+
+		if (hasBothHttpAndHttpsProxySettings) {
+			return multipleProxies(httpProperties, httpsProperties);
+		}
+		return singleProxy(httpProperties, httpsProperties);
 	}
+
 	/**
 	 * When multiple proxies are defined, set proxy host details as System properties and the route planner will pick these
 	 * and determine the proxy to use based on the scheme of the request URI
 	 */
-	void clientWithMultipleProxies(HttpProxyProperties httpProperties, HttpsProxyProperties httpsProperties, HttpClientBuilder httpClientBuilder) {
+	private ProxyRoute multipleProxies(HttpProxyProperties httpProperties, HttpsProxyProperties httpsProperties) {
 		setSystemProxyHostProperties(httpProperties, httpsProperties);
-		httpClientBuilder.setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()));
 
 		//Set credentials for each proxy (The AuthScope uses host + port as a key, the realm defaults to `ANY`)
 		Set<ProxyHostProperties> credentialSet = new HashSet<>();
 		for (ProxyHostProperties proxyHostProperties : Arrays.asList(httpProperties, httpsProperties)) {
 			if (Proxies.hasProxyCredentials(proxyHostProperties)) {
 				credentialSet.add(proxyHostProperties);
-				CredentialsProvider multiScopeCredentials = Proxies.buildCredentialsProvider(credentialSet);
-				httpClientBuilder.setDefaultCredentialsProvider(multiScopeCredentials);
 			}
 		}
 		log.info("Configuring client to use HTTP proxy {} and HTTPS proxy {}", httpProperties, httpsProperties);
+		return new ProxyRoute(null, new SystemDefaultRoutePlanner(ProxySelector.getDefault()),
+			credentialSet.isEmpty() ? null : Proxies.buildCredentialsProvider(credentialSet));
 	}
 
 	/**
-	 * When setting a single proxy, simply use {@link HttpClientBuilder} setProxy() method
+	 * When setting a single proxy, the client is simply given the proxy host
 	 */
-	void clientWithSingleProxy(HttpProxyProperties httpProperties, HttpsProxyProperties httpsProperties, HttpClientBuilder httpClientBuilder) {
+	private ProxyRoute singleProxy(HttpProxyProperties httpProperties, HttpsProxyProperties httpsProperties) {
 		ProxyHostProperties populatedProperties = Proxies.coalesce(httpProperties, httpsProperties);
-		httpClientBuilder.setProxy(new HttpHost(populatedProperties.getHost(), populatedProperties.getPort()));
-		configureProxyCredentials(populatedProperties, httpClientBuilder);
 		log.info("Configuring client to use proxy {}", populatedProperties);
-	}
-
-	private void configureProxyCredentials(ProxyHostProperties proxyProperties, HttpClientBuilder clientBuilder) {
-		if (Proxies.hasProxyCredentials(proxyProperties)) {
-			CredentialsProvider credsProvider = Proxies.buildCredentialsProvider(proxyProperties);
-			clientBuilder.setDefaultCredentialsProvider(credsProvider);
-		}
+		return new ProxyRoute(new HttpHost(populatedProperties.getHost(), populatedProperties.getPort()), null,
+			Proxies.hasProxyCredentials(populatedProperties) ? Proxies.buildCredentialsProvider(populatedProperties) : null);
 	}
 
 	void setNonProxyHostProperty(BaseProxyProperties properties) {
@@ -121,17 +236,15 @@ public class BaseProxyConfiguration {
 		}
 	}
 
-	private HttpClient buildClient(HttpProxyProperties httpProperties, HttpsProxyProperties httpsProperties, HttpClientBuilder httpClientBuilder) {
+	private HttpClient buildClient(ProxyRoute route, HttpClientBuilder httpClientBuilder) {
 		httpClientBuilder.useSystemProperties();
-
-		boolean hasBothHttpAndHttpsProxySettings = Stream.of(httpProperties, httpsProperties)
-			.allMatch(Proxies::hasProxyProperties);
-
-		if (hasBothHttpAndHttpsProxySettings) {
-
-			clientWithMultipleProxies(httpProperties, httpsProperties, httpClientBuilder);
+		if (route.getRoutePlanner() != null) {
+			httpClientBuilder.setRoutePlanner(route.getRoutePlanner());
 		} else {
-			clientWithSingleProxy(httpProperties, httpsProperties, httpClientBuilder);
+			httpClientBuilder.setProxy(route.getProxy());
+		}
+		if (route.getCredentialsProvider() != null) {
+			httpClientBuilder.setDefaultCredentialsProvider(route.getCredentialsProvider());
 		}
 		httpClientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
 		return httpClientBuilder.build();
@@ -150,5 +263,16 @@ public class BaseProxyConfiguration {
 		setSystemProperty(HTTPS_PROXY_PORT_KEY, String.valueOf(httpsProperties.getPort()));
 	}
 
+	/**
+	 * How a client reaches its proxies: through a single {@code proxy}, or a {@code routePlanner} choosing one per
+	 * scheme, with the {@code credentialsProvider}, if any, that authenticates to them
+	 */
+	@Value
+	static class ProxyRoute {
+		HttpHost proxy;
+		HttpRoutePlanner routePlanner;
+		CredentialsProvider credentialsProvider;
+	}
+
 
 }
@@ -5,7 +5,6 @@ import me.ohughes.proxy.annotations.ProxyAwareRestBuilderQualifier;
 import me.ohughes.proxy.properties.GitProxyProperties;
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.eclipse.jgit.transport.HttpTransport;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
@@ -44,9 +43,10 @@ public class GitProxyEnvironmentConfiguration extends WebMvcConfigurerAdapter {
 	@PostConstruct
 	public void configureProxySettings() {
 		baseProxyConfiguration.setNonProxyHostProperty(proxyProperties);
-		// Setup HttpClient to use configured proxy servers and override JGits default client
+		// Setup HttpClient to use configured proxy servers and override JGits default client for repositories that do
+		// not have a client of their own
 		HttpClient httpClient = baseProxyConfiguration.buildClient(proxyProperties, httpClientBuilder);
-		HttpTransport.setConnectionFactory(new ProxyAwareHttpClientFactory(httpClient));
+		RoutingHttpConnectionFactory.install().setDefaultFactory(new ProxyAwareHttpClientFactory(httpClient));
 	}
 
 	/**
@@ -1,12 +1,12 @@
 package me.ohughes.proxy;
 
-import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import me.ohughes.proxy.properties.RequestBufferProperties;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
-import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.eclipse.jgit.transport.http.HttpConnection;
 import org.eclipse.jgit.transport.http.HttpConnectionFactory;
@@ -14,14 +14,20 @@ import org.eclipse.jgit.transport.http.apache.HttpClientConnection;
 import org.eclipse.jgit.transport.http.apache.TemporaryBufferEntity;
 import org.eclipse.jgit.transport.http.apache.internal.HttpApacheText;
 import org.eclipse.jgit.util.TemporaryBuffer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
@@ -29,30 +35,58 @@ import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import static org.eclipse.jgit.util.HttpSupport.*;
 
 /**
- * Allow JGit to be set up with configuration to enable authenticated proxies
+ * Allow JGit to be set up with configuration to enable authenticated proxies.
+ * <p>
+ * The supplied {@link HttpClient} is long lived and shared by every connection this factory creates, so that its
+ * connection pool can keep connections to the Git server (or proxy) alive between requests. Closing a JGit connection
+ * only hands its underlying connection back to the pool; the client itself is closed by {@link #close()}.
+ * <p>
+ * Request bodies are staged according to the supplied {@link RequestBufferProperties}: on the heap up to a threshold
+ * and in a temporary file beyond it, or, when streaming is enabled, sent to the server as chunks while JGit writes them.
  */
 
-public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
+@Slf4j
+public class ProxyAwareHttpClientFactory implements HttpConnectionFactory, Closeable {
 
 	private HttpClient httpClient;
-	private HttpClientConnectionManager connectionManager;
-	@Getter
-    private ResourceClosingHttpClientConnection httpClientConnection;
+	private final RequestBufferProperties requestBuffer;
+	private final ExecutorService streamingExecutor;
+	private final ThreadLocal<List<ResourceClosingHttpClientConnection>> openConnections = new ThreadLocal<>();
 
 	public ProxyAwareHttpClientFactory(HttpClient httpClient) {
-		this.httpClient = httpClient;
-        this.connectionManager = new PoolingHttpClientConnectionManager();
+		this(httpClient, new RequestBufferProperties());
     }
 
+	public ProxyAwareHttpClientFactory(HttpClient httpClient, RequestBufferProperties requestBuffer) {
+		this.httpClient = httpClient;
+		this.requestBuffer = requestBuffer;
+		this.streamingExecutor = requestBuffer.isStreaming() ? newStreamingExecutor() : null;
+	}
+
+	/**
+	 * Streamed requests are executed on their own thread while JGit writes the body on the calling thread, so the pool
+	 * is unbounded; it never holds more threads than there are concurrent fetches.
+	 */
+	private static ExecutorService newStreamingExecutor() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("jgit-request-streaming-");
+		threadFactory.setDaemon(true);
+		return Executors.newCachedThreadPool(threadFactory);
+	}
+
 	@Override
 	public HttpConnection create(URL url) throws IOException {
 		return null;
@@ -64,11 +98,55 @@ public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
 	 */
 	@Override
 	public HttpConnection create(URL url, Proxy proxy) throws IOException {
-        ResourceClosingHttpClientConnection resourceClosingHttpClientConnection = new ResourceClosingHttpClientConnection(url.toString(), null, httpClient, connectionManager);
-        httpClientConnection = resourceClosingHttpClientConnection;
+        ResourceClosingHttpClientConnection resourceClosingHttpClientConnection = new ResourceClosingHttpClientConnection(url.toString(), null, httpClient,
+            requestBuffer, streamingExecutor);
+        List<ResourceClosingHttpClientConnection> connections = openConnections.get();
+        if (connections != null) {
+            connections.add(resourceClosingHttpClientConnection);
+        }
         return resourceClosingHttpClientConnection;
 	}
 
+	/**
+	 * Run {@code work}, then release every connection it opened on the current thread back to the pool. JGit does not
+	 * always read a response to the end, and a response that is neither consumed nor closed holds on to its pooled
+	 * connection. Connections are tracked per thread, so concurrent callers never release each other's connections.
+	 */
+	public <T> T releasingConnections(Supplier<T> work) {
+		List<ResourceClosingHttpClientConnection> outerConnections = openConnections.get();
+		List<ResourceClosingHttpClientConnection> connections = new ArrayList<>();
+		openConnections.set(connections);
+		try {
+			return work.get();
+		} finally {
+			for (ResourceClosingHttpClientConnection connection : connections) {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					log.debug("Error releasing connection to {}: {}", connection.getURL(), e.getMessage());
+				}
+			}
+			if (outerConnections == null) {
+				openConnections.remove();
+			} else {
+				openConnections.set(outerConnections);
+			}
+		}
+	}
+
+	/**
+	 * Shut down the underlying client and its connection pool
+	 */
+	@Override
+	public void close() throws IOException {
+		if (streamingExecutor != null) {
+			streamingExecutor.shutdown();
+		}
+		if (httpClient instanceof Closeable) {
+			((Closeable) httpClient).close();
+		}
+	}
+
     /**
      * JGits client connection does not correctly consume resources, leading to memory leaks. Override the default, using
      * delegation where necessary to allow connections to be properly managed. Unfortunately there is no easy way of
@@ -77,10 +155,18 @@ public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
      */
 	public static class ResourceClosingHttpClientConnection implements HttpConnection {
 
+        private static final int STREAMING_PIPE_SIZE = 64 * 1024;
+
 	    private CloseableHttpClient client;
 	    private HttpUriRequest request;
 	    private CloseableHttpResponse response;
         private TemporaryBufferEntity entity;
+        private RequestBufferProperties requestBuffer;
+        private ExecutorService streamingExecutor;
+        private int fixedLength = -1;
+        private boolean chunked;
+        private PipedOutputStream streamingBody;
+        private Future<CloseableHttpResponse> streamingResponse;
         private URL url;
         private String name;
         private String method;
@@ -89,13 +175,21 @@ public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
         private Boolean followRedirects;
         private boolean isUsingProxy;
         private SSLContext ctx;
-        private HttpClientConnectionManager connectionManager;
 
 
-        public ResourceClosingHttpClientConnection(String urlStr, Proxy proxy, HttpClient client, HttpClientConnectionManager connectionManager) throws MalformedURLException {
+        public ResourceClosingHttpClientConnection(String urlStr, Proxy proxy, HttpClient client) throws MalformedURLException {
+            this(urlStr, proxy, client, new RequestBufferProperties(), null);
+        }
+
+        /**
+         * @param streamingExecutor runs streamed requests, or {@code null} to always stage request bodies
+         */
+        public ResourceClosingHttpClientConnection(String urlStr, Proxy proxy, HttpClient client,
+                RequestBufferProperties requestBuffer, ExecutorService streamingExecutor) throws MalformedURLException {
 			this.client = (CloseableHttpClient) client;
             this.url = new URL(urlStr);
-            this.connectionManager = connectionManager;
+            this.requestBuffer = requestBuffer;
+            this.streamingExecutor = streamingExecutor;
 		}
 
 
@@ -104,6 +198,12 @@ public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
                 return;
             }
 
+            if (streamingResponse != null) {
+                streamingBody.close();
+                response = awaitStreamingResponse();
+                return;
+            }
+
             if (entity == null) {
                 response = client.execute(request);
                 return;
@@ -122,13 +222,22 @@ public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
             }
         }
 
+        /**
+         * Release this connection back to the client's pool. Fully consuming the response first is what allows the
+         * pooled connection to be reused; the shared client is left open.
+         */
         public void close() throws IOException{
+            if (streamingResponse != null && response == null) {
+                execute();
+            }
             if (response != null) {
-                EntityUtils.consume(response.getEntity());
-                response.close();
+                try {
+                    EntityUtils.consume(response.getEntity());
+                } finally {
+                    response.close();
+                    response = null;
+                }
             }
-            client.close();
-
         }
 
         @Override
@@ -247,22 +356,85 @@ public class ProxyAwareHttpClientFactory implements HttpConnectionFactory {
 
         @Override
         public void setFixedLengthStreamingMode(int contentLength) {
-
+            fixedLength = contentLength;
+            if (entity != null)
+                entity.setContentLength(contentLength);
         }
 
+        /**
+         * JGit asks for a fixed length body when it has already buffered the request itself, and for chunked mode when
+         * the body outgrew its own buffer and is still being written. Only the latter is streamed.
+         */
         @Override
         public OutputStream getOutputStream() throws IOException {
-            if (entity == null)
-                entity = new TemporaryBufferEntity(new TemporaryBuffer.LocalFile(null));
+            if (streamingBody != null)
+                return streamingBody;
+            if (entity == null) {
+                if (chunked && streamingExecutor != null && request instanceof HttpEntityEnclosingRequest)
+                    return startStreaming();
+                entity = newBufferedEntity();
+            }
             return entity.getBuffer();
         }
 
 
         @Override
         public void setChunkedStreamingMode(int chunklen) {
-            if (entity == null)
-                entity = new TemporaryBufferEntity(new TemporaryBuffer.LocalFile(null));
-            entity.setChunked(true);
+            chunked = true;
+            if (entity != null)
+                entity.setChunked(true);
+        }
+
+        /**
+         * Stage the body on the heap up to the configured threshold, spilling to a temporary file only beyond it
+         */
+        private TemporaryBufferEntity newBufferedEntity() {
+            String spillDirectory = requestBuffer.getSpillDirectory();
+            TemporaryBufferEntity buffered = new TemporaryBufferEntity(new TemporaryBuffer.LocalFile(
+                spillDirectory == null ? null : new File(spillDirectory), requestBuffer.getHeapThresholdBytes()));
+            buffered.setChunked(chunked);
+            if (fixedLength >= 0)
+                buffered.setContentLength(fixedLength);
+            return buffered;
+        }
+
+        /**
+         * Start executing the request on another thread with a body read from a pipe, returning the end JGit writes to.
+         * The read end is closed once the request completes so that a writer blocked on a full pipe fails rather than
+         * waiting forever when the server responds early.
+         */
+        private OutputStream startStreaming() throws IOException {
+            PipedInputStream body = new PipedInputStream(STREAMING_PIPE_SIZE);
+            streamingBody = new PipedOutputStream(body);
+            InputStreamEntity streamedEntity = new InputStreamEntity(body, -1);
+            streamedEntity.setChunked(true);
+            ((HttpEntityEnclosingRequest) request).setEntity(streamedEntity);
+            HttpUriRequest streamedRequest = request;
+            streamingResponse = streamingExecutor.submit(() -> {
+                try {
+                    return client.execute(streamedRequest);
+                } finally {
+                    body.close();
+                }
+            });
+            return streamingBody;
+        }
+
+        private CloseableHttpResponse awaitStreamingResponse() throws IOException {
+            try {
+                return streamingResponse.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                streamingResponse.cancel(true);
+                throw new InterruptedIOException("Interrupted waiting for response from " + url);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                streamingResponse = null;
+            }
         }
 
         @Override
@@ -2,11 +2,13 @@ package me.ohughes.proxy;
 
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.boot.autoconfigure.web.HttpMessageConverters;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.boot.web.client.RestTemplateCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Scope;
 import org.springframework.core.annotation.AnnotationAwareOrderComparator;
 import org.springframework.util.CollectionUtils;
 
@@ -35,7 +37,11 @@ public class ProxyClientConfiguration {
 		return builder;
 	}
 
+	/**
+	 * Builders are mutated while configuring proxies and connection pools, so every consumer gets its own instance
+	 */
 	@Bean
+	@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
     HttpClientBuilder httpClientBuilder() {
 		return HttpClientBuilder.create();
 	}
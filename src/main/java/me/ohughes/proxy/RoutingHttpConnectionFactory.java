@@ -0,0 +1,181 @@
+package me.ohughes.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.transport.HttpTransport;
+import org.eclipse.jgit.transport.http.HttpConnection;
+import org.eclipse.jgit.transport.http.HttpConnectionFactory;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.springframework.util.StringUtils.hasText;
+
+/**
+ * JGit only supports a single, static, {@link HttpConnectionFactory}. To let each Git repository use its own proxy
+ * settings and connection pool, this factory is installed once and routes every connection to the
+ * {@link ProxyAwareHttpClientFactory} registered for it.
+ * <p>
+ * A connection is routed to the factory bound to the current thread by {@link #route(ProxyAwareHttpClientFactory, Supplier)}
+ * if there is one, otherwise to the factory registered for the longest matching URI prefix, otherwise to the default
+ * factory. Routes are copy-on-write so lookups never block, even while repositories are being registered.
+ */
+@Slf4j
+public class RoutingHttpConnectionFactory implements HttpConnectionFactory {
+
+	private final ThreadLocal<ProxyAwareHttpClientFactory> boundFactory = new ThreadLocal<>();
+	private volatile List<Route> routes = new ArrayList<>();
+	private volatile HttpConnectionFactory defaultFactory;
+
+	RoutingHttpConnectionFactory(HttpConnectionFactory defaultFactory) {
+		this.defaultFactory = defaultFactory;
+	}
+
+	/**
+	 * Install a routing factory as JGit's connection factory, keeping any existing factory as the default route
+	 *
+	 * @return the installed routing factory
+	 */
+	public static synchronized RoutingHttpConnectionFactory install() {
+		HttpConnectionFactory current = HttpTransport.getConnectionFactory();
+		if (current instanceof RoutingHttpConnectionFactory) {
+			return (RoutingHttpConnectionFactory) current;
+		}
+		RoutingHttpConnectionFactory routingFactory = new RoutingHttpConnectionFactory(current);
+		HttpTransport.setConnectionFactory(routingFactory);
+		return routingFactory;
+	}
+
+	public void setDefaultFactory(HttpConnectionFactory defaultFactory) {
+		this.defaultFactory = defaultFactory;
+	}
+
+	/**
+	 * Route connections for {@code uri}, and anything beneath it, to {@code factory}. URIs that are not HTTP(S) are
+	 * ignored, as are any placeholders and everything after them.
+	 */
+	public synchronized void register(String uri, ProxyAwareHttpClientFactory factory) {
+		String prefix = normalize(uri);
+		if (prefix == null) {
+			return;
+		}
+		List<Route> updatedRoutes = new ArrayList<>(routes);
+		updatedRoutes.add(new Route(prefix, uri.indexOf('{') >= 0, factory));
+		updatedRoutes.sort(Comparator.comparingInt((Route route) -> route.prefix.length()).reversed());
+		routes = updatedRoutes;
+		log.debug("Routing JGit connections for {} to a dedicated HTTP client", prefix);
+	}
+
+	public synchronized void unregister(ProxyAwareHttpClientFactory factory) {
+		List<Route> updatedRoutes = new ArrayList<>(routes);
+		updatedRoutes.removeIf(route -> route.factory == factory);
+		routes = updatedRoutes;
+	}
+
+	/**
+	 * Run {@code work} with every JGit connection opened by the current thread routed to {@code factory}. Connections
+	 * are released back to the pool when the work completes.
+	 */
+	public <T> T route(ProxyAwareHttpClientFactory factory, Supplier<T> work) {
+		ProxyAwareHttpClientFactory previousFactory = boundFactory.get();
+		boundFactory.set(factory);
+		try {
+			return factory.releasingConnections(work);
+		} finally {
+			if (previousFactory == null) {
+				boundFactory.remove();
+			} else {
+				boundFactory.set(previousFactory);
+			}
+		}
+	}
+
+	@Override
+	public HttpConnection create(URL url) throws IOException {
+		return create(url, null);
+	}
+
+	@Override
+	public HttpConnection create(URL url, Proxy proxy) throws IOException {
+		return factoryFor(url).create(url, proxy);
+	}
+
+	HttpConnectionFactory factoryFor(URL url) {
+		ProxyAwareHttpClientFactory factory = boundFactory.get();
+		if (factory != null) {
+			return factory;
+		}
+		String target = normalize(url.toString());
+		if (target != null) {
+			for (Route route : routes) {
+				if (route.matches(target)) {
+					return route.factory;
+				}
+			}
+		}
+		return defaultFactory;
+	}
+
+	/**
+	 * Reduce a URI to scheme, host, port and path so that user info, default ports and a trailing {@code .git} or
+	 * {@code /} do not prevent a match
+	 */
+	static String normalize(String uri) {
+		if (!hasText(uri)) {
+			return null;
+		}
+		int placeholder = uri.indexOf('{');
+		String withoutPlaceholders = placeholder < 0 ? uri : uri.substring(0, placeholder);
+		try {
+			URI parsed = new URI(withoutPlaceholders);
+			String scheme = parsed.getScheme() == null ? null : parsed.getScheme().toLowerCase();
+			if (!"http".equals(scheme) && !"https".equals(scheme) || parsed.getHost() == null) {
+				return null;
+			}
+			int port = parsed.getPort();
+			boolean defaultPort = port < 0 || ("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443);
+			String path = parsed.getRawPath() == null ? "" : parsed.getRawPath();
+			if (placeholder < 0) {
+				path = path.endsWith(".git") ? path.substring(0, path.length() - 4) : path;
+				path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+			}
+			return scheme + "://" + parsed.getHost().toLowerCase() + (defaultPort ? "" : ":" + port) + path;
+		} catch (URISyntaxException e) {
+			log.debug("Not routing unparseable URI {}", uri);
+			return null;
+		}
+	}
+
+	private static class Route {
+		private final String prefix;
+		private final boolean placeholder;
+		private final ProxyAwareHttpClientFactory factory;
+
+		Route(String prefix, boolean placeholder, ProxyAwareHttpClientFactory factory) {
+			this.prefix = prefix;
+			this.placeholder = placeholder;
+			this.factory = factory;
+		}
+
+		/**
+		 * A prefix only matches at a path boundary, so that {@code /org/repo} does not match {@code /org/repo2}, unless
+		 * it was cut short at a placeholder in which case anything may follow
+		 */
+		boolean matches(String target) {
+			if (!target.startsWith(prefix)) {
+				return false;
+			}
+			if (placeholder || target.length() == prefix.length() || prefix.endsWith("/")) {
+				return true;
+			}
+			char next = target.charAt(prefix.length());
+			return next == '/' || next == '.' || next == '?';
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package me.ohughes.proxy.properties;
+
+import lombok.Data;
+
+/**
+ * Connection pool settings for a long lived {@link org.apache.http.client.HttpClient}. Durations are in milliseconds.
+ */
+@Data
+public class HttpPoolProperties {
+
+	private int maxTotal = 20;
+	private int maxPerRoute = 10;
+	/**
+	 * Upper bound on how long an idle connection is kept for reuse, also used when the server does not advertise one
+	 */
+	private long keepAlive = 30000;
+	/**
+	 * Connections idle for longer than this are closed by a background evictor
+	 */
+	private long idleEviction = 60000;
+	private int validateAfterInactivity = 2000;
+}
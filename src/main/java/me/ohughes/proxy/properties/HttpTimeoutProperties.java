@@ -0,0 +1,21 @@
+package me.ohughes.proxy.properties;
+
+import lombok.Data;
+
+/**
+ * Timeouts applied to every request made by an {@link org.apache.http.client.HttpClient}, in milliseconds. Zero means
+ * wait indefinitely.
+ */
+@Data
+public class HttpTimeoutProperties {
+
+	private int connect = 5000;
+	/**
+	 * Longest period of inactivity while waiting for data from the server
+	 */
+	private int read = 30000;
+	/**
+	 * Longest wait for a connection to become free in the pool
+	 */
+	private int connectionRequest = 5000;
+}
@@ -0,0 +1,28 @@
+package me.ohughes.proxy.properties;
+
+import lombok.Data;
+
+/**
+ * How JGit smart HTTP request bodies, such as the want/have negotiation sent when fetching, are staged before being
+ * sent to the Git server.
+ */
+@Data
+public class RequestBufferProperties {
+
+	/**
+	 * Bodies up to this many kilobytes are held on the heap, larger ones spill to a temporary file
+	 */
+	private int heapThresholdKb = 1024;
+	/**
+	 * Directory used for bodies that spill past the heap threshold, defaults to the system temporary directory
+	 */
+	private String spillDirectory;
+	/**
+	 * Stream bodies of unknown length straight to the server as chunks while JGit writes them, rather than staging them
+	 */
+	private boolean streaming;
+
+	public int getHeapThresholdBytes() {
+		return (int) Math.min(Integer.MAX_VALUE, heapThresholdKb * 1024L);
+	}
+}
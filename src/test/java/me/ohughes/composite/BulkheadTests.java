@@ -0,0 +1,124 @@
+package me.ohughes.composite;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.cloud.config.environment.Environment;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class BulkheadTests {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private Bulkhead bulkhead;
+
+	@After
+	public void shutdown() {
+		release.countDown();
+		if (bulkhead != null) {
+			bulkhead.shutdown();
+		}
+	}
+
+	@Test
+	public void rejectsLookupsBeyondItsThreadsAndQueue() throws Exception {
+		bulkhead = new Bulkhead(0, properties(2, 1));
+		CountDownLatch running = new CountDownLatch(2);
+		AtomicInteger completed = new AtomicInteger();
+		Runnable blocked = () -> {
+			running.countDown();
+			await(release);
+			completed.incrementAndGet();
+		};
+
+		bulkhead.execute(blocked);
+		bulkhead.execute(blocked);
+		assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+		bulkhead.execute(blocked);
+		try {
+			bulkhead.execute(blocked);
+			fail("Expected the lookup to be rejected");
+		} catch (RejectedExecutionException e) {
+			// The two threads are busy and the queue is full
+		}
+
+		release.countDown();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (completed.get() < 3 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(completed.get()).isEqualTo(3);
+	}
+
+	@Test
+	public void withoutAQueueRejectsAsSoonAsEveryThreadIsBusy() throws Exception {
+		bulkhead = new Bulkhead(0, properties(1, 0));
+		CountDownLatch running = new CountDownLatch(1);
+		bulkhead.execute(() -> {
+			running.countDown();
+			await(release);
+		});
+		assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+
+		try {
+			bulkhead.execute(() -> {
+			});
+			fail("Expected the lookup to be rejected");
+		} catch (RejectedExecutionException e) {
+			// The only thread is busy
+		}
+	}
+
+	@Test
+	public void aRejectedLookupCountsAgainstTheCircuitBreaker() throws Exception {
+		bulkhead = new Bulkhead(0, properties(1, 0));
+		CountDownLatch running = new CountDownLatch(1);
+		DeclarativeCompositeHolder environmentHolder = new DeclarativeCompositeHolder();
+		environmentHolder.setType(DeclarativeCompositeConfig.EnvironmentType.GIT);
+		environmentHolder.setBulkhead(bulkhead);
+		environmentHolder.setCircuitBreaker(new CircuitBreaker(1, 60000));
+		environmentHolder.setEnvironmentRepository((application, profile, label) -> {
+			running.countDown();
+			await(release);
+			return new Environment(application, profile);
+		});
+		DeclarativeCompositeEnvironmentRepository repository =
+			new DeclarativeCompositeEnvironmentRepository(Collections.singletonList(environmentHolder));
+		CompletableFuture<Environment> blocked = CompletableFuture.supplyAsync(() -> repository.findOne("app", "default", null));
+		assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+
+		try {
+			repository.findOne("other", "default", null);
+			fail("Expected the lookup to be rejected");
+		} catch (RuntimeException e) {
+			assertThat(e).hasMessageContaining("Bulkhead full");
+		}
+		assertThat(environmentHolder.getCircuitBreaker().isOpen()).isTrue();
+
+		release.countDown();
+		assertThat(blocked.get(5, TimeUnit.SECONDS).getName()).isEqualTo("app");
+	}
+
+	private static CompositeProperties.BulkheadProperties properties(int maxConcurrency, int queueCapacity) {
+		CompositeProperties.BulkheadProperties properties = new CompositeProperties.BulkheadProperties();
+		properties.setEnabled(true);
+		properties.setMaxConcurrency(maxConcurrency);
+		properties.setQueueCapacity(queueCapacity);
+		return properties;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package me.ohughes.composite;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTests {
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertThat(breaker.isOpen()).isFalse();
+		assertThat(breaker.allowRequest()).isTrue();
+
+		breaker.recordFailure();
+		assertThat(breaker.isOpen()).isTrue();
+		assertThat(breaker.allowRequest()).isFalse();
+	}
+
+	@Test
+	public void successResetsTheFailureCount() {
+		CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		breaker.recordFailure();
+
+		assertThat(breaker.isOpen()).isFalse();
+	}
+
+	@Test
+	public void letsASingleTrialThroughOnceTheOpenDurationHasPassed() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 50);
+		breaker.recordFailure();
+		assertThat(breaker.allowRequest()).isFalse();
+
+		Thread.sleep(100);
+		assertThat(breaker.allowRequest()).isTrue();
+		assertThat(breaker.allowRequest()).isFalse();
+
+		breaker.recordSuccess();
+		assertThat(breaker.isOpen()).isFalse();
+		assertThat(breaker.allowRequest()).isTrue();
+	}
+
+	@Test
+	public void failedTrialOpensTheCircuitAgain() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(3, 50);
+		breaker.recordFailure();
+		breaker.recordFailure();
+		breaker.recordFailure();
+
+		Thread.sleep(100);
+		assertThat(breaker.allowRequest()).isTrue();
+		breaker.recordFailure();
+
+		assertThat(breaker.isOpen()).isTrue();
+		assertThat(breaker.allowRequest()).isFalse();
+	}
+}
@@ -0,0 +1,87 @@
+package me.ohughes.composite;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+import org.springframework.cloud.config.server.encryption.CipherEnvironmentEncryptor;
+import org.springframework.cloud.config.server.environment.EnvironmentEncryptorEnvironmentRepository;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompositeChangesControllerTests {
+
+	private final CompositeSnapshots snapshots = new CompositeSnapshots(new CompositeProperties.ChangesProperties());
+	private final Map<String, Object> stored = new LinkedHashMap<>();
+	private String version;
+	private CompositeChangesController controller;
+
+	@Before
+	public void setUp() {
+		// Stands in for the composite repository, which records each version it returns
+		EnvironmentEncryptorEnvironmentRepository encrypted = new EnvironmentEncryptorEnvironmentRepository(
+			(application, profile, label) -> {
+				Environment environment = new Environment(application, new String[]{profile}, label, version, null);
+				environment.add(new PropertySource("git:application.yml", new LinkedHashMap<>(stored)));
+				snapshots.record(LookupKey.composite(application, profile, label), environment);
+				return environment;
+			}, new CipherEnvironmentEncryptor(keys -> new ReversingTextEncryptor()));
+		encrypted.setOverrides(Collections.singletonMap("overridden", "server"));
+		controller = new CompositeChangesController(encrypted, snapshots);
+	}
+
+	@Test
+	public void decryptsCipherValuesAndAppliesOverridesOnReset() {
+		stored.put("password", "{cipher}terces");
+		stored.put("plain", "1");
+		version = "v1";
+
+		CompositeChangesController.Changes changes = controller.changes("app", "default", "unknown");
+
+		assertThat(changes.isReset()).isTrue();
+		assertThat(changes.getAdded().get("password").getValue()).isEqualTo("secret");
+		assertThat(changes.getAdded().get("plain").getValue()).isEqualTo("1");
+		assertThat(changes.getAdded().get("overridden").getValue()).isEqualTo("server");
+	}
+
+	@Test
+	public void sendsDecryptedValuesOfTheKeysThatChanged() {
+		stored.put("password", "{cipher}terces");
+		stored.put("plain", "1");
+		stored.put("dropped", "1");
+		version = "v1";
+		controller.changes("app", "default", "v0");
+
+		stored.put("password", "{cipher}wen");
+		stored.remove("dropped");
+		stored.put("added", "{cipher}ih");
+		version = "v2";
+		CompositeChangesController.Changes changes = controller.changes("app", "default", "v1");
+
+		assertThat(changes.isReset()).isFalse();
+		assertThat(changes.getVersion()).isEqualTo("v2");
+		assertThat(changes.getChanged()).containsOnlyKeys("password");
+		assertThat(changes.getChanged().get("password").getValue()).isEqualTo("new");
+		assertThat(changes.getAdded()).containsOnlyKeys("added");
+		assertThat(changes.getAdded().get("added").getValue()).isEqualTo("hi");
+		assertThat(changes.getRemoved()).containsOnly("dropped");
+	}
+
+	private static class ReversingTextEncryptor implements TextEncryptor {
+
+		@Override
+		public String encrypt(String text) {
+			return new StringBuilder(text).reverse().toString();
+		}
+
+		@Override
+		public String decrypt(String encryptedText) {
+			return new StringBuilder(encryptedText).reverse().toString();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package me.ohughes.composite;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class CompositeDiskSnapshotTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final CompositeProperties.DiskSnapshotProperties properties = new CompositeProperties.DiskSnapshotProperties();
+	private final List<CompositeDiskSnapshot> snapshots = new ArrayList<>();
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = new File(folder.getRoot(), "snapshot.bin");
+		properties.setPath(file.getPath());
+		properties.setInterval(3600000);
+	}
+
+	@After
+	public void shutdown() {
+		snapshots.forEach(CompositeDiskSnapshot::shutdown);
+	}
+
+	@Test
+	public void resultsWrittenByOneRunAreServedByTheNext() throws Exception {
+		CompositeDiskSnapshot previous = snapshot(git("https://example.com/config.git"));
+		previous.record(key(0, "app"), environment("app", "abc123", "1"));
+		previous.write();
+
+		CompositeDiskSnapshot next = snapshot(git("https://example.com/config.git"));
+		assertThat(next.load()).isEqualTo(1);
+		assertThat(next.hasBootResults()).isTrue();
+		Environment restored = next.getBootResult(key(0, "app"));
+		assertThat(restored.getName()).isEqualTo("app");
+		assertThat(restored.getVersion()).isEqualTo("abc123");
+		assertThat(restored.getPropertySources()).hasSize(1);
+		assertThat(restored.getPropertySources().get(0).getSource().get("key")).isEqualTo("1");
+		assertThat(next.getBootResult(key(0, "other"))).isNull();
+	}
+
+	@Test
+	public void resultsDependingOnATokenAreNotWritten() throws Exception {
+		CompositeDiskSnapshot previous = snapshot(git("https://example.com/config.git"));
+		previous.record(new LookupKey(0, "app", "default", "master", "token-hash"), environment("app", null, "1"));
+		previous.write();
+
+		assertThat(snapshot(git("https://example.com/config.git")).load()).isZero();
+	}
+
+	@Test
+	public void resultsOfAnEntryThatHasChangedAreIgnored() throws Exception {
+		CompositeDiskSnapshot previous = snapshot(git("https://example.com/config.git"), git("https://example.com/other.git"));
+		previous.record(key(0, "app"), environment("app", "abc123", "1"));
+		previous.record(key(1, "app"), environment("app", "def456", "2"));
+		previous.write();
+
+		CompositeDiskSnapshot next = snapshot(git("https://example.com/config.git"), git("https://example.com/moved.git"));
+		assertThat(next.load()).isEqualTo(1);
+		assertThat(next.getBootResult(key(0, "app"))).isNotNull();
+		assertThat(next.getBootResult(key(1, "app"))).isNull();
+	}
+
+	@Test
+	public void resultsAreIgnoredOnceWhereTheEntryReadsFromChanges() throws Exception {
+		CompositeDiskSnapshot previous = snapshot(git("https://example.com/config.git"), git("https://example.com/config.git"));
+		previous.record(key(0, "app"), environment("app", "abc123", "1"));
+		previous.record(key(1, "app"), environment("app", "abc123", "2"));
+		previous.write();
+
+		CompositeProperties.DeclarativeCompositeProperties searchPaths = git("https://example.com/config.git");
+		searchPaths.setSearchPaths(new String[]{"{application}"});
+		CompositeProperties.DeclarativeCompositeProperties patternRepos = git("https://example.com/config.git");
+		CompositeProperties.PatternMatchingRepoProperties patternRepo = new CompositeProperties.PatternMatchingRepoProperties();
+		patternRepo.setPattern(new String[]{"app*"});
+		patternRepo.setUri("https://example.com/app.git");
+		patternRepos.getRepos().put("app", patternRepo);
+		CompositeDiskSnapshot next = snapshot(searchPaths, patternRepos);
+		assertThat(next.load()).isZero();
+	}
+
+	@Test
+	public void credentialsDoNotChangeAnEntrysIdentity() {
+		CompositeProperties.DeclarativeCompositeProperties entry = git("https://example.com/config.git");
+		String identity = CompositeDiskSnapshot.identity(entry);
+		entry.setPassword("rotated");
+		assertThat(CompositeDiskSnapshot.identity(entry)).isEqualTo(identity);
+		entry.setBasedir("/var/config");
+		assertThat(CompositeDiskSnapshot.identity(entry)).isNotEqualTo(identity);
+	}
+
+	@Test
+	public void theSnapshotIsReadableByItsOwnerAlone() throws Exception {
+		assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+		file = new File(folder.getRoot(), "nested/snapshot.bin");
+		properties.setPath(file.getPath());
+		CompositeDiskSnapshot snapshot = snapshot(git("https://example.com/config.git"));
+		snapshot.record(key(0, "app"), environment("app", "abc123", "1"));
+		snapshot.write();
+
+		assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()))).isEqualTo("rw-------");
+		assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.getParentFile().toPath()))).isEqualTo("rwx------");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aPathMustBeGiven() {
+		properties.setPath(null);
+		snapshot(git("https://example.com/config.git"));
+	}
+
+	@Test
+	public void aDamagedSnapshotIsIgnored() throws Exception {
+		CompositeDiskSnapshot previous = snapshot(git("https://example.com/config.git"));
+		previous.record(key(0, "app"), environment("app", "abc123", "1"));
+		previous.write();
+		try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+			damaged.seek(damaged.length() / 2);
+			int value = damaged.read();
+			damaged.seek(damaged.length() / 2);
+			damaged.write(value ^ 0xff);
+		}
+
+		CompositeDiskSnapshot next = snapshot(git("https://example.com/config.git"));
+		assertThat(next.load()).isZero();
+		assertThat(next.hasBootResults()).isFalse();
+	}
+
+	@Test
+	public void noSnapshotToLoad() {
+		assertThat(snapshot(git("https://example.com/config.git")).load()).isZero();
+	}
+
+	@Test
+	public void keepsNoMoreThanMaxEntries() throws Exception {
+		properties.setMaxEntries(2);
+		CompositeDiskSnapshot previous = snapshot(git("https://example.com/config.git"));
+		previous.record(key(0, "a"), environment("a", "abc123", "1"));
+		previous.record(key(0, "b"), environment("b", "abc123", "1"));
+		previous.record(key(0, "c"), environment("c", "abc123", "1"));
+		previous.write();
+
+		CompositeDiskSnapshot next = snapshot(git("https://example.com/config.git"));
+		assertThat(next.load()).isEqualTo(2);
+		assertThat(next.getBootResult(key(0, "a"))).isNull();
+	}
+
+	private CompositeDiskSnapshot snapshot(CompositeProperties.DeclarativeCompositeProperties... composite) {
+		List<CompositeProperties.DeclarativeCompositeProperties> entries = new ArrayList<>();
+		Collections.addAll(entries, composite);
+		CompositeDiskSnapshot snapshot = new CompositeDiskSnapshot(properties, entries);
+		snapshots.add(snapshot);
+		return snapshot;
+	}
+
+	private static CompositeProperties.DeclarativeCompositeProperties git(String uri) {
+		CompositeProperties.DeclarativeCompositeProperties entry = new CompositeProperties.DeclarativeCompositeProperties();
+		entry.setType("git");
+		entry.setUri(uri);
+		return entry;
+	}
+
+	private static LookupKey key(int backend, String application) {
+		return new LookupKey(backend, application, "default", "master", null);
+	}
+
+	private static Environment environment(String application, String version, String value) {
+		Environment environment = new Environment(application, "default");
+		environment.setLabel("master");
+		environment.setVersion(version);
+		environment.add(new PropertySource("application.yml", Collections.singletonMap("key", value)));
+		return environment;
+	}
+}
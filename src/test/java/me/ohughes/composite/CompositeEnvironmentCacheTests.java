@@ -0,0 +1,136 @@
+package me.ohughes.composite;
+
+import org.junit.Test;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompositeEnvironmentCacheTests {
+
+	private final CompositeProperties.CacheProperties properties = new CompositeProperties.CacheProperties();
+
+	@Test
+	public void returnsAPrivateCopyOfTheCachedResult() {
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		Environment environment = environment("app", "1");
+		cache.put(composite("app"), environment, later());
+		environment.getPropertySources().clear();
+
+		Environment cached = cache.get(composite("app"));
+		assertThat(cached.getPropertySources()).hasSize(1);
+		cached.getPropertySources().clear();
+		assertThat(cache.get(composite("app")).getPropertySources()).hasSize(1);
+		assertThat(cache.getStatistics().getHits()).isEqualTo(2);
+	}
+
+	@Test
+	public void expiredResultsAreMisses() {
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		cache.put(composite("app"), environment("app", "1"), System.currentTimeMillis() - 1);
+
+		assertThat(cache.get(composite("app"))).isNull();
+		assertThat(cache.expiresAt(composite("app"))).isZero();
+		CompositeEnvironmentCache.Statistics statistics = cache.getStatistics();
+		assertThat(statistics.getExpirations()).isEqualTo(1);
+		assertThat(statistics.getMisses()).isEqualTo(1);
+		assertThat(statistics.getSize()).isZero();
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedResultBeyondMaxEntries() {
+		properties.setMaxEntries(2);
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		cache.put(composite("a"), environment("a", "1"), later());
+		cache.put(composite("b"), environment("b", "1"), later());
+		cache.get(composite("a"));
+		cache.put(composite("c"), environment("c", "1"), later());
+
+		assertThat(cache.get(composite("a"))).isNotNull();
+		assertThat(cache.get(composite("b"))).isNull();
+		assertThat(cache.get(composite("c"))).isNotNull();
+		assertThat(cache.getStatistics().getEvictions()).isEqualTo(1);
+	}
+
+	@Test
+	public void staysWithinMaxBytes() {
+		long size = Environments.estimateSize(environment("a", "1"));
+		properties.setMaxBytes(size * 2);
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		cache.put(composite("a"), environment("a", "1"), later());
+		cache.put(composite("b"), environment("b", "1"), later());
+		cache.put(composite("c"), environment("c", "1"), later());
+
+		CompositeEnvironmentCache.Statistics statistics = cache.getStatistics();
+		assertThat(statistics.getSize()).isEqualTo(2);
+		assertThat(statistics.getBytes()).isLessThanOrEqualTo(size * 2);
+		assertThat(cache.get(composite("a"))).isNull();
+	}
+
+	@Test
+	public void doesNotCacheAResultLargerThanTheWholeCache() {
+		properties.setMaxBytes(1);
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		cache.put(composite("a"), environment("a", "1"), later());
+
+		assertThat(cache.get(composite("a"))).isNull();
+		assertThat(cache.getStatistics().getBytes()).isZero();
+	}
+
+	@Test
+	public void evictingABackendAlsoEvictsMergedResults() {
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		cache.put(backend(0, "app"), environment("app", "1"), later());
+		cache.put(backend(1, "app"), environment("app", "2"), later());
+		cache.put(composite("app"), environment("app", "3"), later());
+
+		cache.evictBackend(0);
+
+		assertThat(cache.get(backend(0, "app"))).isNull();
+		assertThat(cache.get(composite("app"))).isNull();
+		assertThat(cache.get(backend(1, "app"))).isNotNull();
+		assertThat(cache.getStatistics().getInvalidations()).isEqualTo(2);
+	}
+
+	@Test
+	public void evictsByApplication() {
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+		cache.put(composite("a"), environment("a", "1"), later());
+		cache.put(composite("b"), environment("b", "1"), later());
+
+		cache.evict("a");
+
+		assertThat(cache.get(composite("a"))).isNull();
+		assertThat(cache.get(composite("b"))).isNotNull();
+	}
+
+	@Test
+	public void ttlFallsBackToTheDefault() {
+		properties.setDefaultTtl(1000);
+		properties.getTtl().put("vault", 10L);
+		CompositeEnvironmentCache cache = new CompositeEnvironmentCache(properties);
+
+		assertThat(cache.ttlFor(DeclarativeCompositeConfig.EnvironmentType.VAULT)).isEqualTo(10);
+		assertThat(cache.ttlFor(DeclarativeCompositeConfig.EnvironmentType.GIT)).isEqualTo(1000);
+	}
+
+	private static LookupKey composite(String application) {
+		return new LookupKey(LookupKey.COMPOSITE, application, "default", "master", null);
+	}
+
+	private static LookupKey backend(int index, String application) {
+		return new LookupKey(index, application, "default", "master", null);
+	}
+
+	private static Environment environment(String application, String value) {
+		Environment environment = new Environment(application, "default");
+		environment.add(new PropertySource("source", Collections.singletonMap("key", value)));
+		return environment;
+	}
+
+	private static long later() {
+		return System.currentTimeMillis() + 60000;
+	}
+}
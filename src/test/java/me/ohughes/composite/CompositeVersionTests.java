@@ -0,0 +1,74 @@
+package me.ohughes.composite;
+
+import org.junit.Test;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompositeVersionTests {
+
+	@Test
+	public void versionedResultsAreIdentifiedByTheirVersionAlone() {
+		Environment first = git("abc123", "a", "1");
+		Environment sameCommit = git("abc123", "a", "2");
+		Environment otherCommit = git("def456", "a", "1");
+
+		assertThat(CompositeVersion.of(Arrays.asList(first))).isEqualTo(CompositeVersion.of(Arrays.asList(sameCommit)))
+			.isNotEqualTo(CompositeVersion.of(Arrays.asList(otherCommit)));
+	}
+
+	@Test
+	public void unversionedResultsAreIdentifiedByTheirContentWhateverItsOrder() {
+		Environment vault = vault("secret", "a", "1", "b", "2");
+		Environment reordered = vault("secret", "b", "2", "a", "1");
+		Environment changed = vault("secret", "a", "1", "b", "3");
+
+		assertThat(CompositeVersion.of(Arrays.asList(vault))).isEqualTo(CompositeVersion.of(Arrays.asList(reordered)))
+			.isNotEqualTo(CompositeVersion.of(Arrays.asList(changed)));
+	}
+
+	@Test
+	public void orderOfTheBackendsCounts() {
+		Environment git = git("abc123", "a", "1");
+		Environment vault = vault("secret", "a", "1");
+
+		assertThat(CompositeVersion.of(Arrays.asList(git, vault))).isNotEqualTo(CompositeVersion.of(Arrays.asList(vault, git)));
+	}
+
+	@Test
+	public void valuesCannotRunIntoTheirKeys() {
+		assertThat(CompositeVersion.of(Arrays.asList(vault("secret", "ab", "c"))))
+			.isNotEqualTo(CompositeVersion.of(Arrays.asList(vault("secret", "a", "bc"))));
+	}
+
+	@Test
+	public void isAShortLowerCaseHexString() {
+		assertThat(CompositeVersion.of(Arrays.asList(git("abc123", "a", "1")))).matches("[0-9a-f]{32}");
+	}
+
+	private static Environment git(String version, String key, String value) {
+		Environment environment = new Environment("app", "dev");
+		environment.setVersion(version);
+		environment.add(new PropertySource("git:app-dev.yml", source(key, value)));
+		return environment;
+	}
+
+	private static Environment vault(String name, String... keysAndValues) {
+		Environment environment = new Environment("app", "dev");
+		environment.add(new PropertySource("vault:" + name, source(keysAndValues)));
+		return environment;
+	}
+
+	private static Map<String, Object> source(String... keysAndValues) {
+		Map<String, Object> source = new LinkedHashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			source.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return source;
+	}
+}
@@ -0,0 +1,111 @@
+package me.ohughes.composite;
+
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.config.server.environment.NoSuchLabelException;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CompositeWarmUpTests {
+
+	private final CompositeProperties.WarmUpProperties properties = new CompositeProperties.WarmUpProperties();
+	private final DeclarativeCompositeEnvironmentRepository repository = mock(DeclarativeCompositeEnvironmentRepository.class);
+	private CompositeWarmUp warmUp;
+
+	@Before
+	public void setUp() {
+		properties.setTargets(Arrays.asList("app/default", "other/default/missing"));
+		properties.setRetryBackoff(10);
+		properties.setRetryMaxBackoff(20);
+	}
+
+	@After
+	public void tearDown() {
+		warmUp.shutdown();
+	}
+
+	@Test
+	public void retriesAFailedTargetUntilItIsWarmed() throws Exception {
+		when(repository.warm("app", "default", null))
+			.thenThrow(new IllegalStateException("Unreachable"))
+			.thenThrow(new IllegalStateException("Unreachable"))
+			.thenReturn(true);
+		when(repository.warm("other", "default", "missing")).thenReturn(true);
+		warmUp = warmUp();
+
+		warmUp.warmAll();
+
+		verify(repository, timeout(5000).times(3)).warm("app", "default", null);
+		awaitReady();
+		assertThat(warmUp.getProgress().getWarmed()).isEqualTo(2);
+		assertThat(warmUp.getProgress().getFailures()).isEqualTo(2);
+	}
+
+	@Test
+	public void countsTargetsThatDoNotExistWithoutRetryingThem() throws Exception {
+		when(repository.warm("app", "default", null)).thenReturn(true);
+		when(repository.warm("other", "default", "missing")).thenThrow(new NoSuchLabelException("No such label: missing"));
+		warmUp = warmUp();
+
+		warmUp.warmAll();
+
+		awaitReady();
+		Thread.sleep(100);
+		verify(repository).warm("other", "default", "missing");
+		assertThat(warmUp.getProgress().getWarmed()).isEqualTo(1);
+		assertThat(warmUp.getProgress().getUnavailable()).isEqualTo(1);
+	}
+
+	@Test
+	public void countsMissingRepositoriesAsUnavailable() throws Exception {
+		when(repository.warm("app", "default", null)).thenReturn(true);
+		when(repository.warm("other", "default", "missing")).thenThrow(new IllegalStateException("Cannot clone or checkout repository",
+			new InvalidRemoteException("Invalid remote: origin")));
+		warmUp = warmUp();
+
+		warmUp.warmAll();
+
+		awaitReady();
+		assertThat(warmUp.getProgress().getUnavailable()).isEqualTo(1);
+	}
+
+	@Test
+	public void isNotReadyWhileResultsComeFromTheDiskSnapshot() throws Exception {
+		when(repository.warm(any(), any(), any())).thenReturn(false);
+		warmUp = warmUp();
+
+		warmUp.warmAll();
+
+		verify(repository, timeout(5000).atLeast(3)).warm("app", "default", null);
+		assertThat(warmUp.isReady()).isFalse();
+		assertThat(warmUp.getProgress().getWarmed()).isEqualTo(0);
+
+		when(repository.warm(any(), any(), any())).thenReturn(true);
+		awaitReady();
+		verify(repository, atLeast(4)).warm("app", "default", null);
+	}
+
+	private CompositeWarmUp warmUp() {
+		CompositeWarmUp warmUp = new CompositeWarmUp(properties);
+		warmUp.setRepository(repository);
+		return warmUp;
+	}
+
+	private void awaitReady() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!warmUp.isReady()) {
+			assertThat(System.currentTimeMillis()).isLessThan(deadline);
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package me.ohughes.composite;
+
+import org.junit.Test;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeclarativeCompositeHolderTests {
+
+	private final EnvironmentRepository repository = (application, profile, label) -> new Environment(application, profile);
+
+	@Test
+	public void comparingAndPrintingDoNotBuildTheHolder() {
+		AtomicInteger builds = new AtomicInteger();
+		DeclarativeCompositeHolder holder = lazyHolder(builds, null);
+
+		assertThat(holder).isEqualTo(holder).isNotEqualTo(lazyHolder(builds, null));
+		assertThat(holder.hashCode()).isEqualTo(System.identityHashCode(holder));
+		assertThat(holder.toString()).isNotEmpty();
+		assertThat(holder.isInitialized()).isFalse();
+		assertThat(builds.get()).isZero();
+
+		assertThat(holder.getEnvironmentRepository()).isSameAs(repository);
+		assertThat(holder.getEnvironmentRepository()).isSameAs(repository);
+		assertThat(builds.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void otherThreadsDoNotWaitForTheWorkAfterTheBuild() throws Exception {
+		CountDownLatch afterBuildStarted = new CountDownLatch(1);
+		CountDownLatch finishAfterBuild = new CountDownLatch(1);
+		DeclarativeCompositeHolder holder = lazyHolder(new AtomicInteger(), () -> {
+			afterBuildStarted.countDown();
+			try {
+				finishAfterBuild.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		CompletableFuture<Void> building = CompletableFuture.runAsync(holder::initialize);
+		assertThat(afterBuildStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+		CompletableFuture<EnvironmentRepository> reading = CompletableFuture.supplyAsync(holder::getEnvironmentRepository);
+		assertThat(reading.get(10, TimeUnit.SECONDS)).isSameAs(repository);
+		assertThat(building.isDone()).isFalse();
+
+		finishAfterBuild.countDown();
+		building.get(10, TimeUnit.SECONDS);
+	}
+
+	private DeclarativeCompositeHolder lazyHolder(AtomicInteger builds, Runnable afterBuild) {
+		DeclarativeCompositeHolder holder = new DeclarativeCompositeHolder();
+		holder.setType(DeclarativeCompositeConfig.EnvironmentType.GIT);
+		holder.setInitializer(built -> {
+			builds.incrementAndGet();
+			built.setEnvironmentRepository(repository);
+			return afterBuild;
+		});
+		return holder;
+	}
+}
@@ -0,0 +1,88 @@
+package me.ohughes.composite;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository.PatternMatchingJGitEnvironmentRepository;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GitStartupClonerTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Git remote;
+	private String uri;
+
+	@Before
+	public void setUp() throws Exception {
+		remote = Git.init().setDirectory(folder.newFolder("remote")).call();
+		Files.write(new File(remote.getRepository().getWorkTree(), "app.yml").toPath(), "key: value".getBytes(StandardCharsets.UTF_8));
+		remote.add().addFilepattern("app.yml").call();
+		remote.commit().setMessage("Add app.yml").call();
+		uri = remote.getRepository().getWorkTree().toURI().toString();
+	}
+
+	@After
+	public void tearDown() {
+		remote.close();
+	}
+
+	@Test
+	public void clonesTheEntryWithoutDetachingItsPatternRepositories() throws Exception {
+		List<Map<String, PatternMatchingJGitEnvironmentRepository>> reposWhileCloning = new ArrayList<>();
+		AtomicInteger configured = new AtomicInteger();
+		FetchAwareJGitEnvironmentRepository repository = new FetchAwareJGitEnvironmentRepository(new StandardEnvironment()) {
+			@Override
+			public void afterPropertiesSet() throws Exception {
+				configured.incrementAndGet();
+				super.afterPropertiesSet();
+			}
+
+			@Override
+			public String refresh(String label) {
+				reposWhileCloning.add(new LinkedHashMap<>(getRepos()));
+				return super.refresh(label);
+			}
+		};
+		repository.setUri(uri);
+		repository.setBasedir(new File(folder.getRoot(), "entry"));
+		repository.setCloneOnStart(true);
+		PatternMatchingJGitEnvironmentRepository patternRepo = new FetchAwareJGitEnvironmentRepository.FetchAwarePatternMatchingJGitEnvironmentRepository();
+		patternRepo.setName("app");
+		patternRepo.setUri(uri);
+		patternRepo.setBasedir(new File(folder.getRoot(), "pattern"));
+		patternRepo.setCloneOnStart(true);
+		Map<String, PatternMatchingJGitEnvironmentRepository> repos = new LinkedHashMap<>();
+		repos.put("app", patternRepo);
+		repository.setRepos(repos);
+		Map<String, PatternMatchingJGitEnvironmentRepository> liveRepos = repository.getRepos();
+
+		GitStartupCloner cloner = new GitStartupCloner(new CompositeProperties.StartupCloneProperties());
+		cloner.add("composite[0]", repository);
+		assertThat(reposWhileCloning).isEmpty();
+		cloner.cloneAll();
+
+		assertThat(reposWhileCloning).hasSize(1);
+		assertThat(reposWhileCloning.get(0)).containsOnlyKeys("app");
+		assertThat(configured.get()).isEqualTo(1);
+		assertThat(repository.getRepos()).isSameAs(liveRepos).containsOnlyKeys("app");
+		assertThat(repository.isCloneOnStart()).isTrue();
+		assertThat(patternRepo.isCloneOnStart()).isTrue();
+		assertThat(repository.findOne("app", "default", "master").getPropertySources()).isNotEmpty();
+	}
+}
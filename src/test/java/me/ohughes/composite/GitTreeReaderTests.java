@@ -0,0 +1,118 @@
+package me.ohughes.composite;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.environment.PropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reading a label straight from the object database must find the same property sources, in the same order and with
+ * the same values, as checking it out and reading the working tree with {@link
+ * org.springframework.cloud.config.server.environment.NativeEnvironmentRepository}, as the stock repository does
+ */
+public class GitTreeReaderTests {
+
+	private static final String[] SEARCH_PATHS = {"config", "{application}", "shared*"};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Git remote;
+
+	@Before
+	public void setUp() throws Exception {
+		remote = Git.init().setDirectory(folder.newFolder("remote")).call();
+		write("application.yml", "shared: root\nlevel: application\n");
+		write("application-dev.properties", "shared=root-dev\n");
+		write("app.yml", "level: app\nlist:\n  - one\n  - two\n---\nspring:\n  profiles: dev\nlevel: app-dev-document\n"
+			+ "---\nspring:\n  profiles: prod\nlevel: app-prod-document\n");
+		write("app-dev.properties", "level=app-dev\nonly.dev=true\n");
+		write("app-prod.yml", "level: app-prod\n");
+		write("other.properties", "level=other\n");
+		write("config/app.yml", "searched: config\n");
+		write("config/application-prod.yml", "searched: config-prod\n");
+		write("app/app.properties", "searched=app-directory\n");
+		write("shared-1/app-dev.yml", "searched: shared-1\n");
+		write("shared-2/application.yml", "searched: shared-2\n");
+		write("unsearched/app.yml", "searched: unsearched\n");
+		commit("Add configuration");
+		remote.branchCreate().setName("other").call();
+		remote.checkout().setName("other").call();
+		write("app.yml", "level: app-on-other\n");
+		write("app-dev.properties", "level=app-dev-on-other\n");
+		commit("Change configuration on other");
+		remote.tag().setName("v1").call();
+		remote.checkout().setName("master").call();
+	}
+
+	@After
+	public void tearDown() {
+		remote.close();
+	}
+
+	@Test
+	public void readsTheSameSourcesAsACheckout() throws Exception {
+		FetchAwareJGitEnvironmentRepository treeReader = repository("tree", true);
+		FetchAwareJGitEnvironmentRepository checkout = repository("checkout", false);
+
+		for (String label : new String[]{"master", "other", "v1"}) {
+			for (String application : new String[]{"app", "other", "missing", "app,other"}) {
+				for (String profile : new String[]{"default", "dev", "prod", "dev,prod", "prod,dev"}) {
+					String lookup = application + "/" + profile + "/" + label;
+					Environment expected = checkout.findOne(application, profile, label);
+					Environment actual = treeReader.findOne(application, profile, label);
+					assertThat(actual.getVersion()).as(lookup).isEqualTo(expected.getVersion());
+					assertThat(sources(actual)).as(lookup).isEqualTo(sources(expected));
+				}
+			}
+		}
+	}
+
+	private FetchAwareJGitEnvironmentRepository repository(String name, boolean readWithoutCheckout) throws Exception {
+		FetchAwareJGitEnvironmentRepository repository = new FetchAwareJGitEnvironmentRepository(new StandardEnvironment());
+		// A plain path rather than a file: URI, so that each repository reads from a clone of its own
+		repository.setUri(remote.getRepository().getWorkTree().getAbsolutePath());
+		repository.setBasedir(new File(folder.getRoot(), name));
+		repository.setSearchPaths(SEARCH_PATHS);
+		repository.setReadWithoutCheckout(readWithoutCheckout);
+		repository.afterPropertiesSet();
+		return repository;
+	}
+
+	private List<Map<String, Object>> sources(Environment environment) {
+		List<Map<String, Object>> sources = new ArrayList<>();
+		for (PropertySource source : environment.getPropertySources()) {
+			Map<String, Object> described = new LinkedHashMap<>();
+			described.put("name", source.getName());
+			described.put("source", new LinkedHashMap<>(source.getSource()));
+			sources.add(described);
+		}
+		return sources;
+	}
+
+	private void write(String path, String content) throws Exception {
+		File file = new File(remote.getRepository().getWorkTree(), path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void commit(String message) throws Exception {
+		remote.add().addFilepattern(".").call();
+		remote.commit().setMessage(message).call();
+	}
+}
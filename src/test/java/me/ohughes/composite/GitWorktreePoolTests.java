@@ -0,0 +1,161 @@
+package me.ohughes.composite;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GitWorktreePoolTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(8);
+	private Git remote;
+	private File basedir;
+
+	@Before
+	public void setUp() throws Exception {
+		remote = Git.init().setDirectory(folder.newFolder("remote")).call();
+		commit("app.yml", "key: master-1");
+		remote.branchCreate().setName("other").call();
+		remote.checkout().setName("other").call();
+		commit("app.yml", "key: other-1");
+		remote.checkout().setName("master").call();
+		basedir = new File(folder.getRoot(), "clone");
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		remote.close();
+	}
+
+	@Test
+	public void readsEachLabelFromItsOwnWorkingCopy() {
+		FetchAwareJGitEnvironmentRepository repository = repository(8);
+
+		assertThat(value(repository.findOne("app", "default", "master"))).isEqualTo("master-1");
+		assertThat(value(repository.findOne("app", "default", "other"))).isEqualTo("other-1");
+		assertThat(value(repository.findOne("app", "default", "master"))).isEqualTo("master-1");
+	}
+
+	@Test
+	public void concurrentLookupsForDifferentLabelsEachSeeTheirOwnLabel() throws Exception {
+		FetchAwareJGitEnvironmentRepository repository = repository(8);
+		List<Future<String>> lookups = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			String label = i % 2 == 0 ? "master" : "other";
+			lookups.add(executor.submit(() -> label + "=" + value(repository.findOne("app", "default", label))));
+		}
+		for (Future<String> lookup : lookups) {
+			assertThat(lookup.get(30, TimeUnit.SECONDS)).isIn("master=master-1", "other=other-1");
+		}
+	}
+
+	@Test
+	public void writesANewCopyOnceTheLabelHasMovedOn() throws Exception {
+		FetchAwareJGitEnvironmentRepository repository = repository(8);
+		assertThat(value(repository.findOne("app", "default", "master"))).isEqualTo("master-1");
+
+		commit("app.yml", "key: master-2");
+
+		Environment moved = repository.findOne("app", "default", "master");
+		assertThat(value(moved)).isEqualTo("master-2");
+		assertThat(moved.getVersion()).isEqualTo(remote.getRepository().resolve("master").getName());
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedCopyBeyondMaxWorktrees() {
+		FetchAwareJGitEnvironmentRepository repository = repository(1);
+
+		assertThat(value(repository.findOne("app", "default", "master"))).isEqualTo("master-1");
+		assertThat(value(repository.findOne("app", "default", "other"))).isEqualTo("other-1");
+		assertThat(value(repository.findOne("app", "default", "master"))).isEqualTo("master-1");
+		assertThat(worktreesRoot().list((directory, name) -> !name.startsWith("."))).hasSize(1);
+	}
+
+	@Test
+	public void dropsTheCheckoutLockOfAnEvictedLabel() {
+		FetchAwareJGitEnvironmentRepository repository = repository(1);
+		CompositeProperties.WorktreeProperties properties = new CompositeProperties.WorktreeProperties();
+		properties.setMaxWorktrees(1);
+		File workTree = remote.getRepository().getWorkTree();
+		GitWorktreePool pool = new GitWorktreePool(repository, new GitLocalClone(repository, () -> workTree, () -> null),
+			(directory, application, profile, label) -> new String[]{directory.toURI().toString()}, properties);
+
+		assertThat(value(pool.findOne("app", "default", "master"))).isEqualTo("master-1");
+		assertThat(value(pool.findOne("app", "default", "other"))).isEqualTo("other-1");
+		assertThat(pool.lockedLabels()).isEqualTo(1);
+	}
+
+	@Test
+	public void clearsTheCopiesLeftByAPreviousRun() throws Exception {
+		repository(8).findOne("app", "default", "master");
+		File[] copies = worktreesRoot().listFiles((directory, name) -> !name.startsWith("."));
+		assertThat(copies).hasSize(1);
+
+		repository(8);
+
+		assertThat(copies[0]).doesNotExist();
+		assertThat(worktreesRoot()).isDirectory();
+	}
+
+	@Test
+	public void leavesADirectoryItDidNotCreateAlone() throws Exception {
+		File unrelated = new File(worktreesRoot(), "keep.txt");
+		unrelated.getParentFile().mkdirs();
+		Files.write(unrelated.toPath(), "keep".getBytes(StandardCharsets.UTF_8));
+
+		assertThatThrownBy(() -> repository(8)).hasRootCauseInstanceOf(IllegalStateException.class)
+			.hasMessageContaining("not created by the composite");
+		assertThat(unrelated).exists();
+	}
+
+	private FetchAwareJGitEnvironmentRepository repository(int maxWorktrees) {
+		FetchAwareJGitEnvironmentRepository repository = new FetchAwareJGitEnvironmentRepository(new StandardEnvironment());
+		repository.setUri(remote.getRepository().getWorkTree().toURI().toString());
+		repository.setBasedir(basedir);
+		CompositeProperties.WorktreeProperties worktrees = new CompositeProperties.WorktreeProperties();
+		worktrees.setEnabled(true);
+		worktrees.setMaxWorktrees(maxWorktrees);
+		repository.setWorktrees(worktrees);
+		try {
+			repository.afterPropertiesSet();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		return repository;
+	}
+
+	private File worktreesRoot() {
+		return new File(basedir.getAbsolutePath() + "-worktrees", "composite-worktree-pool");
+	}
+
+	private void commit(String path, String content) throws Exception {
+		Files.write(new File(remote.getRepository().getWorkTree(), path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+		remote.add().addFilepattern(path).call();
+		remote.commit().setMessage("Change " + path).call();
+	}
+
+	private static Object value(Environment environment) {
+		return environment.getPropertySources().get(0).getSource().get("key");
+	}
+}
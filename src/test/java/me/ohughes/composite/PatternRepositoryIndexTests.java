@@ -0,0 +1,106 @@
+package me.ohughes.composite;
+
+import org.junit.Test;
+import org.springframework.util.PatternMatchUtils;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PatternRepositoryIndexTests {
+
+	@Test
+	public void matchesLiteralAndWildcardPatterns() {
+		List<String[]> repositories = Arrays.asList(
+			new String[]{"foo/dev"},
+			new String[]{"foo*"},
+			new String[]{"*/db"},
+			new String[]{"bar*/*", "bar*"},
+			new String[]{"f*o/d*v"});
+		PatternRepositoryIndex<String[]> index = new PatternRepositoryIndex<>(repositories, patterns -> patterns);
+
+		assertThat(index.resolve("foo", "dev")).containsExactly(repositories.get(0), repositories.get(1), repositories.get(4));
+		assertThat(index.resolve("foo", "db")).containsExactly(repositories.get(1), repositories.get(2));
+		assertThat(index.resolve("barx", "prod")).containsExactly(repositories.get(3));
+		assertThat(index.resolve("other", "prod")).isEmpty();
+	}
+
+	@Test
+	public void matchesAnyOfTheRequestedProfilesInRepositoryOrder() {
+		List<String[]> repositories = Arrays.asList(new String[]{"app/prod"}, new String[]{"app/dev"});
+		PatternRepositoryIndex<String[]> index = new PatternRepositoryIndex<>(repositories, patterns -> patterns);
+
+		assertThat(index.resolve("app", "dev,prod")).containsExactly(repositories.get(0), repositories.get(1));
+	}
+
+	@Test
+	public void ignoresRepositoriesWithoutPatterns() {
+		List<String[]> repositories = Arrays.asList(null, new String[]{null, "app/*"});
+		PatternRepositoryIndex<String[]> index = new PatternRepositoryIndex<>(repositories, patterns -> patterns);
+
+		assertThat(index.resolve("app", "dev")).containsExactly(repositories.get(1));
+	}
+
+	@Test
+	public void resolvesAsTryingEveryPatternInTurnWould() {
+		Random random = new Random(20);
+		String[] fragments = {"a", "b", "ab", "/", "*", "dev", "app", ","};
+		for (int round = 0; round < 50; round++) {
+			List<String[]> repositories = new ArrayList<>();
+			for (int repository = 0; repository < 10; repository++) {
+				String[] patterns = new String[1 + random.nextInt(3)];
+				for (int i = 0; i < patterns.length; i++) {
+					patterns[i] = randomText(random, fragments);
+				}
+				repositories.add(patterns);
+			}
+			PatternRepositoryIndex<String[]> index = new PatternRepositoryIndex<>(repositories, patterns -> patterns);
+			for (int lookup = 0; lookup < 50; lookup++) {
+				String application = randomText(random, new String[]{"a", "b", "ab", "app"});
+				String profile = randomText(random, new String[]{"a", "b", "dev", ","});
+				assertThat(index.resolve(application, profile))
+					.as("%s/%s against %s", application, profile, repositoriesToString(repositories))
+					.containsExactlyElementsOf(linearSearch(repositories, application, profile));
+			}
+		}
+	}
+
+	/**
+	 * The search {@code MultipleJGitEnvironmentRepository} carries out without an index
+	 */
+	private static List<String[]> linearSearch(List<String[]> repositories, String application, String profile) {
+		List<String[]> matched = new ArrayList<>();
+		for (String[] patterns : repositories) {
+			boolean matches = false;
+			for (String eachProfile : StringUtils.commaDelimitedListToStringArray(profile)) {
+				matches |= PatternMatchUtils.simpleMatch(patterns, application + "/" + eachProfile);
+			}
+			if (matches) {
+				matched.add(patterns);
+			}
+		}
+		return matched.isEmpty() ? Collections.emptyList() : matched;
+	}
+
+	private static String randomText(Random random, String[] fragments) {
+		StringBuilder text = new StringBuilder();
+		int length = 1 + random.nextInt(4);
+		for (int i = 0; i < length; i++) {
+			text.append(fragments[random.nextInt(fragments.length)]);
+		}
+		return text.toString();
+	}
+
+	private static String repositoriesToString(List<String[]> repositories) {
+		List<String> described = new ArrayList<>();
+		for (String[] patterns : repositories) {
+			described.add(Arrays.toString(patterns));
+		}
+		return described.toString();
+	}
+}
@@ -0,0 +1,169 @@
+package me.ohughes.composite;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class SingleFlightTests {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentCallersShareOneExecutionAndGetTheirOwnCopy() throws Exception {
+		SingleFlight<String, List<String>> flight = new SingleFlight<>(ArrayList::new);
+		AtomicInteger executions = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> result = new ArrayList<>(Collections.singletonList("value"));
+
+		Future<List<String>> leader = executor.submit(() -> flight.execute("key", () -> {
+			executions.incrementAndGet();
+			started.countDown();
+			await(release);
+			return result;
+		}));
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+		List<Future<List<String>>> followers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			followers.add(executor.submit(() -> flight.execute("key", () -> {
+				executions.incrementAndGet();
+				return Collections.emptyList();
+			})));
+		}
+		waitUntilCoalesced(flight, 4);
+		release.countDown();
+
+		assertThat(leader.get(5, TimeUnit.SECONDS)).isSameAs(result);
+		for (Future<List<String>> follower : followers) {
+			assertThat(follower.get(5, TimeUnit.SECONDS)).containsExactly("value").isNotSameAs(result);
+		}
+		assertThat(executions.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void failureIsSharedWithWaitingCallers() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<>(value -> value);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		IllegalStateException failure = new IllegalStateException("backend down");
+
+		Future<String> leader = executor.submit(() -> flight.execute("key", () -> {
+			started.countDown();
+			await(release);
+			throw failure;
+		}));
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+		Future<String> follower = executor.submit(() -> flight.execute("key", () -> "unexpected"));
+		waitUntilCoalesced(flight, 1);
+		release.countDown();
+
+		assertFailedWith(leader, failure);
+		assertFailedWith(follower, failure);
+	}
+
+	@Test
+	public void laterCallersStartAFreshExecution() {
+		SingleFlight<String, String> flight = new SingleFlight<>(value -> value);
+		AtomicInteger executions = new AtomicInteger();
+
+		assertThat(flight.execute("key", () -> "first-" + executions.incrementAndGet())).isEqualTo("first-1");
+		assertThat(flight.execute("key", () -> "second-" + executions.incrementAndGet())).isEqualTo("second-2");
+		assertThat(flight.getCoalesced()).isZero();
+	}
+
+	@Test
+	public void differentKeysDoNotWaitForEachOther() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<>(value -> value);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> slow = executor.submit(() -> flight.execute("slow", () -> {
+			await(release);
+			return "slow";
+		}));
+
+		assertThat(flight.execute("fast", () -> "fast")).isEqualTo("fast");
+		release.countDown();
+		assertThat(slow.get(5, TimeUnit.SECONDS)).isEqualTo("slow");
+	}
+
+	@Test
+	public void asyncCallersShareOneExecutionAndGetTheirOwnCopy() throws Exception {
+		SingleFlight<String, List<String>> flight = new SingleFlight<>(ArrayList::new);
+		AtomicInteger executions = new AtomicInteger();
+		CompletableFuture<List<String>> pending = new CompletableFuture<>();
+		List<String> result = new ArrayList<>(Collections.singletonList("value"));
+
+		CompletableFuture<List<String>> leader = flight.executeAsync("key", () -> {
+			executions.incrementAndGet();
+			return pending;
+		});
+		CompletableFuture<List<String>> follower = flight.executeAsync("key", () -> {
+			executions.incrementAndGet();
+			return CompletableFuture.completedFuture(Collections.emptyList());
+		});
+		assertThat(follower.isDone()).isFalse();
+		pending.complete(result);
+
+		assertThat(leader.get(5, TimeUnit.SECONDS)).isSameAs(result);
+		assertThat(follower.get(5, TimeUnit.SECONDS)).containsExactly("value").isNotSameAs(result);
+		assertThat(executions.get()).isEqualTo(1);
+		assertThat(flight.getCoalesced()).isEqualTo(1);
+	}
+
+	@Test
+	public void asyncWorkThatThrowsFailsTheFlightAndReleasesTheKey() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<>(value -> value);
+		IllegalStateException failure = new IllegalStateException("backend down");
+
+		assertFailedWith(flight.executeAsync("key", () -> {
+			throw failure;
+		}), failure);
+		assertThat(flight.executeAsync("key", () -> CompletableFuture.completedFuture("value")).get(5, TimeUnit.SECONDS))
+			.isEqualTo("value");
+	}
+
+	private static void waitUntilCoalesced(SingleFlight<?, ?> flight, int callers) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (flight.getCoalesced() < callers) {
+			if (System.nanoTime() > deadline) {
+				fail("Callers did not join the lookup under way");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static void assertFailedWith(Future<?> future, Throwable failure) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Expected the lookup to fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).isSameAs(failure);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
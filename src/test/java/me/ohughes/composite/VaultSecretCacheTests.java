@@ -0,0 +1,215 @@
+package me.ohughes.composite;
+
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class VaultSecretCacheTests {
+
+	private final CompositeProperties.VaultCacheProperties properties = new CompositeProperties.VaultCacheProperties();
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicInteger versionReads = new AtomicInteger();
+
+	@Test
+	public void servesASecretFromTheCacheUntilItsTtl() throws Exception {
+		properties.setTtl(50);
+		VaultSecretCache cache = new VaultSecretCache(properties);
+
+		assertThat(cache.get("app", "token", read("1", 0, null), version(null))).containsEntry("key", "1");
+		assertThat(cache.get("app", "token", read("2", 0, null), version(null))).containsEntry("key", "1");
+		assertThat(reads.get()).isEqualTo(1);
+
+		Thread.sleep(100);
+		assertThat(cache.get("app", "token", read("2", 0, null), version(null))).containsEntry("key", "2");
+		assertThat(reads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void aShorterLeaseWinsOverTheTtl() throws Exception {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("app", "token", read("1", 50, null), version(null));
+
+		Thread.sleep(100);
+		cache.get("app", "token", read("2", 50, null), version(null));
+		assertThat(reads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void secretsAreNotSharedBetweenTokens() {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+
+		assertThat(cache.get("app", "first", read("1", 0, null), version(null))).containsEntry("key", "1");
+		assertThat(cache.get("app", "second", read("2", 0, null), version(null))).containsEntry("key", "2");
+		assertThat(reads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void missingSecretsAreCachedToo() {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		Supplier<VaultSecretCache.VaultSecret> missing = () -> {
+			reads.incrementAndGet();
+			return new VaultSecretCache.VaultSecret(null, 0, null);
+		};
+
+		assertThat(cache.get("app", "token", missing, version(null))).isNull();
+		assertThat(cache.get("app", "token", missing, version(null))).isNull();
+		assertThat(reads.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void unchangedVersionIsRevalidatedWithoutReadingTheSecret() throws Exception {
+		properties.setTtl(50);
+		properties.setRevalidate(true);
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("app", "token", read("1", 0, 3L), version(3L));
+
+		Thread.sleep(100);
+		assertThat(cache.get("app", "token", read("2", 0, 3L), version(3L))).containsEntry("key", "1");
+		assertThat(reads.get()).isEqualTo(1);
+		assertThat(versionReads.get()).isEqualTo(1);
+		assertThat(cache.getStatistics().getRevalidations()).isEqualTo(1);
+	}
+
+	@Test
+	public void changedVersionIsReadAgain() throws Exception {
+		properties.setTtl(50);
+		properties.setRevalidate(true);
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("app", "token", read("1", 0, 3L), version(3L));
+
+		Thread.sleep(100);
+		assertThat(cache.get("app", "token", read("2", 0, 4L), version(4L))).containsEntry("key", "2");
+		assertThat(reads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void failedRevalidationReadsTheSecretAgain() throws Exception {
+		properties.setTtl(50);
+		properties.setRevalidate(true);
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("app", "token", read("1", 0, 3L), version(3L));
+
+		Thread.sleep(100);
+		Supplier<Long> forbidden = () -> {
+			throw new IllegalStateException("403 Forbidden");
+		};
+		assertThat(cache.get("app", "token", read("2", 0, 3L), forbidden)).containsEntry("key", "2");
+		assertThat(reads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void revalidatesNoLongerThanMaxStaleness() throws Exception {
+		properties.setTtl(50);
+		properties.setRevalidate(true);
+		properties.setMaxStaleness(150);
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("app", "token", read("1", 0, 3L), version(3L));
+
+		Thread.sleep(200);
+		assertThat(cache.get("app", "token", read("2", 0, 3L), version(3L))).containsEntry("key", "2");
+		assertThat(versionReads.get()).isZero();
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedSecretBeyondMaxEntries() {
+		properties.setMaxEntries(2);
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("a", "token", read("a", 0, null), version(null));
+		cache.get("b", "token", read("b", 0, null), version(null));
+		cache.get("c", "token", read("c", 0, null), version(null));
+
+		assertThat(cache.getStatistics().getSize()).isEqualTo(2);
+		assertThat(cache.getStatistics().getEvictions()).isEqualTo(1);
+		cache.get("a", "token", read("a", 0, null), version(null));
+		assertThat(reads.get()).isEqualTo(4);
+	}
+
+	@Test
+	public void invalidatesAPathForEveryToken() {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("app", "first", read("1", 0, null), version(null));
+		cache.get("app", "second", read("1", 0, null), version(null));
+		cache.get("other", "first", read("1", 0, null), version(null));
+
+		cache.invalidate("app");
+
+		assertThat(cache.getStatistics().getInvalidations()).isEqualTo(2);
+		assertThat(cache.getStatistics().getSize()).isEqualTo(1);
+	}
+
+	@Test
+	public void invalidatesAnApplicationWithItsProfiles() {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.get("myapp", "first", read("1", 0, null), version(null));
+		cache.get("myapp,dev", "first", read("1", 0, null), version(null));
+		cache.get("myapp,dev", "second", read("1", 0, null), version(null));
+		cache.get("myapp2", "first", read("1", 0, null), version(null));
+		cache.get("application,dev", "first", read("1", 0, null), version(null));
+
+		cache.invalidate("myapp");
+		assertThat(cache.getStatistics().getInvalidations()).isEqualTo(3);
+		assertThat(cache.getStatistics().getSize()).isEqualTo(2);
+
+		cache.invalidate("application,dev");
+		assertThat(cache.getStatistics().getSize()).isEqualTo(1);
+	}
+
+	@Test
+	public void invalidatesProfilesUsingTheProfileSeparator() {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		cache.setProfileSeparator("-");
+		cache.get("myapp-dev", "first", read("1", 0, null), version(null));
+		cache.get("myapp,dev", "first", read("1", 0, null), version(null));
+
+		cache.invalidate("myapp");
+
+		assertThat(cache.getStatistics().getInvalidations()).isEqualTo(1);
+		assertThat(reads.get()).isEqualTo(2);
+		cache.get("myapp,dev", "first", read("1", 0, null), version(null));
+		assertThat(reads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void anAsyncReadThatThrowsFailsWithoutHoldingUpLaterReads() throws Exception {
+		VaultSecretCache cache = new VaultSecretCache(properties);
+		IllegalStateException failure = new IllegalStateException("Vault unreachable");
+
+		CompletableFuture<Properties> failed = cache.getAsync("app", "token", () -> {
+			throw failure;
+		}, () -> CompletableFuture.completedFuture(null));
+		try {
+			failed.get(5, TimeUnit.SECONDS);
+			fail("Expected the read to fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).isSameAs(failure);
+		}
+
+		Supplier<VaultSecretCache.VaultSecret> read = read("1", 0, null);
+		assertThat(cache.getAsync("app", "token", () -> CompletableFuture.completedFuture(read.get()),
+			() -> CompletableFuture.completedFuture(null)).get(5, TimeUnit.SECONDS)).containsEntry("key", "1");
+	}
+
+	private Supplier<VaultSecretCache.VaultSecret> read(String value, long leaseDuration, Long version) {
+		return () -> {
+			reads.incrementAndGet();
+			Properties secret = new Properties();
+			secret.setProperty("key", value);
+			return new VaultSecretCache.VaultSecret(secret, leaseDuration, version);
+		};
+	}
+
+	private Supplier<Long> version(Long version) {
+		return () -> {
+			versionReads.incrementAndGet();
+			return version;
+		};
+	}
+}